@@ -0,0 +1,61 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic flat/sample pair shared by the benchmarks, parameterized by bit depth,
+ * size and stain density. Select a subset with e.g. {@code -p megapixels=1,12}.
+ */
+@State(Scope.Benchmark)
+public class ImageState {
+
+    @Param({ "8", "16", "32" })
+    public int bitDepth;
+
+    @Param({ "1", "12", "50", "100" })
+    public double megapixels;
+
+    /** Stains per megapixel: sparse dust vs. a heavily soiled sensor. */
+    @Param({ "20", "200" })
+    public double stainDensity;
+
+    ImagePlus flat;
+    ImagePlus sample;
+
+    @Setup(Level.Trial)
+    public void createImages() {
+        SyntheticImages images = new SyntheticImages(megapixels, stainDensity, 42);
+        flat = images.flat(bitDepth, 1);
+        sample = images.sample(bitDepth, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void releaseImages() {
+        flat = null;
+        sample = null;
+        FlatFieldCalibration.clearCache();
+    }
+}
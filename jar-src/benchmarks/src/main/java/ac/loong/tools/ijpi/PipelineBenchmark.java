@@ -0,0 +1,76 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** End-to-end correction of one frame, with and without a cached flat calibration. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" })
+public class PipelineBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+        /** PFFC radius in pixels, 0 to skip PFFC. */
+        @Param({ "0", "50" })
+        public double pffcRadius;
+
+        /** Integer output path (sample scale kept) instead of the min/max stretched float path. */
+        @Param({ "false", "true" })
+        public boolean integerOutput;
+
+        final DirtyStainsEngine engine = new DirtyStainsEngine();
+        BackgroundBlur blur;
+        FlatFieldCalibration calibration;
+
+        @Setup(Level.Trial)
+        public void prepare(ImageState images) {
+            blur = pffcRadius > 0 ? new BackgroundBlur(pffcRadius) : null;
+            calibration = engine.buildCalibration(images.flat, 0.1, 80, 1);
+        }
+    }
+
+    /** Flat preparation, stain mask, ring and statistics, then the correction of the sample. */
+    @Benchmark
+    public ImageProcessor calibrateAndCorrect(ImageState images, Pipeline p) {
+        FlatFieldCalibration calibration = p.engine.buildCalibration(images.flat, 0.1, 80, 1);
+        return p.engine.correctSlice(images.sample.getProcessor(), calibration, p.blur, -1, p.integerOutput);
+    }
+
+    /** Steady state of batch and stack mode: the flat has already been calibrated. */
+    @Benchmark
+    public ImageProcessor correctCalibrated(ImageState images, Pipeline p) {
+        return p.engine.correctSlice(images.sample.getProcessor(), p.calibration, p.blur, -1, p.integerOutput);
+    }
+}
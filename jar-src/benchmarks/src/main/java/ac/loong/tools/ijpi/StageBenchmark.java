@@ -0,0 +1,129 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImagePlus;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each stage of the correction on its own, fed with the intermediate images of
+ * the previous stages (computed once per trial).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g", "-Djava.awt.headless=true" })
+public class StageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Stages {
+        @Param({ "50" })
+        public double pffcRadius;
+
+        final DirtyStainsEngine engine = new DirtyStainsEngine();
+        ImagePlus flat;
+        ImageProcessor sampleIp;
+        ImageProcessor preparedFlat;
+        ByteProcessor thresholdMask;
+        RunLengthMask stainMask;
+        RunLengthMask ringMask;
+        double k;
+        ImagePlus corrected;
+        BackgroundBlur blur;
+
+        @Setup(Level.Trial)
+        public void prepare(ImageState images) {
+            flat = images.flat;
+            sampleIp = images.sample.getProcessor();
+            FlatFieldCalibration calibration = engine.buildCalibration(flat, 0.1, 80, 1);
+            preparedFlat = calibration.getPreparedFlat();
+            stainMask = calibration.getStainRuns();
+            ringMask = calibration.getRingRuns();
+
+            // 与 createDirtyMask 相同的阈值分割，作为小颗粒过滤的输入
+            ImageProcessor ip = preparedFlat.duplicate();
+            ip.setAutoThreshold(AutoThresholder.Method.MaxEntropy, true, ImageProcessor.BLACK_AND_WHITE_LUT);
+            thresholdMask = ip.createMask();
+
+            double[] sampleMeasures = DirtyStainsEngine.measureRegions(
+                    RegionStatistics.measure(sampleIp, stainMask, ringMask), calibration.isRingEmpty());
+            k = DirtyStainsEngine.correctionFactor(calibration.getFlatStainMean(), calibration.getFlatSurroundMean(),
+                    sampleMeasures[0], sampleMeasures[1]);
+            corrected = new ImagePlus("Corrected", engine.applyCorrection(sampleIp, preparedFlat, k));
+            blur = new BackgroundBlur(pffcRadius);
+        }
+    }
+
+    @Benchmark
+    public ImageProcessor prepareFlatField(Stages s) {
+        return s.engine.prepareFlatField(s.flat, 1);
+    }
+
+    @Benchmark
+    public RunLengthMask createDirtyMask(Stages s) {
+        return s.engine.createDirtyMask(s.preparedFlat, 80);
+    }
+
+    @Benchmark
+    public RunLengthMask filterSmallRegions(Stages s) {
+        return s.engine.filterSmallRegions(s.thresholdMask, 80);
+    }
+
+    @Benchmark
+    public RunLengthMask expandMask(Stages s) {
+        return s.engine.expandMask(s.stainMask, 0.1);
+    }
+
+    /** Stain and ring means of the sample (the former maskedMean calls). */
+    @Benchmark
+    public RegionStatistics measureRegions(Stages s) {
+        return RegionStatistics.measure(s.sampleIp, s.stainMask, s.ringMask);
+    }
+
+    @Benchmark
+    public ImageProcessor applyCorrection(Stages s) {
+        return s.engine.applyCorrection(s.sampleIp, s.preparedFlat, s.k);
+    }
+
+    @Benchmark
+    public ImagePlus pseudoFlatFieldCorrection(Stages s) {
+        return s.engine.pseudoFlatFieldCorrection(s.corrected, s.blur);
+    }
+
+    /** applyCorrection + pseudoFlatFieldCorrection + bit-depth conversion in one pass. */
+    @Benchmark
+    public ImageProcessor fusedCorrection(Stages s) {
+        return CorrectionKernel.correct(s.sampleIp, s.preparedFlat, s.k, s.blur, s.sampleIp.getBitDepth());
+    }
+}
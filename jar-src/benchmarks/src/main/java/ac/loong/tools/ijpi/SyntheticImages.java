@@ -0,0 +1,131 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic test images for the benchmarks: a vignetted flat field with dark
+ * dust stains, and a sample seen through the same optics (same stains, different
+ * exposure) with some low-frequency structure on top.
+ */
+final class SyntheticImages {
+
+    private final int width;
+    private final int height;
+    private final float[] illumination;
+    private final float[] transmission;
+
+    /**
+     * @param megapixels          image size; the aspect ratio is 4:3
+     * @param stainsPerMegapixel  stain density
+     */
+    SyntheticImages(double megapixels, double stainsPerMegapixel, long seed) {
+        this.width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        this.height = width * 3 / 4;
+        this.illumination = new float[width * height];
+        this.transmission = new float[width * height];
+
+        double cx = width / 2.0;
+        double cy = height / 2.0;
+        double r2max = cx * cx + cy * cy;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double r2 = ((x - cx) * (x - cx) + (y - cy) * (y - cy)) / r2max;
+                illumination[y * width + x] = (float) (1 - 0.35 * r2);
+            }
+        }
+
+        Arrays.fill(transmission, 1f);
+        Random random = new Random(seed);
+        int stains = (int) Math.round(stainsPerMegapixel * width * height / 1e6);
+        for (int i = 0; i < stains; i++) {
+            // 大小不一的灰尘：半径 2-40 像素，遮挡 10%-60%
+            double sigma = 2 + 38 * Math.pow(random.nextDouble(), 3);
+            double depth = 0.1 + 0.5 * random.nextDouble();
+            addStain(random.nextInt(width), random.nextInt(height), sigma, depth);
+        }
+    }
+
+    private void addStain(int x0, int y0, double sigma, double depth) {
+        int reach = (int) Math.ceil(3 * sigma);
+        double scale = -1 / (2 * sigma * sigma);
+        for (int y = Math.max(0, y0 - reach); y < Math.min(height, y0 + reach + 1); y++) {
+            for (int x = Math.max(0, x0 - reach); x < Math.min(width, x0 + reach + 1); x++) {
+                double d2 = (x - x0) * (x - x0) + (y - y0) * (y - y0);
+                transmission[y * width + x] *= (float) (1 - depth * Math.exp(d2 * scale));
+            }
+        }
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    ImagePlus flat(int bitDepth, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (float) (illumination[i] * transmission[i] * (1 + 0.01 * random.nextGaussian()));
+        return new ImagePlus("Flat", toBitDepth(pixels, bitDepth));
+    }
+
+    ImagePlus sample(int bitDepth, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        double period = Math.max(width, height) / 6.0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                double scene = 0.75 + 0.2 * Math.sin(x / period) * Math.cos(y / period);
+                pixels[i] = (float) (0.8 * illumination[i] * transmission[i] * scene
+                        * (1 + 0.01 * random.nextGaussian()));
+            }
+        }
+        return new ImagePlus("Sample", toBitDepth(pixels, bitDepth));
+    }
+
+    /** Maps the [0, 1] intensities to the usual range of the bit depth. */
+    private ImageProcessor toBitDepth(float[] pixels, int bitDepth) {
+        FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+        switch (bitDepth) {
+            case 8:
+                fp.multiply(230);
+                fp.setMinAndMax(0, 255);
+                return fp.convertToByte(false);
+            case 16:
+                fp.multiply(60000);
+                fp.setMinAndMax(0, 65535);
+                return fp.convertToShort(false);
+            case 32:
+                fp.multiply(1000);
+                fp.resetMinAndMax();
+                return fp;
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+
+/**
+ * Gaussian blur used to estimate the PFFC background, with a choice between the
+ * exact ImageJ blur and an iterated box filter whose cost does not grow with the radius.
+ * Immutable, so one instance can be shared by all slices and threads.
+ */
+public final class BackgroundBlur {
+
+    public enum Method {
+        /** ImageJ's GaussianBlur; cost grows with the radius. */
+        EXACT("Exact Gaussian"),
+        /** Iterated box filters with running sums, constant time per pixel. */
+        BOX("Box filters (constant time)");
+
+        private final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public static String[] labels() {
+            Method[] methods = values();
+            String[] labels = new String[methods.length];
+            for (int i = 0; i < methods.length; i++)
+                labels[i] = methods[i].label;
+            return labels;
+        }
+
+        public static Method fromLabel(String label) {
+            for (Method method : values()) {
+                if (method.label.equals(label) || method.name().equalsIgnoreCase(label))
+                    return method;
+            }
+            return EXACT;
+        }
+    }
+
+    public static final double DEFAULT_ACCURACY = 0.02;
+
+    private final double sigma;
+    private final Method method;
+    private final double accuracy;
+
+    /**
+     * @param sigma    blur radius (Gaussian sigma) in pixels, at least 0.5
+     * @param accuracy relative error tolerated: kernel accuracy of the exact blur
+     *                 or number of box passes
+     */
+    public BackgroundBlur(double sigma, Method method, double accuracy) {
+        this.sigma = Math.max(0.5, sigma);
+        this.method = method != null ? method : Method.EXACT;
+        this.accuracy = accuracy > 0 ? accuracy : DEFAULT_ACCURACY;
+    }
+
+    public BackgroundBlur(double sigma) {
+        this(sigma, Method.EXACT, DEFAULT_ACCURACY);
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /** Blurs {@code fp} in place. */
+    public void blur(FloatProcessor fp) {
+        if (method == Method.BOX)
+            boxBlur(fp);
+        else
+            new GaussianBlur().blurGaussian(fp, sigma, sigma, accuracy);
+    }
+
+    /**
+     * Distance in pixels beyond which the input no longer changes a blurred pixel
+     * (within the accuracy), i.e. the overlap needed to blur an image tile by tile.
+     */
+    public int reach() {
+        if (method == Method.BOX) {
+            int reach = 0;
+            for (int r : boxRadii(sigma, boxPasses()))
+                reach += r;
+            return reach;
+        }
+        // GaussianBlur 在 sigma*sqrt(-2 ln accuracy) 处截断核；大半径时先缩小图像，缩放核再多占约 sigma/2
+        return (int) Math.ceil(sigma * (Math.sqrt(-2 * Math.log(accuracy)) + 0.5)) + 2;
+    }
+
+    // --- Iterated box filters ---
+
+    private int boxPasses() {
+        // 3 次盒式滤波已接近高斯（误差约 3%），要求更高精度时增加次数
+        if (accuracy <= 0.002)
+            return 6;
+        if (accuracy <= 0.005)
+            return 5;
+        if (accuracy <= 0.01)
+            return 4;
+        return 3;
+    }
+
+    /**
+     * Box widths whose successive application has the variance of the Gaussian
+     * (P. Kovesi, "Fast almost-Gaussian filtering", 2010).
+     */
+    static int[] boxRadii(double sigma, int passes) {
+        double idealWidth = Math.sqrt(12 * sigma * sigma / passes + 1);
+        int wl = (int) Math.floor(idealWidth);
+        if (wl % 2 == 0)
+            wl--;
+        int wu = wl + 2;
+        double mIdeal = (12 * sigma * sigma - passes * wl * wl - 4.0 * passes * wl - 3.0 * passes) / (-4.0 * wl - 4);
+        int m = (int) Math.round(mIdeal);
+        int[] radii = new int[passes];
+        for (int i = 0; i < passes; i++)
+            radii[i] = ((i < m ? wl : wu) - 1) / 2;
+        return radii;
+    }
+
+    private void boxBlur(FloatProcessor fp) {
+        int width = fp.getWidth();
+        int height = fp.getHeight();
+        float[] pixels = (float[]) fp.getPixels();
+        float[] buffer = new float[pixels.length];
+        for (int r : boxRadii(sigma, boxPasses())) {
+            if (r <= 0)
+                continue;
+            boxRows(pixels, buffer, width, height, r);
+            boxColumns(buffer, pixels, width, height, r);
+        }
+    }
+
+    /**
+     * Horizontal running-sum box filter; out-of-image pixels repeat the edge pixel like GaussianBlur.
+     * NaN and infinite pixels are counted instead of summed, so they turn only the outputs whose
+     * window holds one into NaN, as with GaussianBlur, instead of every pixel after them.
+     */
+    private static void boxRows(float[] src, float[] dst, int width, int height, int r) {
+        double norm = 1.0 / (2 * r + 1);
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            double sum = 0;
+            int nonFinite = 0;
+            for (int i = -r - 1; i < r; i++) {
+                float v = src[offset + clamp(i, width)];
+                sum += finite(v);
+                nonFinite += nonFinite(v);
+            }
+            for (int x = 0; x < width; x++) {
+                float in = src[offset + clamp(x + r, width)];
+                float out = src[offset + clamp(x - r - 1, width)];
+                sum += finite(in) - finite(out);
+                nonFinite += nonFinite(in) - nonFinite(out);
+                dst[offset + x] = nonFinite == 0 ? (float) (sum * norm) : Float.NaN;
+            }
+        }
+    }
+
+    /** Vertical running-sum box filter, computed row by row with one accumulator per column. */
+    private static void boxColumns(float[] src, float[] dst, int width, int height, int r) {
+        double norm = 1.0 / (2 * r + 1);
+        double[] sums = new double[width];
+        int[] nonFinite = new int[width]; // 窗口内的 NaN/无穷像素数
+        for (int i = -r - 1; i < r; i++) {
+            int offset = clamp(i, height) * width;
+            for (int x = 0; x < width; x++) {
+                float v = src[offset + x];
+                sums[x] += finite(v);
+                nonFinite[x] += nonFinite(v);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int addOffset = clamp(y + r, height) * width;
+            int removeOffset = clamp(y - r - 1, height) * width;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                float in = src[addOffset + x];
+                float out = src[removeOffset + x];
+                sums[x] += finite(in) - finite(out);
+                nonFinite[x] += nonFinite(in) - nonFinite(out);
+                dst[offset + x] = nonFinite[x] == 0 ? (float) (sums[x] * norm) : Float.NaN;
+            }
+        }
+    }
+
+    private static float finite(float v) {
+        return v - v == 0 ? v : 0; // NaN 与无穷大时 v - v 为 NaN
+    }
+
+    private static int nonFinite(float v) {
+        return v - v == 0 ? 0 : 1;
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+}
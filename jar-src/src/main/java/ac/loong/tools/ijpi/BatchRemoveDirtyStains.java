@@ -0,0 +1,487 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.measure.ResultsTable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch entry point: corrects every image of a directory against one
+ * flat-field image without WindowManager, dialogs or windows.
+ * <p>
+ * Images are streamed through the pipeline; at most {@code maxInFlight} images
+ * are loaded at the same time, so memory stays bounded regardless of the number
+ * of files. Example:
+ *
+ * <pre>
+ * java -cp ij.jar:Remove_Dirty_Stains.jar ac.loong.tools.ijpi.BatchRemoveDirtyStains \
+ *     --flat flat.tif --input raw/ --pattern "*.tif" --output cleaned/ --pffc 50 --threads 8
+ * </pre>
+ */
+public class BatchRemoveDirtyStains {
+
+    /** Batch parameters, with the same defaults as the plugin dialog. */
+    public static class Options {
+        public Path flat; // may be null when calibrationFile exists
+        public Path calibrationFile; // loaded if it matches the flat and parameters, otherwise built and saved
+        public Path flatLibrary; // folder of flats, the best match is picked per image (instead of flat)
+        public Path inputDir;
+        public String pattern = "*.{tif,tiff,TIF,TIFF}";
+        public boolean recursive = false;
+        public Path outputDir;
+        public double expandRatio = 0.1;
+        public int percentile = 80;
+        public int flatDownsample = 1; // 1 = exact rolling-ball background
+        public boolean pffcEnabled = false;
+        public double pffcRadius = 50.0;
+        public BackgroundBlur.Method pffcBlurMethod = BackgroundBlur.Method.EXACT;
+        public double pffcBlurAccuracy = BackgroundBlur.DEFAULT_ACCURACY;
+        public double sparseNoiseFloor = -1; // >= 0: correct only stains and rings, flat values up to it count as 0
+        public boolean integerOutput; // 8/16-bit output keeps the sample scale instead of min/max stretching
+        public double factorTolerance = -1; // >= 0: estimate k from sampled pixels to this 95% half-width
+        public int threads = 0; // 0 = all cores
+        public int maxInFlight = 0; // 0 = 2 * threads
+        public boolean overwrite = false;
+        public Path metricsTable; // CSV of the per-image stage metrics, or null
+        public boolean metricsLog = false; // one JSON line of stage metrics per image
+    }
+
+    /** Counters of a finished batch run. */
+    public static class Summary {
+        public final int processed;
+        public final int skipped;
+        public final int failed;
+        public final long elapsedMillis;
+
+        Summary(int processed, int skipped, int failed, long elapsedMillis) {
+            this.processed = processed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "processed=" + processed + " skipped=" + skipped + " failed=" + failed + " time="
+                    + elapsedMillis + "ms";
+        }
+    }
+
+    private final Options options;
+    private final DirtyStainsEngine engine;
+    private final ImagePlus flatImp;
+    private final FlatFieldLibrary library;
+    private final Map<String, FutureTask<FlatFieldCalibration>> calibrations = new HashMap<>();
+    private final ResultsTable metricsTable = new ResultsTable();
+
+    private BatchRemoveDirtyStains(Options options, ImagePlus flatImp, FlatFieldLibrary library) {
+        this.options = options;
+        this.engine = new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG, options.factorTolerance);
+        this.flatImp = flatImp;
+        this.library = library;
+    }
+
+    public static Summary run(Options options) throws IOException, InterruptedException {
+        validate(options);
+        ImagePlus flatImp = null;
+        if (options.flat != null) {
+            flatImp = IJ.openImage(options.flat.toString());
+            if (flatImp == null)
+                throw new IOException("Cannot open flat field image: " + options.flat);
+            if (flatImp.getType() == ImagePlus.COLOR_RGB)
+                throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        }
+        FlatFieldLibrary library = null;
+        if (options.flatLibrary != null) {
+            library = FlatFieldLibrary.index(options.flatLibrary, options.pattern);
+            IJ.log("Flat library " + options.flatLibrary + ": " + library.getEntries());
+        }
+        Files.createDirectories(options.outputDir);
+        BatchRemoveDirtyStains batch = new BatchRemoveDirtyStains(options, flatImp, library);
+        if (options.calibrationFile != null)
+            batch.loadCalibrationFile();
+        return batch.processAll();
+    }
+
+    /** Seeds the calibration of the flat geometry from the calibration file. */
+    private void loadCalibrationFile() throws IOException {
+        FlatFieldCalibration calibration = CalibrationFile.loadOrBuild(options.calibrationFile, flatImp,
+                options.expandRatio, options.percentile, options.flatDownsample, engine);
+        FutureTask<FlatFieldCalibration> task = new FutureTask<>(() -> calibration);
+        task.run();
+        calibrations.put(calibration.getWidth() + "x" + calibration.getHeight() + "x"
+                + calibration.getPreparedFlat().getBitDepth(), task);
+    }
+
+    private static void validate(Options options) {
+        if (options.inputDir == null || options.outputDir == null)
+            throw new IllegalArgumentException("Input directory and output directory are required.");
+        if (options.flatLibrary != null && (options.flat != null || options.calibrationFile != null))
+            throw new IllegalArgumentException("A flat library cannot be combined with a flat or a calibration file.");
+        if (options.flatLibrary == null && options.flat == null
+                && (options.calibrationFile == null || !Files.exists(options.calibrationFile)))
+            throw new IllegalArgumentException("Flat field image, flat library or an existing calibration file is required.");
+        if (options.expandRatio < 0 || options.expandRatio > 1.0)
+            throw new IllegalArgumentException("Invalid expansion ratio. Must be between 0 and 1.0.");
+        if (options.percentile < 0 || options.percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile. Must be between 0 and 100.");
+        if (options.pffcEnabled && options.pffcRadius < 0.5)
+            throw new IllegalArgumentException("PFFC blurring radius must be >= 0.5 pixels.");
+        if (options.pffcEnabled && !(options.pffcBlurAccuracy > 0 && options.pffcBlurAccuracy < 1))
+            throw new IllegalArgumentException("PFFC blur accuracy must be between 0 and 1.");
+        if (options.flatDownsample < 1)
+            throw new IllegalArgumentException("Invalid background downsampling factor. Must be >= 1.");
+        if (Double.isNaN(options.sparseNoiseFloor))
+            throw new IllegalArgumentException("Invalid sparse correction noise floor.");
+        if (Double.isNaN(options.factorTolerance))
+            throw new IllegalArgumentException("Invalid correction factor tolerance.");
+        if (options.threads < 0 || options.maxInFlight < 0)
+            throw new IllegalArgumentException("Thread and in-flight counts must be >= 0.");
+    }
+
+    private Summary processAll() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+        int maxInFlight = options.maxInFlight > 0 ? options.maxInFlight : 2 * threads;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + options.pattern);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (Stream<Path> files = options.recursive ? Files.walk(options.inputDir) : Files.list(options.inputDir)) {
+            Iterator<Path> it = files.filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(p.getFileName()))
+                    .iterator();
+            while (it.hasNext()) {
+                Path input = it.next();
+                Path output = outputPathFor(input);
+                if (!options.overwrite && Files.exists(output)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                inFlight.acquire(); // back-pressure: never more than maxInFlight images in memory
+                executor.execute(() -> {
+                    try {
+                        processFile(input, output);
+                        processed.incrementAndGet();
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        IJ.log("Failed to process " + input + ": " + e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        if (options.metricsTable != null && !metricsTable.save(options.metricsTable.toString()))
+            throw new IOException("Cannot write " + options.metricsTable);
+        return new Summary(processed.get(), skipped.get(), failed.get(), System.currentTimeMillis() - start);
+    }
+
+    private Path outputPathFor(Path input) {
+        Path relative = options.inputDir.relativize(input);
+        String name = relative.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String tifName = (dot > 0 ? name.substring(0, dot) : name) + ".tif";
+        Path parent = relative.getParent();
+        return parent == null ? options.outputDir.resolve(tifName) : options.outputDir.resolve(parent).resolve(tifName);
+    }
+
+    /**
+     * Corrects one file; with metrics enabled its stage timings (including the flat
+     * calibration, for the first image of each geometry) are recorded per image.
+     */
+    private void processFile(Path input, Path output) throws IOException {
+        if (options.metricsTable == null && !options.metricsLog) {
+            correctFile(input, output);
+            return;
+        }
+        StageMetrics metrics = new StageMetrics();
+        StageMetrics.Activation activation = StageMetrics.activate(metrics);
+        try {
+            correctFile(input, output);
+        } finally {
+            activation.close();
+        }
+        String label = options.inputDir.relativize(input).toString();
+        if (options.metricsTable != null)
+            metrics.addTo(metricsTable, label);
+        if (options.metricsLog)
+            IJ.log(metrics.toLogLine(label));
+    }
+
+    private void correctFile(Path input, Path output) throws IOException {
+        ImagePlus sampleImp = IJ.openImage(input.toString());
+        if (sampleImp == null)
+            throw new IOException("Cannot open image");
+        if (sampleImp.getType() == ImagePlus.COLOR_RGB)
+            throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+
+        FlatFieldCalibration calibration = calibrationFor(sampleImp);
+        ImageStack sourceStack = sampleImp.getStack();
+        ImageStack resultStack = new ImageStack(sampleImp.getWidth(), sampleImp.getHeight());
+        BackgroundBlur pffcBlur = options.pffcEnabled
+                ? new BackgroundBlur(options.pffcRadius, options.pffcBlurMethod, options.pffcBlurAccuracy)
+                : null;
+        for (int i = 1; i <= sourceStack.getSize(); i++) {
+            resultStack.addSlice(sourceStack.getSliceLabel(i),
+                    engine.correctSlice(sourceStack.getProcessor(i), calibration, pffcBlur,
+                            options.sparseNoiseFloor, options.integerOutput));
+        }
+        ImagePlus resultImp = sampleImp.createImagePlus();
+        resultImp.setStack(sampleImp.getTitle(), resultStack);
+        resultImp.setDimensions(sampleImp.getNChannels(), sampleImp.getNSlices(), sampleImp.getNFrames());
+        resultImp.setProperty("Info", sampleImp.getProperty("Info"));
+
+        if (output.getParent() != null)
+            Files.createDirectories(output.getParent());
+        FileSaver saver = new FileSaver(resultImp);
+        boolean saved = resultStack.getSize() > 1 ? saver.saveAsTiffStack(output.toString())
+                : saver.saveAsTiff(output.toString());
+        if (!saved)
+            throw new IOException("Cannot write " + output);
+    }
+
+    /**
+     * One calibration per sample geometry (and library flat); the flat is auto-converted
+     * like in the dialog.
+     */
+    private FlatFieldCalibration calibrationFor(ImagePlus sampleImp) throws IOException {
+        String key = sampleImp.getWidth() + "x" + sampleImp.getHeight() + "x" + sampleImp.getBitDepth();
+        if (library == null)
+            return calibrationFor(key, () -> calibrate(sampleImp, key, flatImp));
+        // 签名比较在锁外进行，只有首次用到某张平场时才读盘并标定
+        FlatFieldLibrary.Entry entry = library.select(sampleImp).entry;
+        String entryKey = entry.getName() + "@" + key;
+        return calibrationFor(entryKey, () -> {
+            IJ.log("Flat library: calibrating " + entry + " for " + key + " images");
+            return calibrate(sampleImp, entryKey, entry.open());
+        });
+    }
+
+    /**
+     * The calibration of {@code key}. The first worker to ask computes it outside the
+     * lock, later ones wait for that result; a failed calibration is tried again by
+     * the next file.
+     */
+    private FlatFieldCalibration calibrationFor(String key, Callable<FlatFieldCalibration> calibrate)
+            throws IOException {
+        FutureTask<FlatFieldCalibration> task;
+        boolean owner = false;
+        synchronized (calibrations) {
+            task = calibrations.get(key);
+            if (task == null) {
+                task = new FutureTask<>(calibrate);
+                calibrations.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner)
+            task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calibrating " + key, e);
+        } catch (ExecutionException e) {
+            if (owner) {
+                synchronized (calibrations) {
+                    calibrations.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException("Calibration for " + key + " failed", cause);
+        }
+    }
+
+    private FlatFieldCalibration calibrate(ImagePlus sampleImp, String key, ImagePlus flatImp) {
+        if (flatImp == null) {
+            Set<String> known;
+            synchronized (calibrations) {
+                known = new TreeSet<>(calibrations.keySet());
+            }
+            known.remove(key);
+            throw new IllegalArgumentException("No flat field image for " + key
+                    + " images, the calibration file is for " + known);
+        }
+        ImagePlus matchingFlat = engine.areImagesCompatible(sampleImp, flatImp) ? flatImp
+                : engine.convertImageToMatch(flatImp, sampleImp);
+        return engine.getCalibration(matchingFlat, options.expandRatio, options.percentile,
+                options.flatDownsample);
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+        Options options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        try {
+            Summary summary = run(options);
+            System.out.println("Remove Dirty Stains batch finished: " + summary);
+            System.exit(summary.failed > 0 ? 1 : 0);
+        } catch (Exception e) {
+            System.err.println("Remove Dirty Stains batch failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--flat":
+                    options.flat = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--flat-library":
+                    options.flatLibrary = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--calibration":
+                    options.calibrationFile = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--input":
+                    options.inputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--pattern":
+                    options.pattern = value(args, ++i, arg);
+                    break;
+                case "--recursive":
+                    options.recursive = true;
+                    break;
+                case "--output":
+                    options.outputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--expand":
+                    options.expandRatio = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--percentile":
+                    options.percentile = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--flat-downsample":
+                    options.flatDownsample = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--pffc":
+                    options.pffcEnabled = true;
+                    options.pffcRadius = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--pffc-blur":
+                    options.pffcBlurMethod = BackgroundBlur.Method.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--pffc-accuracy":
+                    options.pffcBlurAccuracy = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--sparse":
+                    options.sparseNoiseFloor = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--integer":
+                    options.integerOutput = true;
+                    break;
+                case "--k-tolerance":
+                    options.factorTolerance = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--max-in-flight":
+                    options.maxInFlight = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--overwrite":
+                    options.overwrite = true;
+                    break;
+                case "--metrics":
+                    options.metricsTable = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--metrics-log":
+                    options.metricsLog = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i, String name) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + name);
+        return args[i];
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: BatchRemoveDirtyStains --flat <file> --input <dir> --output <dir>\n"
+                + "  [--calibration <file>]  load the flat calibration from this file, or save it there;\n"
+                + "                          --flat may be left out when the file exists\n"
+                + "  [--flat-library <dir>]  instead of --flat: pick the flat of this folder (same --pattern)\n"
+                + "                          whose stain pattern best matches each image\n"
+                + "  [--pattern <glob>]      file name glob (default *.{tif,tiff,TIF,TIFF})\n"
+                + "  [--recursive]           include sub directories\n"
+                + "  [--expand <0-1.0>]      peripheral detection expansion ratio (default 0.1)\n"
+                + "  [--percentile <0-100>]  percentage of flat-field microparticle to be kept (default 80)\n"
+                + "  [--flat-downsample <n>] estimate the flat background on an n-times smaller image (default 1)\n"
+                + "  [--pffc <radius>]       apply PFFC with the given radius after removal\n"
+                + "  [--pffc-blur <method>]  exact or box (default exact)\n"
+                + "  [--pffc-accuracy <e>]   relative error tolerated by the PFFC blur (default 0.02)\n"
+                + "  [--sparse <floor>]      only correct stains and their rings; flat values <= floor count as 0\n"
+                + "  [--integer]             keep the scale of 8/16-bit images (saturate) instead of stretching\n"
+                + "  [--k-tolerance <t>]     estimate k from sampled stain/ring pixels, exact if its 95% half-width > t\n"
+                + "  [--threads <n>]         worker threads (default: all cores)\n"
+                + "  [--max-in-flight <n>]   images held in memory at once (default: 2 * threads)\n"
+                + "  [--overwrite]           replace existing output files\n"
+                + "  [--metrics <file.csv>]  save per-image stage timings, pixels and allocated bytes\n"
+                + "  [--metrics-log]         log one JSON line of stage metrics per image");
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file holding a {@link FlatFieldCalibration}: the prepared flat, the stain
+ * and ring masks as runs, the flat region means, the parameters they were made with
+ * and a checksum of the flat-field image. Loading reads the file in one pass and
+ * copies the arrays out, so a known camera is ready without repeating the flat
+ * preparation; the file is little-endian and can be shared between machines.
+ * <p>
+ * Layout: a fixed header (see {@link Header}), then the stain runs, the ring runs
+ * (row index, starts and ends as ints) and the prepared flat pixels. The header
+ * ends with a CRC-32 of everything after it, checked on load.
+ */
+public final class CalibrationFile {
+
+    private static final byte[] MAGIC = "RDSCALIB".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 96;
+    private static final int CHUNK = 1 << 16; // 写入与校验时一次转换的像素数
+
+    private CalibrationFile() {
+    }
+
+    /** Parameters and checksums of a calibration file, read without loading the arrays. */
+    public static final class Header {
+        public final int width;
+        public final int height;
+        public final int bitDepth; // of the prepared flat: 8, 16 or 32
+        public final double expandRatio;
+        public final int percentile;
+        public final int flatDownsample;
+        public final long flatChecksum;
+        final double flatStainMean;
+        final double flatSurroundMean;
+        final boolean ringEmpty;
+        final int stainRunCount;
+        final int ringRunCount;
+        final long bodyChecksum;
+
+        Header(int width, int height, int bitDepth, double expandRatio, int percentile, int flatDownsample,
+                long flatChecksum, double flatStainMean, double flatSurroundMean, boolean ringEmpty,
+                int stainRunCount, int ringRunCount, long bodyChecksum) {
+            this.width = width;
+            this.height = height;
+            this.bitDepth = bitDepth;
+            this.expandRatio = expandRatio;
+            this.percentile = percentile;
+            this.flatDownsample = flatDownsample;
+            this.flatChecksum = flatChecksum;
+            this.flatStainMean = flatStainMean;
+            this.flatSurroundMean = flatSurroundMean;
+            this.ringEmpty = ringEmpty;
+            this.stainRunCount = stainRunCount;
+            this.ringRunCount = ringRunCount;
+            this.bodyChecksum = bodyChecksum;
+        }
+
+        /** True if the file was made from a flat with this checksum and the same parameters. */
+        public boolean matches(long flatChecksum, double expandRatio, int percentile, int flatDownsample) {
+            return this.flatChecksum == flatChecksum
+                    && Double.doubleToLongBits(this.expandRatio) == Double.doubleToLongBits(expandRatio)
+                    && this.percentile == percentile && this.flatDownsample == flatDownsample;
+        }
+
+        private long bodySize() {
+            long masks = 2L * (height + 1) + 2L * stainRunCount + 2L * ringRunCount;
+            return masks * 4 + (long) width * height * (bitDepth / 8);
+        }
+    }
+
+    /** CRC-32 of the size, bit depth and pixels of a flat-field image. */
+    public static long checksum(ImageProcessor ip) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+        buffer.flip();
+        crc.update(buffer);
+        updatePixels(ip.getPixels(), crc);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes {@code calibration}, made from a flat with checksum {@code flatChecksum},
+     * to {@code path}. The file is written next to the target and moved into place, so
+     * a reader never sees a partly written file.
+     */
+    public static void save(FlatFieldCalibration calibration, long flatChecksum, Path path) throws IOException {
+        ImageProcessor flat = calibration.getPreparedFlat();
+        RunLengthMask stain = calibration.getStainRuns();
+        RunLengthMask ring = calibration.getRingRuns();
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                writeMask(stain, channel, crc);
+                writeMask(ring, channel, crc);
+                writePixels(flat.getPixels(), channel, crc);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(MAGIC).putInt(VERSION);
+                header.putInt(flat.getWidth()).putInt(flat.getHeight()).putInt(flat.getBitDepth());
+                header.putDouble(calibration.getExpandRatio()).putInt(calibration.getPercentile())
+                        .putInt(calibration.getFlatDownsample());
+                header.putLong(flatChecksum);
+                header.putDouble(calibration.getFlatStainMean()).putDouble(calibration.getFlatSurroundMean());
+                header.putInt(calibration.isRingEmpty() ? 1 : 0);
+                header.putInt(stain.getRunCount()).putInt(ring.getRunCount());
+                header.putLong(crc.getValue());
+                header.position(HEADER_SIZE);
+                header.flip();
+                channel.position(0);
+                writeFully(channel, header);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Reads the header of {@code path}; throws IOException if it is not a calibration file. */
+    public static Header readHeader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+            return readHeader(buffer, channel.size(), path);
+        }
+    }
+
+    /** Reads {@code path} and rebuilds the calibration, after checking the body checksum. */
+    public static FlatFieldCalibration load(Path path) throws IOException {
+        // 读入堆内存而不做内存映射：映射在被回收前会占用文件，Windows 上无法替换该文件
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Calibration file larger than 2 GB cannot be read: " + path);
+            buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            buffer.flip();
+        }
+        Header header = readHeader(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), buffer.limit(), path);
+
+        ByteBuffer body = buffer.duplicate();
+        body.position(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != header.bodyChecksum)
+            throw new IOException("Calibration file is corrupted (checksum mismatch): " + path);
+
+        buffer.position(HEADER_SIZE);
+        try {
+            RunLengthMask stain = readMask(buffer, header.width, header.height, header.stainRunCount);
+            RunLengthMask ring = readMask(buffer, header.width, header.height, header.ringRunCount);
+            ImageProcessor flat = readPixels(buffer, header.width, header.height, header.bitDepth);
+            return new FlatFieldCalibration(flat, stain, ring, header.flatStainMean, header.flatSurroundMean,
+                    header.ringEmpty, header.expandRatio, header.percentile, header.flatDownsample);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid calibration file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The calibration in {@code path} if the file was made from a flat with checksum
+     * {@code flatChecksum} and the same parameters, otherwise null. Never writes the file.
+     */
+    static FlatFieldCalibration loadMatching(Path path, long flatChecksum, double expandRatio, int percentile,
+            int flatDownsample) throws IOException {
+        if (!Files.exists(path) || !readHeader(path).matches(flatChecksum, expandRatio, percentile, flatDownsample))
+            return null;
+        return load(path);
+    }
+
+    /**
+     * Calibration of {@code flatImp} for the given parameters, taken from {@code path}
+     * when the file was made from the same flat with the same parameters, otherwise
+     * built and written to {@code path}. With a null {@code flatImp} the file is used
+     * as it is, whatever its parameters. Messages go to the observer of {@code engine}.
+     */
+    static FlatFieldCalibration loadOrBuild(Path path, ImagePlus flatImp, double expandRatio, int percentile,
+            int flatDownsample, DirtyStainsEngine engine) throws IOException {
+        DirtyStainsEngine.Observer observer = engine.getObserver();
+        if (flatImp == null) {
+            if (!Files.exists(path))
+                throw new IOException("Calibration file not found and no flat field image given: " + path);
+            FlatFieldCalibration calibration = load(path);
+            observer.info("Calibration loaded from " + path + " (expansion ratio " + calibration.getExpandRatio()
+                    + ", percentile " + calibration.getPercentile() + ", background downsampling "
+                    + calibration.getFlatDownsample() + ")");
+            return calibration;
+        }
+        long flatChecksum = checksum(flatImp.getProcessor());
+        if (Files.exists(path)) {
+            try {
+                FlatFieldCalibration calibration = loadMatching(path, flatChecksum, expandRatio, percentile,
+                        flatDownsample);
+                if (calibration != null) {
+                    observer.info("Calibration loaded from " + path);
+                    return calibration;
+                }
+                observer.warning("Calibration file " + path
+                        + " was made from another flat or other parameters, rebuilding.");
+            } catch (IOException e) {
+                observer.warning(e.getMessage() + ", rebuilding.");
+            }
+        }
+        FlatFieldCalibration calibration = engine.getCalibration(flatImp, expandRatio, percentile, flatDownsample);
+        save(calibration, flatChecksum, path);
+        observer.info("Calibration saved to " + path);
+        return calibration;
+    }
+
+    private static Header readHeader(ByteBuffer buffer, long fileSize, Path path) throws IOException {
+        if (fileSize < HEADER_SIZE)
+            throw new IOException("Not a calibration file: " + path);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a calibration file: " + path);
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported calibration file version " + version + ": " + path);
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int bitDepth = buffer.getInt();
+        double expandRatio = buffer.getDouble();
+        int percentile = buffer.getInt();
+        int flatDownsample = buffer.getInt();
+        long flatChecksum = buffer.getLong();
+        double flatStainMean = buffer.getDouble();
+        double flatSurroundMean = buffer.getDouble();
+        boolean ringEmpty = buffer.getInt() != 0;
+        int stainRunCount = buffer.getInt();
+        int ringRunCount = buffer.getInt();
+        long bodyChecksum = buffer.getLong();
+        if (width <= 0 || height <= 0 || (bitDepth != 8 && bitDepth != 16 && bitDepth != 32) || stainRunCount < 0
+                || ringRunCount < 0)
+            throw new IOException("Invalid calibration file header: " + path);
+        Header header = new Header(width, height, bitDepth, expandRatio, percentile, flatDownsample, flatChecksum,
+                flatStainMean, flatSurroundMean, ringEmpty, stainRunCount, ringRunCount, bodyChecksum);
+        if (fileSize != HEADER_SIZE + header.bodySize())
+            throw new IOException("Calibration file is truncated or has trailing data: " + path);
+        return header;
+    }
+
+    private static void writeMask(RunLengthMask mask, FileChannel channel, CRC32 crc) throws IOException {
+        int height = mask.getHeight();
+        int runCount = mask.getRunCount();
+        ByteBuffer buffer = ByteBuffer.allocate(4 * (height + 1 + 2 * runCount)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y <= height; y++)
+            buffer.putInt(mask.firstRun(y));
+        for (int run = 0; run < runCount; run++)
+            buffer.putInt(mask.runStart(run));
+        for (int run = 0; run < runCount; run++)
+            buffer.putInt(mask.runEnd(run));
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        writeFully(channel, buffer);
+    }
+
+    private static RunLengthMask readMask(ByteBuffer buffer, int width, int height, int runCount) {
+        int[] rowFirstRun = new int[height + 1];
+        int[] runStart = new int[runCount];
+        int[] runEnd = new int[runCount];
+        buffer.asIntBuffer().get(rowFirstRun);
+        buffer.position(buffer.position() + 4 * rowFirstRun.length);
+        buffer.asIntBuffer().get(runStart);
+        buffer.position(buffer.position() + 4 * runCount);
+        buffer.asIntBuffer().get(runEnd);
+        buffer.position(buffer.position() + 4 * runCount);
+        return RunLengthMask.of(width, height, rowFirstRun, runStart, runEnd);
+    }
+
+    /** Writes the pixels little-endian to {@code channel} and adds them to {@code crc}. */
+    private static void writePixels(Object pixels, FileChannel channel, CRC32 crc) throws IOException {
+        ByteBuffer buffer = chunkBuffer(pixels);
+        for (int from = 0; from < pixelCount(pixels); from += CHUNK) {
+            fillChunk(pixels, from, buffer);
+            crc.update(buffer.duplicate());
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void updatePixels(Object pixels, CRC32 crc) {
+        ByteBuffer buffer = chunkBuffer(pixels);
+        for (int from = 0; from < pixelCount(pixels); from += CHUNK) {
+            fillChunk(pixels, from, buffer);
+            crc.update(buffer);
+        }
+    }
+
+    private static int pixelCount(Object pixels) {
+        if (pixels instanceof byte[])
+            return ((byte[]) pixels).length;
+        return pixels instanceof short[] ? ((short[]) pixels).length : ((float[]) pixels).length;
+    }
+
+    private static ByteBuffer chunkBuffer(Object pixels) {
+        int bytesPerPixel = pixels instanceof byte[] ? 1 : pixels instanceof short[] ? 2 : 4;
+        return ByteBuffer.allocate(CHUNK * bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Puts the little-endian bytes of at most CHUNK pixels from {@code from} into {@code buffer}, ready to read. */
+    private static void fillChunk(Object pixels, int from, ByteBuffer buffer) {
+        int count = Math.min(CHUNK, pixelCount(pixels) - from);
+        buffer.clear();
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels, from, count);
+            buffer.flip();
+            return;
+        }
+        if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels, from, count);
+            buffer.limit(count * 2);
+        } else {
+            buffer.asFloatBuffer().put((float[]) pixels, from, count);
+            buffer.limit(count * 4);
+        }
+    }
+
+    private static ImageProcessor readPixels(ByteBuffer buffer, int width, int height, int bitDepth) {
+        int n = width * height;
+        if (bitDepth == 8) {
+            byte[] pixels = new byte[n];
+            buffer.get(pixels);
+            return new ByteProcessor(width, height, pixels, null);
+        }
+        if (bitDepth == 16) {
+            short[] pixels = new short[n];
+            buffer.asShortBuffer().get(pixels);
+            return new ShortProcessor(width, height, pixels, null);
+        }
+        float[] pixels = new float[n];
+        buffer.asFloatBuffer().get(pixels);
+        return new FloatProcessor(width, height, pixels, null);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
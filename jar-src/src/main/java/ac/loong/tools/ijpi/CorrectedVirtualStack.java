@@ -0,0 +1,271 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual stack whose slices are the corrected slices of a source stack, computed
+ * when {@link #getProcessor} asks for them instead of all at once.
+ * <p>
+ * The last {@code cacheSize} corrected slices are kept (least recently used ones are
+ * evicted first), so scrolling back and forth does not correct a slice twice. With
+ * {@code readAhead > 0} a background thread corrects the next slices in the direction
+ * the user is scrolling. The source stack is read but never modified, so it has to
+ * stay open as long as this stack is used.
+ */
+public class CorrectedVirtualStack extends VirtualStack {
+
+    private final ImageStack source;
+    private final FlatFieldCalibration calibration;
+    private final BackgroundBlur pffcBlur;
+    private final double sparseNoiseFloor;
+    private final boolean integerOutput;
+    private final int cacheSize;
+    private final int readAhead;
+    private final DirtyStainsEngine engine;
+
+    private int[] sourceIndex; // 1-based source slice of each slice of this stack
+    private int lastRequested;
+    private final Map<Integer, ImageProcessor> cache;
+    private final Map<Integer, FutureTask<ImageProcessor>> pending = new HashMap<>();
+    private final ThreadPoolExecutor readAheadExecutor;
+
+    /**
+     * @param pffcBlur         blur of the PFFC background, or null to skip PFFC
+     * @param sparseNoiseFloor &lt; 0 for the whole-frame correction, see
+     *                         {@link DirtyStainsEngine#correctSlice(ImageProcessor, FlatFieldCalibration, BackgroundBlur, double)}
+     * @param integerOutput    keep the scale of an 8/16-bit sample instead of stretching each slice
+     * @param cacheSize        number of corrected slices kept in memory (at least 1)
+     * @param readAhead        number of slices corrected ahead of the viewed one, 0 for none
+     */
+    public CorrectedVirtualStack(ImageStack source, FlatFieldCalibration calibration, BackgroundBlur pffcBlur,
+            double sparseNoiseFloor, boolean integerOutput, int cacheSize, int readAhead) {
+        this(new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG), source, calibration, pffcBlur, sparseNoiseFloor,
+                integerOutput, cacheSize, readAhead);
+    }
+
+    /** Same as above, with the slices corrected by {@code engine} (e.g. one with a factor tolerance). */
+    public CorrectedVirtualStack(DirtyStainsEngine engine, ImageStack source, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur, double sparseNoiseFloor, boolean integerOutput, int cacheSize, int readAhead) {
+        super(source.getWidth(), source.getHeight(), source.getColorModel(), null);
+        if (cacheSize < 1)
+            throw new IllegalArgumentException("Cache size must be >= 1: " + cacheSize);
+        if (readAhead < 0)
+            throw new IllegalArgumentException("Read-ahead must be >= 0: " + readAhead);
+        this.engine = engine;
+        this.source = source;
+        this.calibration = calibration;
+        this.pffcBlur = pffcBlur;
+        this.sparseNoiseFloor = sparseNoiseFloor;
+        this.integerOutput = integerOutput;
+        this.cacheSize = cacheSize;
+        // 预读的切片也要留在缓存中，否则还没看到就被挤掉了
+        this.readAhead = Math.min(readAhead, cacheSize - 1);
+        this.sourceIndex = new int[source.getSize()];
+        for (int i = 0; i < sourceIndex.length; i++)
+            sourceIndex[i] = i + 1;
+        this.cache = new LinkedHashMap<Integer, ImageProcessor>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+                return size() > CorrectedVirtualStack.this.cacheSize;
+            }
+        };
+        this.readAheadExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Corrected stack read-ahead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.readAheadExecutor.allowCoreThreadTimeOut(true);
+        setBitDepth(source.getBitDepth());
+    }
+
+    /** Returns a copy of the corrected slice {@code n} (1-based); the cached slice is never handed out. */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        int slice;
+        synchronized (this) {
+            checkIndex(n);
+            slice = sourceIndex[n - 1];
+        }
+        ImageProcessor corrected = corrected(slice).duplicate();
+        scheduleReadAhead(n);
+        return corrected;
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    /** Corrected slices are computed, not stored: edits are not kept. */
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return sourceIndex.length;
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        int slice;
+        synchronized (this) {
+            checkIndex(n);
+            slice = sourceIndex[n - 1];
+        }
+        synchronized (source) {
+            return source.getSliceLabel(slice);
+        }
+    }
+
+    /** Removes slice {@code n} from this stack; the source stack is left unchanged. */
+    @Override
+    public synchronized void deleteSlice(int n) {
+        checkIndex(n);
+        int[] remaining = new int[sourceIndex.length - 1];
+        System.arraycopy(sourceIndex, 0, remaining, 0, n - 1);
+        System.arraycopy(sourceIndex, n, remaining, n - 1, remaining.length - (n - 1));
+        cache.remove(sourceIndex[n - 1]);
+        sourceIndex = remaining;
+    }
+
+    @Override
+    public synchronized void deleteLastSlice() {
+        if (sourceIndex.length > 0)
+            deleteSlice(sourceIndex.length);
+    }
+
+    /** Drops the cached slices and the pending read-ahead. */
+    public synchronized void clearCache() {
+        readAheadExecutor.getQueue().clear();
+        cache.clear();
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    private void checkIndex(int n) {
+        if (n < 1 || n > sourceIndex.length)
+            throw new IllegalArgumentException("Argument out of range: " + n);
+    }
+
+    /**
+     * The cached corrected source slice, computed by the calling thread if it is
+     * neither cached nor being computed by another thread.
+     */
+    private ImageProcessor corrected(final int slice) {
+        FutureTask<ImageProcessor> task;
+        boolean owner = false;
+        synchronized (this) {
+            ImageProcessor cached = cache.get(slice);
+            if (cached != null)
+                return cached;
+            task = pending.get(slice);
+            if (task == null) {
+                task = new FutureTask<>(() -> correct(slice));
+                pending.put(slice, task);
+                owner = true;
+            }
+        }
+        if (owner)
+            task.run();
+        try {
+            ImageProcessor corrected = task.get();
+            if (owner) {
+                synchronized (this) {
+                    cache.put(slice, corrected);
+                }
+            }
+            return corrected;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while correcting slice " + slice, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException("Correction of slice " + slice + " failed", cause);
+        } finally {
+            if (owner) {
+                synchronized (this) {
+                    pending.remove(slice);
+                }
+            }
+        }
+    }
+
+    private ImageProcessor correct(int slice) {
+        ImageProcessor sliceIp;
+        // 源堆栈可能是按需读盘的虚拟堆栈，读取过程不保证线程安全
+        synchronized (source) {
+            sliceIp = source.getProcessor(slice);
+        }
+        return engine.correctSlice(sliceIp, calibration, pffcBlur, sparseNoiseFloor, integerOutput);
+    }
+
+    /** Queues the next slices in the scrolling direction, replacing what was queued for an older request. */
+    private void scheduleReadAhead(int n) {
+        if (readAhead == 0)
+            return;
+        synchronized (this) {
+            int step = n >= lastRequested ? 1 : -1;
+            lastRequested = n;
+            readAheadExecutor.getQueue().clear();
+            for (int i = 1; i <= readAhead; i++) {
+                int next = n + i * step;
+                if (next < 1 || next > sourceIndex.length)
+                    break;
+                final int slice = sourceIndex[next - 1];
+                if (cache.containsKey(slice) || pending.containsKey(slice))
+                    continue;
+                readAheadExecutor.execute(() -> {
+                    try {
+                        corrected(slice);
+                    } catch (RuntimeException e) {
+                        // 预读失败不报告，查看该切片时会重新计算并抛出
+                    }
+                });
+            }
+        }
+    }
+}
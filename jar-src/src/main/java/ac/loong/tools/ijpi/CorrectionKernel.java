@@ -0,0 +1,429 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Fused output path: {@code sample + k * flat}, the optional PFFC division by the
+ * blurred background and the final conversion to the sample bit depth.
+ * <p>
+ * Produces the same pixels as {@code applyCorrection}, {@code pseudoFlatFieldCorrection}
+ * and {@code convertImageToMatch} chained together, but works on one float buffer
+ * (plus the blurred background when PFFC is enabled) instead of a fresh ImagePlus
+ * copy per step. The 8/16-bit output is scaled from the min/max of the float result,
+ * exactly like {@code convertToByte(true)} / {@code convertToShort(true)}.
+ */
+final class CorrectionKernel {
+
+    private CorrectionKernel() {
+    }
+
+    /**
+     * @param pffcBlur       blur of the PFFC background, or null to skip PFFC
+     * @param outputBitDepth 8, 16 or 32
+     * @param outputPixels   preallocated output array of the right type and size, or null
+     */
+    static ImageProcessor correct(ImageProcessor sampleIp, ImageProcessor preparedFlat, double k,
+            BackgroundBlur pffcBlur, int outputBitDepth, Object outputPixels) {
+        int width = sampleIp.getWidth();
+        int height = sampleIp.getHeight();
+        int pixelCount = width * height;
+        StageMetrics.Span correctionSpan = StageMetrics.start(StageMetrics.Stage.CORRECTION);
+        float[] corrected = new float[pixelCount];
+        addScaled(sampleIp.getPixels(), preparedFlat.getPixels(), k, corrected);
+        correctionSpan.end(pixelCount);
+        return finish(corrected, width, height, pffcBlur, outputBitDepth, outputPixels);
+    }
+
+    static ImageProcessor correct(ImageProcessor sampleIp, ImageProcessor preparedFlat, double k,
+            BackgroundBlur pffcBlur, int outputBitDepth) {
+        return correct(sampleIp, preparedFlat, k, pffcBlur, outputBitDepth, null);
+    }
+
+    /** PFFC and conversion of the corrected float image. */
+    private static ImageProcessor finish(float[] corrected, int width, int height, BackgroundBlur pffcBlur,
+            int outputBitDepth, Object outputPixels) {
+        int pixelCount = width * height;
+        if (pffcBlur != null) {
+            StageMetrics.Span pffcSpan = StageMetrics.start(StageMetrics.Stage.PFFC);
+            float[] background = corrected.clone();
+            pffcBlur.blur(new FloatProcessor(width, height, background, null));
+            double backgroundMean = mean(background);
+            if (backgroundMean != 0)
+                divideByBackground(corrected, background, backgroundMean);
+            pffcSpan.end(pixelCount);
+        }
+
+        StageMetrics.Span conversionSpan = StageMetrics.start(StageMetrics.Stage.CONVERSION);
+        ImageProcessor result = toBitDepth(corrected, width, height, outputBitDepth, outputPixels);
+        conversionSpan.end(pixelCount);
+        return result;
+    }
+
+    /**
+     * Sparse variant of {@link #correct}: the flat is only added inside {@code support}
+     * (see {@link FlatFieldCalibration#getCorrectionSupport(double)}); everywhere else it
+     * is taken as zero, so the output is the sample, rescaled like the rest. Without PFFC
+     * and for an 8/16-bit output no full float image is built: only the support is
+     * computed in float, and the remaining pixels go straight from the sample to the output.
+     */
+    static ImageProcessor correctSparse(ImageProcessor sampleIp, ImageProcessor preparedFlat, RunLengthMask support,
+            double k, BackgroundBlur pffcBlur, int outputBitDepth) {
+        int width = sampleIp.getWidth();
+        int height = sampleIp.getHeight();
+        Object samplePixels = sampleIp.getPixels();
+        Object flatPixels = preparedFlat.getPixels();
+        long supportCount = support.getPixelCount();
+
+        if (pffcBlur != null || outputBitDepth == 32 || samplePixels instanceof float[]) {
+            StageMetrics.Span correctionSpan = StageMetrics.start(StageMetrics.Stage.CORRECTION);
+            float[] corrected = new float[width * height];
+            addScaled(samplePixels, flatPixels, support, k, corrected);
+            correctionSpan.end(supportCount);
+            return finish(corrected, width, height, pffcBlur, outputBitDepth, null);
+        }
+
+        // 8/16 位输出且无 PFFC：只在支撑区内计算浮点值，其余像素直接由样本换算
+        StageMetrics.Span correctionSpan = StageMetrics.start(StageMetrics.Stage.CORRECTION);
+        float kf = (float) k;
+        float[] values = new float[(int) supportCount];
+        int v = 0;
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            for (int run = support.firstRun(y); run < support.firstRun(y + 1); run++) {
+                int from = offset + support.runStart(run);
+                int to = offset + support.runEnd(run);
+                addScaled(samplePixels, flatPixels, from, to, kf, values, v);
+                v += to - from;
+            }
+        }
+        double min = Float.MAX_VALUE;
+        double max = -Float.MAX_VALUE;
+        for (float value : values) {
+            if (!Float.isInfinite(value)) {
+                if (value < min)
+                    min = value;
+                if (value > max)
+                    max = value;
+            }
+        }
+        correctionSpan.end(supportCount);
+
+        StageMetrics.Span conversionSpan = StageMetrics.start(StageMetrics.Stage.CONVERSION);
+        int[] range = { Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            int x = 0;
+            for (int run = support.firstRun(y), last = support.firstRun(y + 1);; run++) {
+                int gapEnd = run < last ? support.runStart(run) : width;
+                sampleRange(samplePixels, offset + x, offset + gapEnd, range);
+                if (run == last)
+                    break;
+                x = support.runEnd(run);
+            }
+        }
+        if (range[0] <= range[1]) {
+            min = Math.min(min, range[0]);
+            max = Math.max(max, range[1]);
+        }
+        ImageProcessor result = outputBitDepth == 16
+                ? sparseToShort(samplePixels, values, support, width, height, min, max)
+                : sparseToByte(samplePixels, values, support, width, height, min, max);
+        conversionSpan.end((long) width * height);
+        return result;
+    }
+
+    /** Widens range = {min, max} to the 8/16-bit sample values of [from, to). */
+    private static void sampleRange(Object pixels, int from, int to, int[] range) {
+        int min = range[0];
+        int max = range[1];
+        if (pixels instanceof short[]) {
+            short[] sample = (short[]) pixels;
+            for (int i = from; i < to; i++) {
+                int value = sample[i] & 0xffff;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        } else {
+            byte[] sample = (byte[]) pixels;
+            for (int i = from; i < to; i++) {
+                int value = sample[i] & 0xff;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        range[0] = min;
+        range[1] = max;
+    }
+
+    // 与 toBitDepth 相同的换算公式，逐像素结果一致
+
+    private static ImageProcessor sparseToShort(Object pixels, float[] values, RunLengthMask support, int width,
+            int height, double min, double max) {
+        short[] out = new short[width * height];
+        double scale = (max - min) == 0.0 ? 1.0 : 65535.0 / (max - min);
+        int v = 0;
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            int x = 0;
+            for (int run = support.firstRun(y), last = support.firstRun(y + 1);; run++) {
+                int gapEnd = run < last ? support.runStart(run) : width;
+                if (pixels instanceof short[]) {
+                    short[] sample = (short[]) pixels;
+                    for (int i = offset + x, end = offset + gapEnd; i < end; i++)
+                        out[i] = toShort(sample[i] & 0xffff, min, scale);
+                } else {
+                    byte[] sample = (byte[]) pixels;
+                    for (int i = offset + x, end = offset + gapEnd; i < end; i++)
+                        out[i] = toShort(sample[i] & 0xff, min, scale);
+                }
+                if (run == last)
+                    break;
+                for (int i = offset + gapEnd, end = offset + support.runEnd(run); i < end; i++)
+                    out[i] = toShort(values[v++], min, scale);
+                x = support.runEnd(run);
+            }
+        }
+        ShortProcessor sp = new ShortProcessor(width, height, out, null);
+        sp.resetMinAndMax();
+        return sp;
+    }
+
+    private static short toShort(float pixel, double min, double scale) {
+        double value = (pixel - min) * scale + 0.5;
+        if (value < 0.0)
+            value = 0.0;
+        if (value > 65535.0)
+            value = 65535.0;
+        return (short) value;
+    }
+
+    private static ImageProcessor sparseToByte(Object pixels, float[] values, RunLengthMask support, int width,
+            int height, double min, double max) {
+        byte[] out = new byte[width * height];
+        double scale = 255.0 / (max - min);
+        int v = 0;
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            int x = 0;
+            for (int run = support.firstRun(y), last = support.firstRun(y + 1);; run++) {
+                int gapEnd = run < last ? support.runStart(run) : width;
+                if (pixels instanceof short[]) {
+                    short[] sample = (short[]) pixels;
+                    for (int i = offset + x, end = offset + gapEnd; i < end; i++)
+                        out[i] = toByte(sample[i] & 0xffff, min, scale);
+                } else {
+                    byte[] sample = (byte[]) pixels;
+                    for (int i = offset + x, end = offset + gapEnd; i < end; i++)
+                        out[i] = toByte(sample[i] & 0xff, min, scale);
+                }
+                if (run == last)
+                    break;
+                for (int i = offset + gapEnd, end = offset + support.runEnd(run); i < end; i++)
+                    out[i] = toByte(values[v++], min, scale);
+                x = support.runEnd(run);
+            }
+        }
+        return new ByteProcessor(width, height, out, null);
+    }
+
+    private static byte toByte(float pixel, double min, double scale) {
+        int value = (int) ((pixel - min) * scale + 0.5);
+        if (value < 0)
+            value = 0;
+        if (value > 255)
+            value = 255;
+        return (byte) value;
+    }
+
+    /** out[i] = sample[i] + flat[i] * k in float arithmetic, like FloatProcessor.multiply and Blitter.ADD. */
+    static void addScaled(Object samplePixels, Object flatPixels, double k, float[] out) {
+        int n = out.length;
+        float kf = (float) k;
+        // 平场与样本位深相同是常见情况，分别展开循环，避免逐像素的类型判断
+        if (samplePixels instanceof short[] && flatPixels instanceof short[]) {
+            short[] sample = (short[]) samplePixels;
+            short[] flat = (short[]) flatPixels;
+            for (int i = 0; i < n; i++)
+                out[i] = (sample[i] & 0xffff) + (flat[i] & 0xffff) * kf;
+        } else if (samplePixels instanceof byte[] && flatPixels instanceof byte[]) {
+            byte[] sample = (byte[]) samplePixels;
+            byte[] flat = (byte[]) flatPixels;
+            for (int i = 0; i < n; i++)
+                out[i] = (sample[i] & 0xff) + (flat[i] & 0xff) * kf;
+        } else if (samplePixels instanceof float[] && flatPixels instanceof float[]) {
+            float[] sample = (float[]) samplePixels;
+            float[] flat = (float[]) flatPixels;
+            for (int i = 0; i < n; i++)
+                out[i] = sample[i] + flat[i] * kf;
+        } else {
+            for (int i = 0; i < n; i++)
+                out[i] = value(samplePixels, i) + value(flatPixels, i) * kf;
+        }
+    }
+
+    /**
+     * Like {@link #addScaled(Object, Object, double, float[])}, with the flat taken as
+     * zero outside {@code support}.
+     */
+    static void addScaled(Object samplePixels, Object flatPixels, RunLengthMask support, double k, float[] out) {
+        int width = support.getWidth();
+        float kf = (float) k;
+        if (samplePixels instanceof float[]) {
+            System.arraycopy(samplePixels, 0, out, 0, out.length);
+        } else if (samplePixels instanceof short[]) {
+            short[] sample = (short[]) samplePixels;
+            for (int i = 0; i < out.length; i++)
+                out[i] = sample[i] & 0xffff;
+        } else {
+            byte[] sample = (byte[]) samplePixels;
+            for (int i = 0; i < out.length; i++)
+                out[i] = sample[i] & 0xff;
+        }
+        for (int y = 0, offset = 0; y < support.getHeight(); y++, offset += width) {
+            for (int run = support.firstRun(y); run < support.firstRun(y + 1); run++) {
+                int from = offset + support.runStart(run);
+                addScaled(samplePixels, flatPixels, from, offset + support.runEnd(run), kf, out, from);
+            }
+        }
+    }
+
+    /** out[outOffset ..] = sample[i] + flat[i] * kf for i in [from, to). */
+    private static void addScaled(Object samplePixels, Object flatPixels, int from, int to, float kf, float[] out,
+            int outOffset) {
+        int shift = outOffset - from;
+        if (samplePixels instanceof short[] && flatPixels instanceof short[]) {
+            short[] sample = (short[]) samplePixels;
+            short[] flat = (short[]) flatPixels;
+            for (int i = from; i < to; i++)
+                out[i + shift] = (sample[i] & 0xffff) + (flat[i] & 0xffff) * kf;
+        } else if (samplePixels instanceof byte[] && flatPixels instanceof byte[]) {
+            byte[] sample = (byte[]) samplePixels;
+            byte[] flat = (byte[]) flatPixels;
+            for (int i = from; i < to; i++)
+                out[i + shift] = (sample[i] & 0xff) + (flat[i] & 0xff) * kf;
+        } else {
+            for (int i = from; i < to; i++)
+                out[i + shift] = value(samplePixels, i) + value(flatPixels, i) * kf;
+        }
+    }
+
+    private static float value(Object pixels, int i) {
+        if (pixels instanceof float[])
+            return ((float[]) pixels)[i];
+        if (pixels instanceof short[])
+            return ((short[]) pixels)[i] & 0xffff;
+        return ((byte[]) pixels)[i] & 0xff;
+    }
+
+    /** Mean as reported by FloatStatistics: NaN and infinite pixels are ignored. */
+    static double mean(float[] pixels) {
+        double sum = 0;
+        long count = 0;
+        for (float v : pixels) {
+            if (v >= -Float.MAX_VALUE && v <= Float.MAX_VALUE) {
+                sum += v;
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * pixels[i] = pixels[i] * backgroundMean / background[i] in double arithmetic;
+     * pixels with a zero or NaN background are left unchanged.
+     */
+    static void divideByBackground(float[] pixels, float[] background, double backgroundMean) {
+        // 无分支的选择写法，JIT 可以将整个循环向量化
+        for (int i = 0; i < pixels.length; i++) {
+            float pixel = pixels[i];
+            float bg = background[i];
+            float divided = (float) ((pixel * backgroundMean) / bg);
+            pixels[i] = bg != 0 && bg == bg ? divided : pixel;
+        }
+    }
+
+    static ImageProcessor toBitDepth(float[] pixels, int width, int height, int bitDepth, Object outputPixels) {
+        if (bitDepth == 32) {
+            FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+            fp.resetMinAndMax();
+            return fp;
+        }
+        double[] minMax = minAndMax(pixels, 0, 0, width, width, height);
+        return toBitDepth(pixels, width, height, bitDepth, minMax[0], minMax[1], outputPixels);
+    }
+
+    /**
+     * Min and max of a rectangle of {@code pixels} (row length {@code stride}),
+     * ignoring NaN and infinite values like FloatProcessor.findMinAndMax.
+     * Returns {Float.MAX_VALUE, -Float.MAX_VALUE} if there is no finite pixel.
+     */
+    static double[] minAndMax(float[] pixels, int x0, int y0, int stride, int width, int height) {
+        double min = Float.MAX_VALUE;
+        double max = -Float.MAX_VALUE;
+        for (int y = y0; y < y0 + height; y++) {
+            for (int i = y * stride + x0, end = i + width; i < end; i++) {
+                float v = pixels[i];
+                if (!Float.isInfinite(v)) {
+                    if (v < min)
+                        min = v;
+                    if (v > max)
+                        max = v;
+                }
+            }
+        }
+        return new double[] { min, max };
+    }
+
+    /** 8/16-bit conversion scaled from the given range, as convertToByte(true) / convertToShort(true). */
+    static ImageProcessor toBitDepth(float[] pixels, int width, int height, int bitDepth, double min, double max,
+            Object outputPixels) {
+        if (bitDepth == 32)
+            return new FloatProcessor(width, height, pixels, null);
+        int n = pixels.length;
+        if (bitDepth == 16) {
+            short[] out = outputPixels instanceof short[] && ((short[]) outputPixels).length == n
+                    ? (short[]) outputPixels : new short[n];
+            double scale = (max - min) == 0.0 ? 1.0 : 65535.0 / (max - min);
+            for (int i = 0; i < n; i++) {
+                double value = (pixels[i] - min) * scale + 0.5;
+                if (value < 0.0)
+                    value = 0.0;
+                if (value > 65535.0)
+                    value = 65535.0;
+                out[i] = (short) value;
+            }
+            ShortProcessor sp = new ShortProcessor(width, height, out, null);
+            sp.resetMinAndMax();
+            return sp;
+        }
+
+        byte[] out = outputPixels instanceof byte[] && ((byte[]) outputPixels).length == n
+                ? (byte[]) outputPixels : new byte[n];
+        double scale = 255.0 / (max - min);
+        for (int i = 0; i < n; i++) {
+            int value = (int) ((pixels[i] - min) * scale + 0.5);
+            if (value < 0)
+                value = 0;
+            if (value > 255)
+                value = 255;
+            out[i] = (byte) value;
+        }
+        return new ByteProcessor(width, height, out, null);
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stain removal and PFFC computations, without dialogs or windows: flat
+ * calibration, correction of slices and stacks, PFFC and flat conversion.
+ * <p>
+ * An engine has no mutable state: everything a call needs is passed to it, and what
+ * used to be shown or logged along the way (debug images, warnings, stack progress)
+ * goes to the {@link Observer} given at construction. One engine can therefore be
+ * shared by the plugin, the batch tools and any number of threads, provided its
+ * observer is thread-safe. Calibrations are shared through the cache of
+ * {@link FlatFieldCalibration}.
+ */
+public final class DirtyStainsEngine {
+
+    private static final int MIN_PYRAMID_SIZE = 64; // Smallest side of the shrunk flat in pyramid mode
+    private static final int PILOT_SAMPLES = 1 << 14; // Pixels per region of the first sample of k
+    private static final int MIN_SAMPLING_STEP = 64; // Denser samples read as many cache lines as the exact pass
+    private static final double Z_95 = 1.959964; // Two-sided 95% quantile of the normal distribution
+
+    /**
+     * Receives the side output of an engine. Methods may be called from any thread
+     * the engine runs on; the defaults ignore everything.
+     */
+    public interface Observer {
+        /** Ignores everything. */
+        Observer NONE = new Observer() {
+        };
+        /** Writes the warnings and status messages to the ImageJ log. */
+        Observer LOG = new Observer() {
+            @Override
+            public void warning(String message) {
+                IJ.log(message);
+            }
+
+            @Override
+            public void info(String message) {
+                IJ.log(message);
+            }
+        };
+
+        /**
+         * True if intermediate images of the flat calibration are wanted; they are then
+         * copied and passed to {@link #intermediate}, and calibrations are always
+         * rebuilt instead of taken from the cache.
+         */
+        default boolean wantsIntermediates() {
+            return false;
+        }
+
+        /** An intermediate image, owned by the observer. */
+        default void intermediate(String title, ImageProcessor ip) {
+        }
+
+        default void warning(String message) {
+        }
+
+        /** A status message, e.g. that a calibration file was loaded or written. */
+        default void info(String message) {
+        }
+
+        /** {@code done} of {@code total} slices of a stack are corrected. */
+        default void progress(int done, int total) {
+        }
+
+        /** The brightness correction factor of an image or slice about to be corrected. */
+        default void correctionFactor(CorrectionFactor factor) {
+        }
+    }
+
+    /**
+     * The brightness correction factor k with its 95% confidence interval; the
+     * interval is empty (lower = upper = k) when k was computed from every pixel.
+     */
+    public static final class CorrectionFactor {
+        public final double k;
+        public final double lower;
+        public final double upper;
+        public final long sampledPixels; // pixels of the stain and ring regions that were read
+        public final long regionPixels;
+
+        CorrectionFactor(double k, double lower, double upper, long sampledPixels, long regionPixels) {
+            this.k = k;
+            this.lower = lower;
+            this.upper = upper;
+            this.sampledPixels = sampledPixels;
+            this.regionPixels = regionPixels;
+        }
+
+        public boolean isSampled() {
+            return sampledPixels < regionPixels;
+        }
+
+        @Override
+        public String toString() {
+            if (!isSampled())
+                return "k=" + IJ.d2s(k, 6) + " (exact, " + regionPixels + " pixels)";
+            return "k=" + IJ.d2s(k, 6) + " (95%: " + IJ.d2s(lower, 6) + " - " + IJ.d2s(upper, 6) + ", sampled "
+                    + sampledPixels + " of " + regionPixels + " pixels)";
+        }
+    }
+
+    private final Observer observer;
+    private final double factorTolerance;
+
+    /** An engine that shows and logs nothing. */
+    public DirtyStainsEngine() {
+        this(Observer.NONE);
+    }
+
+    public DirtyStainsEngine(Observer observer) {
+        this(observer, -1);
+    }
+
+    /**
+     * @param factorTolerance &lt; 0 to compute k from every stain and ring pixel; otherwise
+     *                        k is estimated from a stratified sample of them, and computed
+     *                        exactly only if the half-width of its 95% confidence interval
+     *                        stays above this tolerance
+     */
+    public DirtyStainsEngine(Observer observer, double factorTolerance) {
+        if (observer == null)
+            throw new IllegalArgumentException("Observer must not be null, use Observer.NONE.");
+        if (Double.isNaN(factorTolerance))
+            throw new IllegalArgumentException("Invalid correction factor tolerance.");
+        this.observer = observer;
+        this.factorTolerance = factorTolerance;
+    }
+
+    public Observer getObserver() {
+        return observer;
+    }
+
+    public double getFactorTolerance() {
+        return factorTolerance;
+    }
+
+    // --- Flat calibration ---
+
+    /**
+     * Returns the calibration of the flat image for the given parameters, reusing a
+     * cached one when the same flat has already been prepared. An observer that wants
+     * the intermediate images always gets a rebuilt calibration so that they are shown.
+     */
+    public FlatFieldCalibration getCalibration(ImagePlus flatImp, double expandRatio, int percentile,
+            int flatDownsample) {
+        FlatFieldCalibration.Key key = FlatFieldCalibration.keyOf(flatImp, expandRatio, percentile, flatDownsample);
+        if (!observer.wantsIntermediates()) {
+            FlatFieldCalibration cached = FlatFieldCalibration.getCached(key);
+            if (cached != null)
+                return cached;
+        }
+        FlatFieldCalibration calibration = buildCalibration(flatImp, expandRatio, percentile, flatDownsample);
+        FlatFieldCalibration.putCached(key, calibration);
+        return calibration;
+    }
+
+    public FlatFieldCalibration getCalibration(ImagePlus flatImp, double expandRatio, int percentile) {
+        return getCalibration(flatImp, expandRatio, percentile, 1);
+    }
+
+    public FlatFieldCalibration buildCalibration(ImagePlus flatImp, double expandRatio, int percentile,
+            int flatDownsample) {
+        ImageProcessor preparedFlat = prepareFlatField(flatImp, flatDownsample);
+        RunLengthMask stainMask = createDirtyMask(preparedFlat, percentile);
+        return calibrate(preparedFlat, stainMask, expandRatio, percentile, flatDownsample);
+    }
+
+    FlatFieldCalibration calibrate(ImageProcessor preparedFlat, RunLengthMask stainMask, double expandRatio,
+            int percentile, int flatDownsample) {
+        RunLengthMask ringMask = createRingMask(stainMask, expandRatio);
+        StageMetrics.Span statisticsSpan = StageMetrics.start(StageMetrics.Stage.STATISTICS);
+        RegionStatistics flatStats = RegionStatistics.measure(preparedFlat, stainMask, ringMask);
+        statisticsSpan.end(preparedFlat.getPixelCount());
+        boolean ringEmpty = flatStats.getRingCount() == 0;
+        double[] flatMeasures = measureRegions(flatStats, ringEmpty);
+        return new FlatFieldCalibration(preparedFlat, stainMask, ringMask, flatMeasures[0], flatMeasures[1],
+                ringEmpty, expandRatio, percentile, flatDownsample);
+    }
+
+    ImageProcessor prepareFlatField(ImagePlus flatImp, int downsample) {
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.FLAT_PREPARATION);
+        ImageProcessor ip = flatImp.getProcessor().duplicate();
+        ip.invert();
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_1.1-Inverted", ip.duplicate());
+
+        int factor = Math.min(downsample, Math.min(ip.getWidth(), ip.getHeight()) / MIN_PYRAMID_SIZE);
+        if (factor > 1) {
+            subtractPyramidBackground(ip, factor);
+        } else {
+            BackgroundSubtracter ba = new BackgroundSubtracter();
+            ba.rollingBallBackground(ip, ip.getWidth(), false, false, true, true, true);
+        }
+        span.end(ip.getPixelCount());
+
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_1.2-BackgroundSubtracted", ip.duplicate());
+        return ip;
+    }
+
+    /**
+     * Rolling-ball background estimated on a flat shrunk by {@code factor} (block
+     * averaging), upsampled bilinearly and subtracted at full resolution. The ball
+     * radius is the image width as in the exact path; the background is so smooth
+     * that the result hardly differs, at a fraction of the cost on large sensors.
+     */
+    private void subtractPyramidBackground(ImageProcessor ip, int factor) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        ImageProcessor small = ip.convertToFloat().resize(width / factor, height / factor, true);
+        BackgroundSubtracter ba = new BackgroundSubtracter();
+        ba.rollingBallBackground(small, small.getWidth(), true, false, true, true, true);
+
+        small.setInterpolationMethod(ImageProcessor.BILINEAR);
+        float[] background = (float[]) small.resize(width, height).getPixels();
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_1.15-Pyramid_Background",
+                    new FloatProcessor(width, height, background.clone(), null));
+
+        // 与 rollingBallBackground 一致：整数图像减去背景后截断为非负
+        Object pixels = ip.getPixels();
+        if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < p.length; i++)
+                p[i] -= background[i];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0; i < p.length; i++) {
+                int v = Math.round((p[i] & 0xffff) - background[i]);
+                p[i] = (short) (v < 0 ? 0 : v > 65535 ? 65535 : v);
+            }
+        } else {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < p.length; i++) {
+                int v = Math.round((p[i] & 0xff) - background[i]);
+                p[i] = (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+            }
+        }
+    }
+
+    RunLengthMask createDirtyMask(ImageProcessor preparedIp, int percentile) {
+        StageMetrics.Span thresholdSpan = StageMetrics.start(StageMetrics.Stage.THRESHOLD);
+        ImageProcessor ip = preparedIp.duplicate();
+        ip.setAutoThreshold(AutoThresholder.Method.MaxEntropy, true, ImageProcessor.BLACK_AND_WHITE_LUT);
+        ByteProcessor maskBp = ip.createMask();
+        thresholdSpan.end(ip.getPixelCount());
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_2.1-Thresholded_Mask", maskBp.duplicate());
+
+        StageMetrics.Span filterSpan = StageMetrics.start(StageMetrics.Stage.PARTICLE_FILTER);
+        RunLengthMask filteredMask = filterSmallRegions(maskBp, percentile);
+        filterSpan.end(maskBp.getPixelCount());
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_2.2-Small_Particle_Filtered_Mask", filteredMask.toByteProcessor());
+
+        return filteredMask;
+    }
+
+    RunLengthMask filterSmallRegions(ByteProcessor maskBp, int percentile) {
+        // 与 ParticleAnalyzer 对二值图的约定一致：由 LUT 与“黑色背景”选项决定分析 255 还是 0
+        int foreground = Prefs.blackBackground != maskBp.isInvertedLut() ? 255 : 0;
+        ParticleLabeling particles = ParticleLabeling.label(maskBp, foreground);
+
+        if (particles.getParticleCount() == 0) {
+            observer.warning("No particles found in the mask.");
+            return RunLengthMask.of(maskBp);
+        }
+
+        // 计算面积阈值（按去重后的面积取百分位）
+        double minArea = particles.minAreaForPercentile(percentile);
+
+        return particles.toRunLengthMask(minArea);
+    }
+
+    RunLengthMask createRingMask(RunLengthMask mask, double expandRatio) {
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.RING_EXPANSION);
+        // 扩展区域
+        RunLengthMask expandedMask = expandMask(mask, expandRatio);
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_Expanded_Mask_in_Measure", expandedMask.toByteProcessor());
+
+        RunLengthMask ringMask = expandedMask.xor(mask);
+        span.end((long) mask.getWidth() * mask.getHeight());
+        if (observer.wantsIntermediates())
+            observer.intermediate("Debug_XOR_Ring_Mask_in_Measure", ringMask.toByteProcessor());
+        return ringMask;
+    }
+
+    RunLengthMask expandMask(RunLengthMask mask, double ratio) {
+        // 等价于 steps 次 erode()（3x3 扩张），直接在游程上做，耗时随半径对数增长
+        return mask.dilate(expandSteps(mask.getWidth(), ratio));
+    }
+
+    /** Number of 3x3 expansion steps of the ring, derived from the image width. */
+    static int expandSteps(int width, double ratio) {
+        return Math.max(1, (int) (width * ratio / 10));
+    }
+
+    static double[] measureRegions(RegionStatistics stats, boolean ringEmpty) {
+        // 原始污渍区域
+        double stainMean = stats.getStainMean();
+
+        // 有效性检查：周边区域为空时以污渍均值代替
+        if (ringEmpty)
+            return new double[] { stainMean, stainMean };
+
+        double surroundMean = stats.getRingMean();
+        return new double[] { stainMean, surroundMean };
+    }
+
+    // --- Correction ---
+
+    double calculateCorrectionFactor(ImageProcessor sampleIp, FlatFieldCalibration calibration) {
+        try {
+            CorrectionFactor factor = estimateCorrectionFactor(sampleIp, calibration);
+            observer.correctionFactor(factor);
+            return factor.k;
+        } catch (Exception e) {
+            observer.warning("Error calculating brightness correction factor: " + e);
+            return 1.0;
+        }
+    }
+
+    /**
+     * The brightness correction factor of {@code sampleIp}: exact, or sampled if this
+     * engine has a factor tolerance (see {@link #DirtyStainsEngine(Observer, double)}).
+     */
+    public CorrectionFactor estimateCorrectionFactor(ImageProcessor sampleIp, FlatFieldCalibration calibration) {
+        // 平场图像参数（已在标定时计算）
+        double mStain = calibration.getFlatStainMean();
+        double mSurround = calibration.getFlatSurroundMean();
+        RunLengthMask stainRuns = calibration.getStainRuns();
+        RunLengthMask ringRuns = calibration.getRingRuns();
+
+        // 样本图像参数
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.STATISTICS);
+        CorrectionFactor factor = null;
+        double denominator = mStain - mSurround;
+        // 周边区域为空或分母过小时 k 与样本无关，无需抽样
+        if (factorTolerance >= 0 && !calibration.isRingEmpty() && Math.abs(denominator) >= 1e-6)
+            factor = sampledCorrectionFactor(sampleIp, stainRuns, ringRuns, mStain, mSurround);
+        if (factor == null) {
+            RegionStatistics sampleStats = RegionStatistics.measure(sampleIp, stainRuns, ringRuns);
+            double[] sampleMeasures = measureRegions(sampleStats, calibration.isRingEmpty());
+            double k = correctionFactor(mStain, mSurround, sampleMeasures[0], sampleMeasures[1]);
+            long regionPixels = sampleStats.getStainCount() + sampleStats.getRingCount();
+            factor = new CorrectionFactor(k, k, k, regionPixels, regionPixels);
+        }
+        span.end(sampleIp.getPixelCount());
+        return factor;
+    }
+
+    /**
+     * k from stratified samples of the stain and ring regions, or null if the exact
+     * pass is needed: when the regions are too small for sampling to pay off, or when
+     * the 95% interval is still wider than the tolerance after a second, denser sample
+     * sized from the variance of the first.
+     */
+    private CorrectionFactor sampledCorrectionFactor(ImageProcessor sampleIp, RunLengthMask stainRuns,
+            RunLengthMask ringRuns, double mStain, double mSurround) {
+        long stainPixels = stainRuns.getPixelCount();
+        long ringPixels = ringRuns.getPixelCount();
+        long stainStep = stainPixels / PILOT_SAMPLES;
+        long ringStep = ringPixels / PILOT_SAMPLES;
+        for (int stage = 0; stage < 2; stage++) {
+            if (stainStep < MIN_SAMPLING_STEP && ringStep < MIN_SAMPLING_STEP)
+                return null;
+            SampledRegionMean stain = sampledMean(sampleIp, stainRuns, stainStep);
+            SampledRegionMean ring = sampledMean(sampleIp, ringRuns, ringStep);
+            double denominator = mStain - mSurround;
+            double rawK = -(stain.getMean() - ring.getMean()) / denominator;
+            double halfWidth = Z_95 * Math.sqrt(stain.getVariance() + ring.getVariance()) / Math.abs(denominator);
+            if (halfWidth <= factorTolerance)
+                return new CorrectionFactor(Math.max(0, rawK), Math.max(0, rawK - halfWidth),
+                        Math.max(0, rawK + halfWidth), stain.getSampleCount() + ring.getSampleCount(),
+                        stainPixels + ringPixels);
+            // 方差与样本数成反比：按所需的缩减比例加密抽样，并留出余量，以免第二次抽样因估计误差而失败
+            double shrink = 0.8 * (factorTolerance / halfWidth) * (factorTolerance / halfWidth);
+            stainStep = (long) (stainStep * shrink);
+            ringStep = (long) (ringStep * shrink);
+        }
+        return null;
+    }
+
+    /** The region mean from every {@code step}-th pixel, or from all pixels if sampling would not pay off. */
+    private static SampledRegionMean sampledMean(ImageProcessor ip, RunLengthMask mask, long step) {
+        int pixelStep = step < MIN_SAMPLING_STEP ? 1 : (int) Math.min(step, Integer.MAX_VALUE);
+        return SampledRegionMean.measure(ip, mask, pixelStep);
+    }
+
+    static double correctionFactor(double mStain, double mSurround, double sStain, double sSurround) {
+        // 安全计算系数
+        double denominator = mStain - mSurround;
+        if (Math.abs(denominator) < 1e-6 || Double.isNaN(denominator))
+            return 1.0;
+
+        double k = (-1) * (sStain - sSurround) / denominator;
+        return Math.max(0, k);
+    }
+
+    /** sample + k * flat as a float image, keeping the metadata of the sample. */
+    ImagePlus applyCorrection(ImagePlus sampleImp, ImageProcessor processedFp, double k) {
+        ImageProcessor result = applyCorrection(sampleImp.getProcessor(), processedFp, k);
+
+        // 直接复制原始图像并替换其像素值以保留元数据
+        ImagePlus cleanedImp = sampleImp.duplicate();
+        cleanedImp.setProcessor(result);
+
+        cleanedImp.setTitle("Cleaned_RAW_" + sampleImp.getTitle());
+
+        return cleanedImp;
+    }
+
+    ImageProcessor applyCorrection(ImageProcessor sampleIp, ImageProcessor processedFp, double k) {
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.CORRECTION);
+        // 与 multiply(k) + Blitter.ADD 逐像素相同，但不复制两份浮点图像
+        float[] pixels = new float[sampleIp.getPixelCount()];
+        CorrectionKernel.addScaled(sampleIp.getPixels(), processedFp.getPixels(), k, pixels);
+        ImageProcessor result = new FloatProcessor(sampleIp.getWidth(), sampleIp.getHeight(), pixels, null);
+        result.resetMinAndMax();
+        span.end(result.getPixelCount());
+        return result;
+    }
+
+    /**
+     * Stain removal of the whole image as a float image ("Cleaned_" title), before
+     * PFFC; with a non-negative {@code sparseNoiseFloor} only the stains and their
+     * rings are corrected.
+     */
+    public ImagePlus removeFixedStains(ImagePlus sampleImp, FlatFieldCalibration calibration,
+            double sparseNoiseFloor) {
+        double k = calculateCorrectionFactor(sampleImp.getProcessor(), calibration);
+        ImagePlus result;
+        if (sparseNoiseFloor < 0) {
+            result = applyCorrection(sampleImp, calibration.getPreparedFlat(), k);
+        } else {
+            result = sampleImp.duplicate();
+            result.setProcessor(CorrectionKernel.correctSparse(sampleImp.getProcessor(), calibration.getPreparedFlat(),
+                    calibration.getCorrectionSupport(sparseNoiseFloor), k, null, 32));
+        }
+        result.setTitle("Cleaned_" + sampleImp.getTitle());
+        return result;
+    }
+
+    /** Stain removal (and optional PFFC) of a single slice, converted back to the sample bit depth. */
+    public ImageProcessor correctSlice(ImageProcessor sampleIp, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur) {
+        return correctSlice(sampleIp, calibration, pffcBlur, -1);
+    }
+
+    /**
+     * With a non-negative {@code sparseNoiseFloor}, only the stains and their rings are
+     * corrected, and flat pixels whose magnitude is at most the floor count as zero.
+     */
+    public ImageProcessor correctSlice(ImageProcessor sampleIp, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur, double sparseNoiseFloor) {
+        return correctSlice(sampleIp, calibration, pffcBlur, sparseNoiseFloor, false);
+    }
+
+    /**
+     * With {@code integerOutput}, an 8/16-bit result keeps the scale of the sample
+     * (saturated at the type range) instead of being stretched to its own min/max.
+     */
+    public ImageProcessor correctSlice(ImageProcessor sampleIp, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur, double sparseNoiseFloor, boolean integerOutput) {
+        double k = calculateCorrectionFactor(sampleIp, calibration);
+        if (integerOutput && IntegerCorrectionKernel.supports(sampleIp))
+            return IntegerCorrectionKernel.correct(sampleIp, calibration.getPreparedFlat(),
+                    sparseNoiseFloor >= 0 ? calibration.getCorrectionSupport(sparseNoiseFloor) : null, k, pffcBlur);
+        if (sparseNoiseFloor >= 0)
+            return CorrectionKernel.correctSparse(sampleIp, calibration.getPreparedFlat(),
+                    calibration.getCorrectionSupport(sparseNoiseFloor), k, pffcBlur, sampleIp.getBitDepth());
+        return CorrectionKernel.correct(sampleIp, calibration.getPreparedFlat(), k, pffcBlur, sampleIp.getBitDepth());
+    }
+
+    /**
+     * Corrects every slice of {@code sourceStack} against one flat calibration, in
+     * parallel on a fork-join pool of {@code threads} threads (0 = all cores); the
+     * slices keep their order and labels. Stage metrics active on the calling thread
+     * are recorded for every slice.
+     */
+    public ImageStack correctStack(final ImageStack sourceStack, final FlatFieldCalibration calibration,
+            final BackgroundBlur pffcBlur, final double sparseNoiseFloor, final boolean integerOutput, int threads)
+            throws InterruptedException, ExecutionException {
+        final int size = sourceStack.getSize();
+        final boolean virtual = sourceStack.isVirtual();
+        final AtomicInteger done = new AtomicInteger();
+        final StageMetrics metrics = StageMetrics.current();
+
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, size)));
+        List<ForkJoinTask<ImageProcessor>> tasks = new ArrayList<>(size);
+        try {
+            for (int i = 1; i <= size; i++) {
+                final int slice = i;
+                tasks.add(pool.submit(() -> {
+                    ImageProcessor sliceIp;
+                    if (virtual) {
+                        // 虚拟堆栈按需从磁盘读取，读取过程不保证线程安全
+                        synchronized (sourceStack) {
+                            sliceIp = sourceStack.getProcessor(slice);
+                        }
+                    } else {
+                        sliceIp = sourceStack.getProcessor(slice);
+                    }
+                    ImageProcessor corrected;
+                    StageMetrics.Activation activation = StageMetrics.activate(metrics);
+                    try {
+                        corrected = correctSlice(sliceIp, calibration, pffcBlur, sparseNoiseFloor, integerOutput);
+                    } finally {
+                        activation.close();
+                    }
+                    observer.progress(done.incrementAndGet(), size);
+                    return corrected;
+                }));
+            }
+
+            ImageStack resultStack = new ImageStack(sourceStack.getWidth(), sourceStack.getHeight());
+            for (int i = 0; i < size; i++) {
+                resultStack.addSlice(sourceStack.getSliceLabel(i + 1), tasks.get(i).get());
+            }
+            return resultStack;
+        } finally {
+            pool.shutdownNow();
+            observer.progress(size, size);
+        }
+    }
+
+    // --- PFFC ---
+
+    /** The blurred background of {@code ip} used by PFFC, as a new float image. */
+    public FloatProcessor pffcBackground(ImageProcessor ip, BackgroundBlur blur) {
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.PFFC);
+        FloatProcessor background = (FloatProcessor) ip.duplicate().convertToFloat();
+        blur.blur(background);
+        span.end(ip.getPixelCount());
+        return background;
+    }
+
+    /**
+     * {@code impToCorrect} divided by {@code background} and multiplied by its mean, as a
+     * float image; unchanged (as a copy) if the mean of the background is zero.
+     */
+    public ImagePlus applyPffcBackground(ImagePlus impToCorrect, ImageProcessor background) {
+        ImagePlus outputImp = impToCorrect.duplicate();
+        outputImp.setTitle("PFFC_Applied_to_" + impToCorrect.getTitle());
+        double backgroundMeanIntensity = background.getStatistics().mean;
+        if (backgroundMeanIntensity == 0)
+            return outputImp;
+
+        StageMetrics.Span divisionSpan = StageMetrics.start(StageMetrics.Stage.PFFC);
+        ImageProcessor ip = impToCorrect.getProcessor();
+        ImageProcessor floatOutputIp = ip instanceof FloatProcessor ? ip.duplicate() : ip.convertToFloat();
+        CorrectionKernel.divideByBackground((float[]) floatOutputIp.getPixels(), (float[]) background.getPixels(),
+                backgroundMeanIntensity);
+        floatOutputIp.resetMinAndMax();
+        outputImp.setProcessor(floatOutputIp);
+        divisionSpan.end(0); // 像素数已计入背景估计
+        return outputImp;
+    }
+
+    /** PFFC of the whole image: {@link #pffcBackground} followed by {@link #applyPffcBackground}. */
+    public ImagePlus pseudoFlatFieldCorrection(ImagePlus impToCorrect, BackgroundBlur blur) {
+        return applyPffcBackground(impToCorrect, pffcBackground(impToCorrect.getProcessor(), blur));
+    }
+
+    // --- Flat conversion ---
+
+    public boolean areImagesCompatible(ImagePlus imp1, ImagePlus imp2) {
+        return imp1.getWidth() == imp2.getWidth() &&
+                imp1.getHeight() == imp2.getHeight() &&
+                imp1.getBitDepth() == imp2.getBitDepth() &&
+                imp1.getType() == imp2.getType();
+    }
+
+    /** A copy of {@code source} resized and converted to the size, bit depth and type of {@code target}. */
+    public ImagePlus convertImageToMatch(ImagePlus source, ImagePlus target) {
+        StageMetrics.Span span = StageMetrics.start(StageMetrics.Stage.CONVERSION);
+        ImageProcessor sourceIp = source.getProcessor();
+
+        // 如果尺寸不同，进行缩放
+        if (source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
+            sourceIp = sourceIp.resize(target.getWidth(), target.getHeight());
+        }
+
+        // 如果位深不同，进行转换
+        if (source.getBitDepth() != target.getBitDepth()) {
+            sourceIp = convertToBitDepth(sourceIp, target.getBitDepth());
+        }
+
+        // 如果类型不同（例如RGB vs 灰度），进行转换
+        if (source.getType() != target.getType()) {
+            if (target.getType() == ImagePlus.COLOR_RGB) {
+                sourceIp = sourceIp.convertToRGB();
+            }
+        }
+
+        // 复制目标图像并替换其像素值以保留元数据
+        ImagePlus convertedImp = source.duplicate();
+        convertedImp.setProcessor(sourceIp);
+        convertedImp.setTitle(source.getTitle());
+        span.end(sourceIp.getPixelCount());
+
+        return convertedImp;
+    }
+
+    private static ImageProcessor convertToBitDepth(ImageProcessor ip, int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+                return ip.convertToByte(true);
+            case 16:
+                return ip.convertToShort(true);
+            case 32:
+                return ip.convertToFloat();
+            default:
+                return ip;
+        }
+    }
+}
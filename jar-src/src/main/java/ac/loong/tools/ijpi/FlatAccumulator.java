@@ -0,0 +1,276 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Combines many flat exposures into one master flat, one frame at a time, so the
+ * memory does not grow with the number of frames.
+ * <ul>
+ * <li>{@link Method#MEAN}: running (Welford) mean, one pass.</li>
+ * <li>{@link Method#SIGMA_CLIPPED_MEAN}: the first pass computes the mean and the
+ * standard deviation of every pixel; each following pass averages only the values
+ * within kappa sigma of the previous pass. The frames are fed again for every pass
+ * ({@link #getPassCount()}).</li>
+ * <li>{@link Method#MEDIAN}: remedian, one pass. Frames are buffered by groups of
+ * {@code base}; a full group is replaced by its median at the next level, so only
+ * {@code base} frames per level (log<sub>base</sub> of the frame count) are kept.
+ * The final estimate is the weighted median of what is left in the buffers, which
+ * is the exact median as long as there are no more than {@code base} frames.</li>
+ * </ul>
+ */
+public final class FlatAccumulator {
+
+    public enum Method {
+        MEAN("Mean"),
+        SIGMA_CLIPPED_MEAN("Sigma-clipped mean"),
+        MEDIAN("Median (remedian, approximate)");
+
+        private final String label;
+
+        Method(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public static String[] labels() {
+            Method[] methods = values();
+            String[] labels = new String[methods.length];
+            for (int i = 0; i < methods.length; i++)
+                labels[i] = methods[i].label;
+            return labels;
+        }
+
+        public static Method fromLabel(String label) {
+            for (Method method : values()) {
+                if (method.label.equals(label) || method.name().equalsIgnoreCase(label))
+                    return method;
+            }
+            return SIGMA_CLIPPED_MEAN;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final Method method;
+    private final double kappa;
+    private final int passes;
+    private final int base;
+
+    private int pass;
+    private int frames;
+    private final float[] frame;
+
+    // (clipped) mean
+    private float[] mean;
+    private float[] m2;
+    private int[] count;
+    private float[] low; // values outside [low, high] are rejected; null in the first pass
+    private float[] high;
+
+    // remedian: level l holds up to base frames, each worth base^l input frames
+    private final List<float[]> levels = new ArrayList<>();
+    private final List<Integer> levelFill = new ArrayList<>();
+
+    /**
+     * @param kappa      clipping threshold in standard deviations (sigma-clipped mean)
+     * @param iterations clipping passes after the first one (sigma-clipped mean)
+     * @param base       odd number of frames per remedian level (median)
+     */
+    public FlatAccumulator(int width, int height, Method method, double kappa, int iterations, int base) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height + ".");
+        if (method == Method.SIGMA_CLIPPED_MEAN && (!(kappa > 0) || iterations < 1))
+            throw new IllegalArgumentException("Clipping threshold must be > 0 and iterations >= 1.");
+        if (method == Method.MEDIAN && (base < 3 || base % 2 == 0))
+            throw new IllegalArgumentException("Median buffer base must be odd and >= 3.");
+        this.width = width;
+        this.height = height;
+        this.method = method;
+        this.kappa = kappa;
+        this.passes = method == Method.SIGMA_CLIPPED_MEAN ? iterations + 1 : 1;
+        this.base = base;
+        int n = width * height;
+        this.frame = new float[n];
+        if (method != Method.MEDIAN) {
+            mean = new float[n];
+            count = new int[n];
+            if (method == Method.SIGMA_CLIPPED_MEAN)
+                m2 = new float[n];
+        }
+    }
+
+    /** Number of times every frame has to be {@link #add added}, separated by {@link #nextPass()}. */
+    public int getPassCount() {
+        return passes;
+    }
+
+    /** Frames added in the current pass. */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public void add(ImageProcessor ip) {
+        if (ip instanceof ColorProcessor)
+            throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        if (ip.getWidth() != width || ip.getHeight() != height)
+            throw new IllegalArgumentException("Flat frame size " + ip.getWidth() + "x" + ip.getHeight()
+                    + " differs from " + width + "x" + height + ".");
+        for (int i = 0; i < frame.length; i++)
+            frame[i] = ip.getf(i);
+        if (method == Method.MEDIAN)
+            push(0, frame);
+        else
+            accumulate(frame);
+        frames++;
+    }
+
+    private void accumulate(float[] values) {
+        for (int i = 0; i < values.length; i++) {
+            float x = values[i];
+            if (low != null && (x < low[i] || x > high[i]))
+                continue;
+            int c = ++count[i];
+            float delta = x - mean[i];
+            mean[i] += delta / c;
+            if (m2 != null)
+                m2[i] += delta * (x - mean[i]);
+        }
+    }
+
+    /** Ends the current pass; the clipping bounds of the next one come from its statistics. */
+    public void nextPass() {
+        if (pass + 1 >= passes)
+            throw new IllegalStateException("All " + passes + " passes have already been made.");
+        if (frames == 0)
+            throw new IllegalStateException("No frame was added in pass " + (pass + 1) + ".");
+        int n = mean.length;
+        if (low == null) {
+            low = new float[n];
+            high = new float[n];
+        }
+        for (int i = 0; i < n; i++) {
+            if (count[i] == 0)
+                continue; // 全部被剔除时沿用上一轮的界限
+            double sigma = count[i] > 1 ? Math.sqrt(m2[i] / (count[i] - 1)) : 0.0;
+            low[i] = (float) (mean[i] - kappa * sigma);
+            high[i] = (float) (mean[i] + kappa * sigma);
+        }
+        Arrays.fill(mean, 0f);
+        Arrays.fill(m2, 0f);
+        Arrays.fill(count, 0);
+        pass++;
+        frames = 0;
+    }
+
+    private void push(int level, float[] values) {
+        int n = values.length;
+        if (level == levels.size()) {
+            levels.add(new float[base * n]);
+            levelFill.add(0);
+        }
+        float[] buffer = levels.get(level);
+        int fill = levelFill.get(level);
+        System.arraycopy(values, 0, buffer, fill * n, n);
+        if (++fill < base) {
+            levelFill.set(level, fill);
+            return;
+        }
+        levelFill.set(level, 0);
+        float[] medians = new float[n];
+        float[] group = new float[base];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < base; k++)
+                group[k] = buffer[k * n + i];
+            Arrays.sort(group);
+            medians[i] = group[base / 2];
+        }
+        push(level + 1, medians);
+    }
+
+    /** The master flat as a 32-bit image. */
+    public FloatProcessor getResult() {
+        if (frames == 0)
+            throw new IllegalStateException("No flat frame was added.");
+        if (pass + 1 < passes)
+            throw new IllegalStateException("Only " + (pass + 1) + " of " + passes + " passes were made.");
+        int n = width * height;
+        float[] result = new float[n];
+        if (method == Method.MEDIAN) {
+            weightedMedian(result);
+        } else {
+            for (int i = 0; i < n; i++)
+                result[i] = count[i] > 0 ? mean[i] : (low[i] + high[i]) / 2;
+        }
+        return new FloatProcessor(width, height, result, null);
+    }
+
+    private void weightedMedian(float[] result) {
+        int n = result.length;
+        int size = 0;
+        for (int fill : levelFill)
+            size += fill;
+        float[] values = new float[size];
+        long[] weights = new long[size];
+        long totalWeight = 0;
+        for (int i = 0; i < n; i++) {
+            int m = 0;
+            long weight = 1;
+            for (int level = 0; level < levels.size(); level++, weight *= base) {
+                float[] buffer = levels.get(level);
+                for (int k = 0; k < levelFill.get(level); k++) {
+                    // 插入排序，元素个数不超过 base * 层数
+                    float value = buffer[k * n + i];
+                    int j = m++;
+                    while (j > 0 && values[j - 1] > value) {
+                        values[j] = values[j - 1];
+                        weights[j] = weights[j - 1];
+                        j--;
+                    }
+                    values[j] = value;
+                    weights[j] = weight;
+                }
+            }
+            if (i == 0) {
+                for (int j = 0; j < m; j++)
+                    totalWeight += weights[j];
+            }
+            long cumulative = 0;
+            for (int j = 0; j < m; j++) {
+                cumulative += weights[j];
+                if (2 * cumulative == totalWeight && j + 1 < m) {
+                    result[i] = (values[j] + values[j + 1]) / 2;
+                    break;
+                }
+                if (2 * cumulative > totalWeight) {
+                    result[i] = values[j];
+                    break;
+                }
+            }
+        }
+    }
+}
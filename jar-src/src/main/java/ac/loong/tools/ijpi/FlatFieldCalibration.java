@@ -0,0 +1,262 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Everything that only depends on the flat-field image and the expand/percentile
+ * parameters: the prepared (inverted, background subtracted) flat, the filtered
+ * stain mask, the surrounding ring mask and the flat region means. The masks are
+ * kept as runs, a small fraction of the size of the flat.
+ * <p>
+ * Instances are immutable by contract: callers must duplicate the processors
+ * before modifying them, since the same calibration is shared through the cache.
+ */
+public final class FlatFieldCalibration {
+
+    private static final int DEFAULT_CACHE_CAPACITY = 4;
+
+    private static int cacheCapacity = DEFAULT_CACHE_CAPACITY;
+    private static final Map<Key, FlatFieldCalibration> CACHE = new LinkedHashMap<Key, FlatFieldCalibration>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, FlatFieldCalibration> eldest) {
+            return size() > cacheCapacity;
+        }
+    };
+
+    private final ImageProcessor preparedFlat;
+    private final RunLengthMask stainMask;
+    private final RunLengthMask ringMask;
+    private final double flatStainMean;
+    private final double flatSurroundMean;
+    private final boolean ringEmpty;
+    private final double expandRatio;
+    private final int percentile;
+    private final int flatDownsample;
+    private RunLengthMask correctionSupport;
+    private double correctionSupportFloor = Double.NaN;
+
+    FlatFieldCalibration(ImageProcessor preparedFlat, RunLengthMask stainMask, RunLengthMask ringMask,
+            double flatStainMean, double flatSurroundMean, boolean ringEmpty, double expandRatio, int percentile,
+            int flatDownsample) {
+        this.preparedFlat = preparedFlat;
+        this.stainMask = stainMask;
+        this.ringMask = ringMask;
+        this.flatStainMean = flatStainMean;
+        this.flatSurroundMean = flatSurroundMean;
+        this.ringEmpty = ringEmpty;
+        this.expandRatio = expandRatio;
+        this.percentile = percentile;
+        this.flatDownsample = flatDownsample;
+    }
+
+    public ImageProcessor getPreparedFlat() {
+        return preparedFlat;
+    }
+
+    /** The stain mask as a new 8-bit image (255 = stain). */
+    public ImageProcessor getStainMask() {
+        return stainMask.toByteProcessor();
+    }
+
+    /** The ring mask as a new 8-bit image (255 = ring). */
+    public ImageProcessor getRingMask() {
+        return ringMask.toByteProcessor();
+    }
+
+    RunLengthMask getStainRuns() {
+        return stainMask;
+    }
+
+    RunLengthMask getRingRuns() {
+        return ringMask;
+    }
+
+    /**
+     * Pixels a sparse correction touches: the stains and rings, minus the pixels where
+     * the magnitude of the prepared flat is at most {@code noiseFloor}. Computed once
+     * per floor and kept until a different floor is asked for.
+     */
+    synchronized RunLengthMask getCorrectionSupport(double noiseFloor) {
+        if (correctionSupport == null || Double.compare(noiseFloor, correctionSupportFloor) != 0) {
+            correctionSupport = aboveFloor(stainMask.union(ringMask), noiseFloor);
+            correctionSupportFloor = noiseFloor;
+        }
+        return correctionSupport;
+    }
+
+    private RunLengthMask aboveFloor(RunLengthMask mask, double noiseFloor) {
+        int width = mask.getWidth();
+        RunLengthMask.Builder builder = new RunLengthMask.Builder(width, mask.getHeight());
+        for (int y = 0; y < mask.getHeight(); y++) {
+            for (int run = mask.firstRun(y); run < mask.firstRun(y + 1); run++) {
+                int start = -1;
+                for (int x = mask.runStart(run); x < mask.runEnd(run); x++) {
+                    boolean above = Math.abs(preparedFlat.getf(x, y)) > noiseFloor;
+                    if (above && start < 0) {
+                        start = x;
+                    } else if (!above && start >= 0) {
+                        builder.addRun(start, x);
+                        start = -1;
+                    }
+                }
+                if (start >= 0)
+                    builder.addRun(start, mask.runEnd(run));
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    public double getFlatStainMean() {
+        return flatStainMean;
+    }
+
+    public double getFlatSurroundMean() {
+        return flatSurroundMean;
+    }
+
+    /** True if the expanded ring around the stains contains no pixel at all. */
+    public boolean isRingEmpty() {
+        return ringEmpty;
+    }
+
+    public double getExpandRatio() {
+        return expandRatio;
+    }
+
+    public int getPercentile() {
+        return percentile;
+    }
+
+    /** Shrink factor used for the rolling-ball background of the flat (1 = exact). */
+    public int getFlatDownsample() {
+        return flatDownsample;
+    }
+
+    public int getWidth() {
+        return preparedFlat.getWidth();
+    }
+
+    public int getHeight() {
+        return preparedFlat.getHeight();
+    }
+
+    // --- Cache ---
+
+    static synchronized FlatFieldCalibration getCached(Key key) {
+        return CACHE.get(key);
+    }
+
+    static synchronized void putCached(Key key, FlatFieldCalibration calibration) {
+        if (cacheCapacity > 0)
+            CACHE.put(key, calibration);
+    }
+
+    /** Drops every cached calibration, e.g. after the flat-field image has been edited in place. */
+    public static synchronized void clearCache() {
+        CACHE.clear();
+    }
+
+    /** Maximum number of calibrations kept in memory (0 disables caching). */
+    public static synchronized void setCacheCapacity(int capacity) {
+        cacheCapacity = Math.max(0, capacity);
+        while (CACHE.size() > cacheCapacity) {
+            CACHE.remove(CACHE.keySet().iterator().next());
+        }
+    }
+
+    public static synchronized int getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    static Key keyOf(ImagePlus flatImp, double expandRatio, int percentile, int flatDownsample) {
+        return new Key(flatImp, expandRatio, percentile, flatDownsample);
+    }
+
+    /** Key of the flat and its background preparation only, ignoring the mask parameters. */
+    static Key keyOf(ImagePlus flatImp, int flatDownsample) {
+        return new Key(flatImp, 0, 0, flatDownsample);
+    }
+
+    /**
+     * Identifies a flat-field image (window id, pixel array and a checksum of all its
+     * pixels, so in-place edits are noticed) together with the parameters.
+     */
+    static final class Key {
+        private final int imageId;
+        private final WeakReference<Object> pixelsRef;
+        private final int pixelsIdentity;
+        private final int width;
+        private final int height;
+        private final int bitDepth;
+        private final long fingerprint;
+        private final long expandRatioBits;
+        private final int percentile;
+        private final int flatDownsample;
+
+        Key(ImagePlus flatImp, double expandRatio, int percentile, int flatDownsample) {
+            ImageProcessor ip = flatImp.getProcessor();
+            Object pixels = ip.getPixels();
+            this.imageId = flatImp.getID();
+            this.pixelsRef = new WeakReference<>(pixels);
+            this.pixelsIdentity = System.identityHashCode(pixels);
+            this.width = ip.getWidth();
+            this.height = ip.getHeight();
+            this.bitDepth = ip.getBitDepth();
+            this.fingerprint = CalibrationFile.checksum(ip);
+            this.expandRatioBits = Double.doubleToLongBits(expandRatio);
+            this.percentile = percentile;
+            this.flatDownsample = flatDownsample;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            Object pixels = pixelsRef.get();
+            return pixels != null && pixels == other.pixelsRef.get()
+                    && imageId == other.imageId
+                    && width == other.width && height == other.height && bitDepth == other.bitDepth
+                    && fingerprint == other.fingerprint
+                    && expandRatioBits == other.expandRatioBits && percentile == other.percentile
+                    && flatDownsample == other.flatDownsample;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = imageId;
+            h = 31 * h + pixelsIdentity;
+            h = 31 * h + (int) (fingerprint ^ (fingerprint >>> 32));
+            h = 31 * h + (int) (expandRatioBits ^ (expandRatioBits >>> 32));
+            h = 31 * h + flatDownsample;
+            return 31 * h + percentile;
+        }
+    }
+}
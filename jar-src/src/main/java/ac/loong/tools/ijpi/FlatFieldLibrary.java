@@ -0,0 +1,354 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Folder of flat-field images (e.g. one per objective, exposure and date), indexed
+ * by size, bit depth, exposure and a signature of the stain pattern, so the flat
+ * matching a sample can be picked without trying each one.
+ * <p>
+ * The signature is a grid of at most {@value #GRID} cells along the longer side:
+ * the mean of each cell divided by the mean of the surrounding cells, so the
+ * vignetting, the scene and the exposure cancel out and the dips left by the stains
+ * remain, normalized to zero mean and unit length. A sample gets the same signature
+ * (one pass over its pixels) and the flat of the same size with the highest
+ * correlation wins; comparing two signatures is a dot product of a few thousand floats.
+ * Flats whose signatures are nearly as good (the same optics at another exposure,
+ * for instance) are decided by the exposure found in the image info, if any.
+ */
+public final class FlatFieldLibrary {
+
+    static final int GRID = 64;
+    private static final int NEIGHBOURHOOD = 2; // 局部均值取 5x5 个格子
+    // 相关系数相差不到该值的平场视为污点图案相同，再按曝光时间选择
+    private static final double SAME_PATTERN = 0.02;
+    private static final Pattern EXPOSURE = Pattern.compile(
+            "(?i)exposure[^:=\\n]{0,24}[:=]\\s*\"?([-+]?[0-9]*\\.?[0-9]+(?:[eE][-+]?[0-9]+)?)");
+
+    private static final Map<Path, FlatFieldLibrary> OPENED = new HashMap<>();
+
+    /** One indexed flat-field image. */
+    public static final class Entry {
+        public final Path path;
+        public final int width;
+        public final int height;
+        public final int bitDepth;
+        public final double exposure; // NaN if the image info has none
+        final float[] signature;
+        private SoftReference<ImagePlus> opened;
+
+        /** {@code imp} is the image just read for the index, kept until memory runs short. */
+        Entry(Path path, ImagePlus imp, double exposure, float[] signature) {
+            ImageProcessor ip = imp.getProcessor();
+            this.path = path;
+            this.width = ip.getWidth();
+            this.height = ip.getHeight();
+            this.bitDepth = ip.getBitDepth();
+            this.exposure = exposure;
+            this.signature = signature;
+            this.opened = new SoftReference<>(imp);
+        }
+
+        public String getName() {
+            return path.getFileName().toString();
+        }
+
+        /**
+         * The flat-field image, read from disk unless it is still in memory from the
+         * index or an earlier call (so its calibration stays cached too). It must not be
+         * modified.
+         */
+        public synchronized ImagePlus open() throws IOException {
+            ImagePlus imp = opened.get();
+            if (imp == null) {
+                imp = IJ.openImage(path.toString());
+                if (imp == null)
+                    throw new IOException("Cannot open flat field image: " + path);
+                opened = new SoftReference<>(imp);
+            }
+            return imp;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + " (" + width + "x" + height + ", " + bitDepth + "-bit"
+                    + (Double.isNaN(exposure) ? "" : ", exposure " + exposure) + ")";
+        }
+    }
+
+    /** The selected flat and the correlation of its signature with the sample's. */
+    public static final class Match {
+        public final Entry entry;
+        public final double similarity;
+
+        Match(Entry entry, double similarity) {
+            this.entry = entry;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public String toString() {
+            return entry.getName() + " (similarity " + IJ.d2s(similarity, 3) + ")";
+        }
+    }
+
+    private final Path directory;
+    private final String fingerprint;
+    private final List<Entry> entries;
+
+    private FlatFieldLibrary(Path directory, String fingerprint, List<Entry> entries) {
+        this.directory = directory;
+        this.fingerprint = fingerprint;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Indexes the grayscale images of {@code directory} whose names match the glob
+     * {@code pattern}; files that cannot be opened are skipped with a log message.
+     */
+    public static FlatFieldLibrary index(Path directory, String pattern) throws IOException {
+        List<Path> files = list(directory, pattern);
+        List<Entry> entries = new ArrayList<>();
+        for (Path file : files) {
+            ImagePlus imp = IJ.openImage(file.toString());
+            if (imp == null || imp.getType() == ImagePlus.COLOR_RGB) {
+                IJ.log("Flat library: skipping " + file + " (not a grayscale image)");
+                continue;
+            }
+            entries.add(new Entry(file, imp, exposureOf(imp), signature(imp.getProcessor())));
+        }
+        if (entries.isEmpty())
+            throw new IOException("No flat field image in " + directory);
+        return new FlatFieldLibrary(directory, fingerprint(files), entries);
+    }
+
+    /**
+     * Like {@link #index}, but reuses the index of an earlier call as long as the
+     * names, sizes and modification times of the files are unchanged.
+     */
+    public static FlatFieldLibrary open(Path directory, String pattern) throws IOException {
+        Path key = directory.toAbsolutePath().normalize();
+        String fingerprint = fingerprint(list(directory, pattern));
+        synchronized (OPENED) {
+            FlatFieldLibrary library = OPENED.get(key);
+            if (library != null && library.fingerprint.equals(fingerprint))
+                return library;
+        }
+        FlatFieldLibrary library = index(directory, pattern);
+        synchronized (OPENED) {
+            OPENED.put(key, library);
+        }
+        return library;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /** Best flat for the current slice of {@code sampleImp}, using its exposure if it has one. */
+    public Match select(ImagePlus sampleImp) {
+        return select(sampleImp.getProcessor(), exposureOf(sampleImp));
+    }
+
+    /**
+     * Best flat of the same size as {@code sampleIp}.
+     *
+     * @param exposure exposure of the sample, or NaN if unknown
+     * @throws IllegalArgumentException if no flat has the size of the sample
+     */
+    public Match select(ImageProcessor sampleIp, double exposure) {
+        int width = sampleIp.getWidth();
+        int height = sampleIp.getHeight();
+        List<Entry> candidates = entries.stream().filter(e -> e.width == width && e.height == height)
+                .collect(Collectors.toList());
+        if (candidates.isEmpty())
+            throw new IllegalArgumentException("No flat field image of " + width + "x" + height + " in " + directory);
+        if (candidates.size() == 1)
+            return new Match(candidates.get(0), correlation(candidates.get(0).signature, signature(sampleIp)));
+        return select(candidates, signature(sampleIp), exposure);
+    }
+
+    private static Match select(List<Entry> candidates, float[] signature, double exposure) {
+        double[] similarity = new double[candidates.size()];
+        int best = 0;
+        for (int i = 0; i < similarity.length; i++) {
+            similarity[i] = correlation(candidates.get(i).signature, signature);
+            if (similarity[i] > similarity[best])
+                best = i;
+        }
+        if (!Double.isNaN(exposure) && exposure > 0) {
+            int closest = -1;
+            double closestDistance = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < similarity.length; i++) {
+                double flatExposure = candidates.get(i).exposure;
+                if (similarity[i] < similarity[best] - SAME_PATTERN || !(flatExposure > 0))
+                    continue;
+                double distance = Math.abs(Math.log(flatExposure / exposure));
+                if (distance < closestDistance) {
+                    closest = i;
+                    closestDistance = distance;
+                }
+            }
+            if (closest >= 0)
+                best = closest;
+        }
+        return new Match(candidates.get(best), similarity[best]);
+    }
+
+    /**
+     * Stain-pattern signature of an image: per grid cell the ratio of its mean to the
+     * mean of the neighbouring cells, minus one, normalized to zero mean and unit length.
+     */
+    static float[] signature(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int cell = Math.max(1, (Math.max(width, height) + GRID - 1) / GRID);
+        int gridWidth = (width + cell - 1) / cell;
+        int gridHeight = (height + cell - 1) / cell;
+        double[] sums = new double[gridWidth * gridHeight];
+        int[] counts = new int[gridWidth * gridHeight];
+        Object pixels = ip.getPixels();
+        for (int y = 0; y < height; y++) {
+            int rowCells = (y / cell) * gridWidth;
+            int offset = y * width;
+            for (int cx = 0, x = 0; cx < gridWidth; cx++) {
+                int end = Math.min(width, x + cell);
+                sums[rowCells + cx] += rowSum(pixels, offset + x, offset + end);
+                counts[rowCells + cx] += end - x;
+                x = end;
+            }
+        }
+        double[] means = new double[sums.length];
+        for (int i = 0; i < means.length; i++)
+            means[i] = sums[i] / counts[i];
+
+        float[] signature = new float[means.length];
+        for (int gy = 0; gy < gridHeight; gy++) {
+            for (int gx = 0; gx < gridWidth; gx++) {
+                double local = 0;
+                int n = 0;
+                for (int ny = Math.max(0, gy - NEIGHBOURHOOD); ny <= Math.min(gridHeight - 1, gy + NEIGHBOURHOOD); ny++) {
+                    for (int nx = Math.max(0, gx - NEIGHBOURHOOD); nx <= Math.min(gridWidth - 1, gx + NEIGHBOURHOOD); nx++) {
+                        local += means[ny * gridWidth + nx];
+                        n++;
+                    }
+                }
+                local /= n;
+                int i = gy * gridWidth + gx;
+                signature[i] = local > 0 ? (float) (means[i] / local - 1) : 0f;
+            }
+        }
+        normalize(signature);
+        return signature;
+    }
+
+    private static double rowSum(Object pixels, int from, int to) {
+        double sum = 0;
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            long s = 0;
+            for (int i = from; i < to; i++)
+                s += p[i] & 0xffff;
+            sum = s;
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            long s = 0;
+            for (int i = from; i < to; i++)
+                s += p[i] & 0xff;
+            sum = s;
+        } else {
+            float[] p = (float[]) pixels;
+            for (int i = from; i < to; i++)
+                sum += p[i];
+        }
+        return sum;
+    }
+
+    private static void normalize(float[] signature) {
+        double mean = 0;
+        for (float v : signature)
+            mean += v;
+        mean /= signature.length;
+        double norm = 0;
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] -= mean;
+            norm += signature[i] * signature[i];
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < signature.length; i++)
+                signature[i] *= scale;
+        }
+    }
+
+    /** Correlation of two normalized signatures of the same grid, in [-1, 1]. */
+    static double correlation(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < a.length; i++)
+            dot += a[i] * b[i];
+        return dot;
+    }
+
+    /** Exposure time written in the image info (e.g. "Exposure: 20" or "Exposure-ms": 20), or NaN. */
+    static double exposureOf(ImagePlus imp) {
+        String info = imp.getInfoProperty();
+        if (info == null)
+            return Double.NaN;
+        Matcher matcher = EXPOSURE.matcher(info);
+        return matcher.find() ? Double.parseDouble(matcher.group(1)) : Double.NaN;
+    }
+
+    private static List<Path> list(Path directory, String pattern) throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile).filter(p -> matcher.matches(p.getFileName())).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String fingerprint(List<Path> files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Path file : files)
+            sb.append(file.getFileName()).append('/').append(Files.size(file)).append('/')
+                    .append(Files.getLastModifiedTime(file).toMillis()).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Integer output path for 8/16-bit samples: {@code sample + k * flat} and the
+ * optional PFFC gain are applied in fixed point straight into a buffer of the
+ * sample type, saturating at 0 and the type maximum.
+ * <p>
+ * Unlike {@link CorrectionKernel} the result keeps the scale of the sample instead
+ * of being stretched to the min/max of the corrected image, and no float copy of
+ * the image is made for the correction itself. Only PFFC needs one float buffer,
+ * for the blurred background.
+ */
+final class IntegerCorrectionKernel {
+
+    /** Fractional bits of the fixed-point k and PFFC gain, enough for 16-bit pixels to round like doubles. */
+    static final int FRACTION_BITS = 24;
+    private static final long ONE = 1L << FRACTION_BITS;
+    private static final long HALF = ONE >> 1;
+    // k 与增益的上限：16 位像素 * 定点系数 不会溢出 long
+    static final double MAX_FACTOR = 1 << 20;
+
+    private IntegerCorrectionKernel() {
+    }
+
+    /** True if the sample is 8 or 16-bit; a float sample has to go through {@link CorrectionKernel}. */
+    static boolean supports(ImageProcessor sampleIp) {
+        Object pixels = sampleIp.getPixels();
+        return pixels instanceof short[] || pixels instanceof byte[];
+    }
+
+    /**
+     * @param support  pixels where the flat is added (see
+     *                 {@link FlatFieldCalibration#getCorrectionSupport(double)}), or null for all of them
+     * @param pffcBlur blur of the PFFC background, or null to skip PFFC
+     * @return a new processor of the sample type
+     */
+    static ImageProcessor correct(ImageProcessor sampleIp, ImageProcessor preparedFlat, RunLengthMask support,
+            double k, BackgroundBlur pffcBlur) {
+        int width = sampleIp.getWidth();
+        int height = sampleIp.getHeight();
+        int pixelCount = width * height;
+        Object samplePixels = sampleIp.getPixels();
+        Object flatPixels = preparedFlat.getPixels();
+        boolean shorts = samplePixels instanceof short[];
+        Object out = shorts ? new short[pixelCount] : new byte[pixelCount];
+
+        StageMetrics.Span correctionSpan = StageMetrics.start(StageMetrics.Stage.CORRECTION);
+        long kq = Math.round(k * ONE);
+        if (support == null) {
+            addScaled(samplePixels, flatPixels, 0, pixelCount, k, kq, out);
+            correctionSpan.end(pixelCount);
+        } else {
+            System.arraycopy(samplePixels, 0, out, 0, pixelCount);
+            for (int y = 0, offset = 0; y < height; y++, offset += width) {
+                for (int run = support.firstRun(y); run < support.firstRun(y + 1); run++)
+                    addScaled(samplePixels, flatPixels, offset + support.runStart(run), offset + support.runEnd(run),
+                            k, kq, out);
+            }
+            correctionSpan.end(support.getPixelCount());
+        }
+
+        if (pffcBlur != null) {
+            StageMetrics.Span pffcSpan = StageMetrics.start(StageMetrics.Stage.PFFC);
+            float[] background = new float[pixelCount];
+            if (shorts) {
+                short[] corrected = (short[]) out;
+                for (int i = 0; i < pixelCount; i++)
+                    background[i] = corrected[i] & 0xffff;
+            } else {
+                byte[] corrected = (byte[]) out;
+                for (int i = 0; i < pixelCount; i++)
+                    background[i] = corrected[i] & 0xff;
+            }
+            pffcBlur.blur(new FloatProcessor(width, height, background, null));
+            double backgroundMean = CorrectionKernel.mean(background);
+            if (backgroundMean != 0)
+                applyGain(out, background, backgroundMean);
+            pffcSpan.end(pixelCount);
+        }
+
+        if (shorts) {
+            ShortProcessor sp = new ShortProcessor(width, height, (short[]) out, null);
+            sp.resetMinAndMax();
+            return sp;
+        }
+        return new ByteProcessor(width, height, (byte[]) out, null);
+    }
+
+    /** out[i] = saturate(sample[i] + round(flat[i] * k)) for i in [from, to). */
+    static void addScaled(Object samplePixels, Object flatPixels, int from, int to, double k, long kq,
+            Object out) {
+        // 常见情况（平场与样本同为 16 位或 8 位）单独展开，其余逐像素取值
+        boolean fixedPoint = Math.abs(k) < MAX_FACTOR;
+        if (fixedPoint && samplePixels instanceof short[] && flatPixels instanceof short[]) {
+            short[] sample = (short[]) samplePixels;
+            short[] flat = (short[]) flatPixels;
+            short[] result = (short[]) out;
+            for (int i = from; i < to; i++) {
+                long value = (sample[i] & 0xffff) + (((flat[i] & 0xffff) * kq + HALF) >> FRACTION_BITS);
+                result[i] = (short) (value < 0 ? 0 : value > 65535 ? 65535 : value);
+            }
+        } else if (fixedPoint && samplePixels instanceof byte[] && flatPixels instanceof byte[]) {
+            byte[] sample = (byte[]) samplePixels;
+            byte[] flat = (byte[]) flatPixels;
+            byte[] result = (byte[]) out;
+            for (int i = from; i < to; i++) {
+                long value = (sample[i] & 0xff) + (((flat[i] & 0xff) * kq + HALF) >> FRACTION_BITS);
+                result[i] = (byte) (value < 0 ? 0 : value > 255 ? 255 : value);
+            }
+        } else {
+            int max = out instanceof short[] ? 65535 : 255;
+            for (int i = from; i < to; i++) {
+                double value = Math.rint(sample(samplePixels, i) + flat(flatPixels, i) * k);
+                set(out, i, value < 0 ? 0 : value > max ? max : (int) value);
+            }
+        }
+    }
+
+    /**
+     * out[i] = saturate(out[i] * backgroundMean / background[i]), with the gain in
+     * fixed point; pixels with a zero or NaN background are left unchanged, as in
+     * {@link CorrectionKernel#divideByBackground}.
+     */
+    static void applyGain(Object out, float[] background, double backgroundMean) {
+        if (out instanceof short[]) {
+            short[] pixels = (short[]) out;
+            for (int i = 0; i < pixels.length; i++) {
+                long gain = gain(background[i], backgroundMean);
+                if (gain >= 0) {
+                    long value = ((pixels[i] & 0xffff) * gain + HALF) >> FRACTION_BITS;
+                    pixels[i] = (short) (value > 65535 ? 65535 : value);
+                }
+            }
+        } else {
+            byte[] pixels = (byte[]) out;
+            for (int i = 0; i < pixels.length; i++) {
+                long gain = gain(background[i], backgroundMean);
+                if (gain >= 0) {
+                    long value = ((pixels[i] & 0xff) * gain + HALF) >> FRACTION_BITS;
+                    pixels[i] = (byte) (value > 255 ? 255 : value);
+                }
+            }
+        }
+    }
+
+    /** backgroundMean / background in fixed point, or -1 to leave the pixel unchanged. */
+    private static long gain(float background, double backgroundMean) {
+        if (background == 0 || Float.isNaN(background))
+            return -1;
+        double gain = backgroundMean / background;
+        // 负增益（背景或均值为负）输出饱和为 0
+        if (gain <= 0)
+            return 0;
+        return Math.round(Math.min(gain, MAX_FACTOR) * ONE);
+    }
+
+    private static int sample(Object pixels, int i) {
+        if (pixels instanceof short[])
+            return ((short[]) pixels)[i] & 0xffff;
+        return ((byte[]) pixels)[i] & 0xff;
+    }
+
+    private static double flat(Object pixels, int i) {
+        if (pixels instanceof float[])
+            return ((float[]) pixels)[i];
+        return sample(pixels, i);
+    }
+
+    private static void set(Object pixels, int i, int value) {
+        if (pixels instanceof short[])
+            ((short[]) pixels)[i] = (short) value;
+        else
+            ((byte[]) pixels)[i] = (byte) value;
+    }
+}
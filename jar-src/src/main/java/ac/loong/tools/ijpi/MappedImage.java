@@ -0,0 +1,289 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Uncompressed 8/16/32-bit grayscale image stored in a file (raw data or a
+ * single-strip TIFF) and accessed through memory mapping, so only the regions
+ * being read or written are paged in.
+ * <p>
+ * A mapping is limited to 2 GB in Java 8, so the file is mapped in chunks of
+ * whole rows; a row is never split between two chunks. Regions may be read and
+ * written concurrently by several threads.
+ */
+final class MappedImage implements Closeable {
+
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final long MAX_TIFF_BYTES = 0xffffffffL;
+    static final int MAX_REGION_PIXELS = Integer.MAX_VALUE - 8; // 一个 Java 数组最多能放的像素
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final long dataOffset;
+    private final ByteOrder order;
+    private final int bytesPerPixel;
+    private final long rowBytes;
+    private final int rowsPerChunk;
+    private final MappedByteBuffer[] chunks;
+
+    private MappedImage(RandomAccessFile file, boolean writable, int width, int height, int bitDepth,
+            long dataOffset, ByteOrder order) throws IOException {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        this.file = file;
+        this.channel = file.getChannel();
+        this.writable = writable;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.dataOffset = dataOffset;
+        this.order = order;
+        this.bytesPerPixel = bitDepth / 8;
+        this.rowBytes = (long) width * bytesPerPixel;
+        if (rowBytes > MAX_CHUNK_BYTES)
+            throw new IllegalArgumentException("Image rows longer than " + MAX_CHUNK_BYTES + " bytes are not supported.");
+        this.rowsPerChunk = (int) Math.max(1, Math.min(height, MAX_CHUNK_BYTES / rowBytes));
+        this.chunks = new MappedByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+        if (channel.size() < dataOffset + rowBytes * height)
+            throw new IOException("File is shorter than a " + width + "x" + height + "x" + bitDepth + " image.");
+    }
+
+    /** Opens raw pixel data starting at {@code offset}, read-only. */
+    static MappedImage openRaw(Path path, int width, int height, int bitDepth, long offset, boolean littleEndian)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            return new MappedImage(file, false, width, height, bitDepth, offset,
+                    littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Opens the first image of an uncompressed TIFF whose pixels are stored contiguously, read-only. */
+    static MappedImage openTiff(Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        TiffDecoder decoder = new TiffDecoder(dir == null ? "" : dir.toString() + java.io.File.separator,
+                path.getFileName().toString());
+        FileInfo[] info = decoder.getTiffInfo();
+        if (info == null || info.length == 0)
+            throw new IOException("Not a TIFF file: " + path);
+        FileInfo fi = info[0];
+        if (fi.compression > FileInfo.COMPRESSION_NONE)
+            throw new IOException("Compressed TIFF files cannot be memory mapped: " + path);
+        if (fi.stripOffsets != null) {
+            for (int i = 1; i < fi.stripOffsets.length; i++) {
+                // 偏移量是无符号 32 位数，用差值比较以免溢出
+                if (fi.stripOffsets[i] - fi.stripOffsets[i - 1] != fi.stripLengths[i - 1])
+                    throw new IOException("TIFF strips are not contiguous: " + path);
+            }
+        }
+        int bitDepth;
+        switch (fi.fileType) {
+            case FileInfo.GRAY8:
+                bitDepth = 8;
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                bitDepth = 16;
+                break;
+            case FileInfo.GRAY32_FLOAT:
+                bitDepth = 32;
+                break;
+            default:
+                throw new IOException("Only 8-bit, unsigned 16-bit and 32-bit float TIFF files are supported: " + path);
+        }
+        return openRaw(path, fi.width, fi.height, bitDepth, fi.getOffset(), fi.intelByteOrder);
+    }
+
+    /** Creates (or truncates) a raw little-endian file of the given size, writable. */
+    static MappedImage createRaw(Path path, int width, int height, int bitDepth) throws IOException {
+        return create(path, width, height, bitDepth, new byte[0]);
+    }
+
+    /** Creates (or truncates) a single-strip little-endian TIFF, writable. */
+    static MappedImage createTiff(Path path, int width, int height, int bitDepth) throws IOException {
+        long dataBytes = (long) width * height * (bitDepth / 8);
+        if (dataBytes + 256 > MAX_TIFF_BYTES)
+            throw new IOException("Image too large for a TIFF file (4 GB); use a .raw output instead.");
+        return create(path, width, height, bitDepth, tiffHeader(width, height, bitDepth));
+    }
+
+    private static MappedImage create(Path path, int width, int height, int bitDepth, byte[] header)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(0);
+            file.setLength(header.length + (long) width * height * (bitDepth / 8));
+            file.write(header);
+            return new MappedImage(file, true, width, height, bitDepth, header.length, ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Minimal baseline TIFF header: one IFD, one strip, pixels right after the header. */
+    private static byte[] tiffHeader(int width, int height, int bitDepth) {
+        final int entries = 10;
+        int headerSize = 8 + 2 + entries * 12 + 4;
+        headerSize = (headerSize + 15) / 16 * 16;
+        long dataBytes = (long) width * height * (bitDepth / 8);
+        ByteBuffer b = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        b.putShort((short) entries);
+        tiffEntry(b, 256, 4, width); // ImageWidth
+        tiffEntry(b, 257, 4, height); // ImageLength
+        tiffEntry(b, 258, 3, bitDepth); // BitsPerSample
+        tiffEntry(b, 259, 3, 1); // Compression: none
+        tiffEntry(b, 262, 3, 1); // PhotometricInterpretation: black is zero
+        tiffEntry(b, 273, 4, headerSize); // StripOffsets
+        tiffEntry(b, 277, 3, 1); // SamplesPerPixel
+        tiffEntry(b, 278, 4, height); // RowsPerStrip
+        tiffEntry(b, 279, 4, (int) dataBytes); // StripByteCounts
+        tiffEntry(b, 339, 3, bitDepth == 32 ? 3 : 1); // SampleFormat: float or unsigned
+        b.putInt(0); // no next IFD
+        return b.array();
+    }
+
+    private static void tiffEntry(ByteBuffer b, int tag, int type, int value) {
+        b.putShort((short) tag).putShort((short) type).putInt(1);
+        if (type == 3)
+            b.putShort((short) value).putShort((short) 0);
+        else
+            b.putInt(value);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getBitDepth() {
+        return bitDepth;
+    }
+
+    /** Reads a rectangle that must lie inside the image. */
+    ImageProcessor read(int x, int y, int regionWidth, int regionHeight) throws IOException {
+        checkRegion(x, y, regionWidth, regionHeight);
+        long size = (long) regionWidth * regionHeight;
+        if (size > MAX_REGION_PIXELS)
+            throw new IllegalArgumentException("Region " + regionWidth + "x" + regionHeight
+                    + " is too large to be read into one array.");
+        int n = (int) size;
+        Object pixels = bitDepth == 8 ? new byte[n] : bitDepth == 16 ? new short[n] : new float[n];
+        for (int row = 0; row < regionHeight; row++) {
+            ByteBuffer buffer = rowBuffer(y + row, x);
+            int offset = row * regionWidth;
+            if (bitDepth == 8)
+                buffer.get((byte[]) pixels, offset, regionWidth);
+            else if (bitDepth == 16)
+                buffer.asShortBuffer().get((short[]) pixels, offset, regionWidth);
+            else
+                buffer.asFloatBuffer().get((float[]) pixels, offset, regionWidth);
+        }
+        if (bitDepth == 8)
+            return new ByteProcessor(regionWidth, regionHeight, (byte[]) pixels, null);
+        if (bitDepth == 16)
+            return new ShortProcessor(regionWidth, regionHeight, (short[]) pixels, null);
+        return new FloatProcessor(regionWidth, regionHeight, (float[]) pixels, null);
+    }
+
+    /** Writes {@code ip} (same bit depth as this image) with its top left corner at (x, y). */
+    void write(int x, int y, ImageProcessor ip) throws IOException {
+        if (!writable)
+            throw new IOException("Image is opened read-only.");
+        if (ip.getBitDepth() != bitDepth)
+            throw new IllegalArgumentException("Bit depth " + ip.getBitDepth() + " does not match " + bitDepth);
+        int regionWidth = ip.getWidth();
+        int regionHeight = ip.getHeight();
+        checkRegion(x, y, regionWidth, regionHeight);
+        Object pixels = ip.getPixels();
+        for (int row = 0; row < regionHeight; row++) {
+            ByteBuffer buffer = rowBuffer(y + row, x);
+            int offset = row * regionWidth;
+            if (bitDepth == 8)
+                buffer.put((byte[]) pixels, offset, regionWidth);
+            else if (bitDepth == 16)
+                buffer.asShortBuffer().put((short[]) pixels, offset, regionWidth);
+            else
+                buffer.asFloatBuffer().put((float[]) pixels, offset, regionWidth);
+        }
+    }
+
+    private void checkRegion(int x, int y, int regionWidth, int regionHeight) {
+        if (x < 0 || y < 0 || regionWidth < 0 || regionHeight < 0 || x + regionWidth > width
+                || y + regionHeight > height)
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + " " + regionWidth + "x" + regionHeight
+                    + " outside of " + width + "x" + height);
+    }
+
+    /** Private view of the mapping positioned at pixel (x, y); safe to use from any thread. */
+    private ByteBuffer rowBuffer(int y, int x) throws IOException {
+        int chunk = y / rowsPerChunk;
+        ByteBuffer buffer = chunk(chunk).duplicate().order(order);
+        buffer.position((int) ((y - (long) chunk * rowsPerChunk) * rowBytes + (long) x * bytesPerPixel));
+        return buffer;
+    }
+
+    private synchronized MappedByteBuffer chunk(int index) throws IOException {
+        MappedByteBuffer chunk = chunks[index];
+        if (chunk == null) {
+            int firstRow = index * rowsPerChunk;
+            int rows = Math.min(rowsPerChunk, height - firstRow);
+            chunk = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    dataOffset + firstRow * rowBytes, rows * rowBytes);
+            chunks[index] = chunk;
+        }
+        return chunk;
+    }
+
+    /** Flushes written pixels to the file. The mappings themselves are released by the garbage collector. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (writable) {
+            for (MappedByteBuffer chunk : chunks) {
+                if (chunk != null)
+                    chunk.force();
+            }
+        }
+        file.close();
+    }
+}
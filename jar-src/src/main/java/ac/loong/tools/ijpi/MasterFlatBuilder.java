@@ -0,0 +1,255 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.FileSaver;
+import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds a master flat from a directory of flat exposures, to be used as the flat
+ * field image of Remove Dirty Stains: averaging many exposures removes the shot noise
+ * that otherwise shifts the MaxEntropy threshold of the stain mask.
+ * <p>
+ * Frames are read one file at a time (stacks through a virtual stack) and fed to a
+ * {@link FlatAccumulator}, so hundreds of 16-bit frames can be combined with the
+ * memory of a few frames. Available as a plugin and from the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:Remove_Dirty_Stains.jar ac.loong.tools.ijpi.MasterFlatBuilder \
+ *     --input flats/ --output master_flat.tif --method sigma-clipped
+ * </pre>
+ */
+public class MasterFlatBuilder implements PlugIn {
+
+    public static class Options {
+        public Path inputDir;
+        public String pattern = "*.{tif,tiff,TIF,TIFF}";
+        public FlatAccumulator.Method method = FlatAccumulator.Method.SIGMA_CLIPPED_MEAN;
+        public double kappa = 3.0;
+        public int iterations = 2;
+        public int base = 7;
+        public boolean floatResult = false; // otherwise the bit depth of the frames
+
+        // command line only
+        Path output;
+    }
+
+    @Override
+    public void run(String arg) {
+        Options options = new Options();
+        GenericDialog gd = new GenericDialog("Build Master Flat");
+        gd.addDirectoryField("Directory of flat exposures:", "");
+        gd.addStringField("File name pattern:", options.pattern, 20);
+        gd.addChoice("Method:", FlatAccumulator.Method.labels(), options.method.getLabel());
+        gd.addNumericField("Clipping threshold (sigma):", options.kappa, 1);
+        gd.addNumericField("Clipping iterations:", options.iterations, 0);
+        gd.addNumericField("Median buffer size (odd, frames per level):", options.base, 0);
+        gd.addCheckbox("32-bit result", options.floatResult);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        String directory = gd.getNextString();
+        options.pattern = gd.getNextString();
+        options.method = FlatAccumulator.Method.fromLabel(gd.getNextChoice());
+        options.kappa = gd.getNextNumber();
+        options.iterations = (int) gd.getNextNumber();
+        options.base = (int) gd.getNextNumber();
+        options.floatResult = gd.getNextBoolean();
+        if (directory.trim().isEmpty()) {
+            IJ.error("Build Master Flat", "Please choose the directory of flat exposures.");
+            return;
+        }
+        options.inputDir = Paths.get(directory);
+        try {
+            build(options).show();
+        } catch (IllegalArgumentException | IOException e) {
+            IJ.error("Build Master Flat", e.getMessage());
+        } finally {
+            IJ.showProgress(1.0);
+        }
+    }
+
+    /** Combines every frame of the matching files (sorted by name) into the master flat. */
+    public static ImagePlus build(Options options) throws IOException {
+        if (options.inputDir == null || !Files.isDirectory(options.inputDir))
+            throw new IllegalArgumentException("Directory of flat exposures not found: " + options.inputDir);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + options.pattern);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(options.inputDir)) {
+            files = list.filter(Files::isRegularFile)
+                    .filter(p -> matcher.matches(p.getFileName()))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (files.isEmpty())
+            throw new IllegalArgumentException("No flat exposures matching " + options.pattern + " in "
+                    + options.inputDir);
+
+        FlatAccumulator accumulator = null;
+        ImagePlus first = null;
+        for (int pass = 0; accumulator == null || pass < accumulator.getPassCount(); pass++) {
+            if (pass > 0)
+                accumulator.nextPass();
+            for (int f = 0; f < files.size(); f++) {
+                Path file = files.get(f);
+                IJ.showStatus("Master flat: " + file.getFileName());
+                ImagePlus imp = open(file);
+                if (first == null) {
+                    first = imp;
+                    accumulator = new FlatAccumulator(imp.getWidth(), imp.getHeight(), options.method,
+                            options.kappa, options.iterations, options.base);
+                } else if (imp.getBitDepth() != first.getBitDepth()) {
+                    throw new IllegalArgumentException(file.getFileName() + " is " + imp.getBitDepth()
+                            + "-bit, the other flat exposures are " + first.getBitDepth() + "-bit.");
+                }
+                ImageStack stack = imp.getStack();
+                for (int slice = 1; slice <= stack.getSize(); slice++)
+                    accumulator.add(stack.getProcessor(slice));
+                imp.close();
+                IJ.showProgress(pass * files.size() + f + 1, accumulator.getPassCount() * files.size());
+            }
+        }
+
+        FloatProcessor master = accumulator.getResult();
+        ImageProcessor ip;
+        switch (options.floatResult ? 32 : first.getBitDepth()) {
+            case 8:
+                ip = master.convertToByte(false);
+                break;
+            case 16:
+                ip = master.convertToShort(false);
+                break;
+            default:
+                master.resetMinAndMax();
+                ip = master;
+        }
+        ImagePlus result = new ImagePlus("Master_Flat", ip);
+        result.setCalibration(first.getCalibration());
+        result.setProperty("Info", "Master flat: " + options.method.getLabel() + " of "
+                + accumulator.getFrameCount() + " frames from " + options.inputDir);
+        return result;
+    }
+
+    private static ImagePlus open(Path file) throws IOException {
+        ImagePlus imp = IJ.openVirtual(file.toString()); // 只读取当前帧，避免整个堆栈进入内存
+        if (imp == null)
+            imp = IJ.openImage(file.toString());
+        if (imp == null)
+            throw new IOException("Cannot open " + file);
+        if (imp.getType() == ImagePlus.COLOR_RGB)
+            throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        return imp;
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+        final Options options;
+        try {
+            options = parseArgs(args);
+            if (options.inputDir == null || options.output == null)
+                throw new IllegalArgumentException("Input directory and output file are required.");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            ImagePlus master = build(options);
+            if (!new FileSaver(master).saveAsTiff(options.output.toString()))
+                throw new IOException("Cannot write " + options.output);
+            System.out.println("Master flat written to " + options.output + ": " + master.getProperty("Info")
+                    + " time=" + (System.currentTimeMillis() - start) + "ms");
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Master flat failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--input":
+                    options.inputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--output":
+                    options.output = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--pattern":
+                    options.pattern = value(args, ++i, arg);
+                    break;
+                case "--method":
+                    String method = value(args, ++i, arg).toUpperCase().replace('-', '_');
+                    options.method = method.equals("SIGMA_CLIPPED") ? FlatAccumulator.Method.SIGMA_CLIPPED_MEAN
+                            : FlatAccumulator.Method.valueOf(method);
+                    break;
+                case "--kappa":
+                    options.kappa = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--iterations":
+                    options.iterations = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--base":
+                    options.base = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--float":
+                    options.floatResult = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i, String name) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + name);
+        return args[i];
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: MasterFlatBuilder --input <dir> --output <file>\n"
+                + "  [--pattern <glob>]    file name glob (default *.{tif,tiff,TIF,TIFF})\n"
+                + "  [--method <method>]   mean, sigma-clipped or median (default sigma-clipped)\n"
+                + "  [--kappa <k>]         sigma-clipped: reject values more than k sigma from the mean (default 3)\n"
+                + "  [--iterations <n>]    sigma-clipped: clipping passes, each reads the frames again (default 2)\n"
+                + "  [--base <n>]          median: odd number of frames buffered per level (default 7)\n"
+                + "  [--float]             write a 32-bit result instead of the bit depth of the frames");
+    }
+}
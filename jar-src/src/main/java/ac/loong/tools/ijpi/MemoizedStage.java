@@ -0,0 +1,53 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * One stage of an incremental pipeline: remembers the output computed for the last
+ * inputs and returns it again while the inputs stay equal. Inputs are compared with
+ * {@code equals}, so images and pixel arrays count as unchanged only while they are
+ * the same objects; the cached output must be treated as read only.
+ */
+final class MemoizedStage<V> {
+
+    private Object[] inputs;
+    private V value;
+
+    /** The cached output if {@code inputs} equal the last ones, otherwise {@code compute}'s result. */
+    V get(Supplier<V> compute, Object... inputs) {
+        if (this.inputs != null && Arrays.equals(this.inputs, inputs))
+            return value;
+        V computed = compute.get();
+        put(computed, inputs);
+        return computed;
+    }
+
+    /** Stores an output computed elsewhere (e.g. found in another cache) for {@code inputs}. */
+    void put(V value, Object... inputs) {
+        this.inputs = inputs.clone();
+        this.value = value;
+    }
+
+    void clear() {
+        inputs = null;
+        value = null;
+    }
+}
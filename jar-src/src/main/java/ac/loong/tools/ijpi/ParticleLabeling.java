@@ -0,0 +1,221 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ByteProcessor;
+import java.util.Arrays;
+
+/**
+ * Run-based connected-component labeling of a byte mask (8-connected, like the
+ * particles traced by ParticleAnalyzer).
+ * <p>
+ * Each row is split into runs of foreground pixels; runs that touch a run of the
+ * previous row are merged with a union-find. Rows are added one at a time, so the
+ * labeling only needs the previous row, and the result is kept as runs instead of
+ * a full label image. Particle areas are exact pixel counts; holes are not part of
+ * a particle and a particle inside a hole is a separate particle.
+ */
+final class ParticleLabeling {
+
+    private final int width;
+    private final int height;
+
+    private int runCount;
+    private int[] runStart = new int[1024];
+    private int[] runEnd = new int[1024]; // exclusive
+    private int[] parent = new int[1024];
+
+    private final int[] rowFirstRun;
+    private int rowsAdded;
+    private int previousRowFirstRun;
+    private int previousRowRunCount;
+
+    private int[] runLabel;
+    private long[] areas;
+
+    ParticleLabeling(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rowFirstRun = new int[height + 1];
+    }
+
+    /** Labels every pixel of {@code mask} equal to {@code foreground} (0..255). */
+    static ParticleLabeling label(ByteProcessor mask, int foreground) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        byte[] pixels = (byte[]) mask.getPixels();
+        ParticleLabeling labeling = new ParticleLabeling(width, height);
+        for (int y = 0; y < height; y++)
+            labeling.addRow(pixels, y * width, foreground);
+        labeling.finish();
+        return labeling;
+    }
+
+    /** Adds the next row, read from {@code pixels[offset .. offset + width)}. */
+    void addRow(byte[] pixels, int offset, int foreground) {
+        if (rowsAdded >= height)
+            throw new IllegalStateException("All " + height + " rows have already been added.");
+        int y = rowsAdded++;
+        int firstRun = runCount;
+        rowFirstRun[y] = firstRun;
+        byte value = (byte) foreground;
+        int x = 0;
+        while (x < width) {
+            while (x < width && pixels[offset + x] != value)
+                x++;
+            if (x == width)
+                break;
+            int start = x;
+            while (x < width && pixels[offset + x] == value)
+                x++;
+            addRun(start, x);
+        }
+
+        // 与上一行的游程合并：8 邻域下，区间 [start-1, end] 内有重叠即相连
+        int prev = previousRowFirstRun;
+        int prevEnd = previousRowFirstRun + previousRowRunCount;
+        for (int run = firstRun; run < runCount && prev < prevEnd; run++) {
+            while (prev < prevEnd && runEnd[prev] < runStart[run])
+                prev++;
+            while (prev < prevEnd && runStart[prev] <= runEnd[run]) {
+                union(run, prev);
+                if (runEnd[prev] > runEnd[run])
+                    break;
+                prev++;
+            }
+        }
+        previousRowFirstRun = firstRun;
+        previousRowRunCount = runCount - firstRun;
+    }
+
+    private void addRun(int start, int end) {
+        if (runCount == runStart.length) {
+            int capacity = runCount * 2;
+            runStart = Arrays.copyOf(runStart, capacity);
+            runEnd = Arrays.copyOf(runEnd, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+        }
+        runStart[runCount] = start;
+        runEnd[runCount] = end;
+        parent[runCount] = runCount;
+        runCount++;
+    }
+
+    private int find(int run) {
+        int root = run;
+        while (parent[root] != root)
+            root = parent[root];
+        while (parent[run] != root) {
+            int next = parent[run];
+            parent[run] = root;
+            run = next;
+        }
+        return root;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        // 较小的编号作根，使粒子按首次出现的位置（光栅顺序）编号
+        if (rootA < rootB)
+            parent[rootB] = rootA;
+        else if (rootB < rootA)
+            parent[rootA] = rootB;
+    }
+
+    /** Resolves the labels and the particle areas once all rows have been added. */
+    void finish() {
+        for (int y = rowsAdded; y <= height; y++)
+            rowFirstRun[y] = runCount;
+        runLabel = new int[runCount];
+        long[] counts = new long[Math.max(16, runCount)];
+        int labels = 0;
+        for (int run = 0; run < runCount; run++) {
+            int root = find(run);
+            // 根总是本粒子中编号最小的游程，先于其它游程被处理
+            int label = root == run ? labels++ : runLabel[root];
+            runLabel[run] = label;
+            counts[label] += runEnd[run] - runStart[run];
+        }
+        areas = Arrays.copyOf(counts, labels);
+    }
+
+    int getParticleCount() {
+        return areas.length;
+    }
+
+    /** Pixel count of every particle, indexed by label (raster order of the first pixel). */
+    long[] getAreas() {
+        return areas.clone();
+    }
+
+    /**
+     * Smallest area kept when only the largest {@code percentile} percent of the
+     * distinct particle areas are kept; 0 if there is no particle.
+     */
+    double minAreaForPercentile(int percentile) {
+        long[] sorted = areas.clone();
+        Arrays.sort(sorted);
+        int uniqueCount = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (uniqueCount == 0 || sorted[i] != sorted[uniqueCount - 1])
+                sorted[uniqueCount++] = sorted[i];
+        }
+        int cutoffIndex = (int) (uniqueCount * (100 - percentile) / 100.0);
+        return cutoffIndex < uniqueCount ? sorted[cutoffIndex] : 0;
+    }
+
+    /** New mask with 255 on the particles whose area is at least {@code minArea}, 0 elsewhere. */
+    ByteProcessor toMask(double minArea) {
+        return toMask(minArea, 0, 0, width, height);
+    }
+
+    /** Same as {@link #toMask(double)}, as runs instead of a byte mask. */
+    RunLengthMask toRunLengthMask(double minArea) {
+        RunLengthMask.Builder builder = new RunLengthMask.Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int run = rowFirstRun[y]; run < rowFirstRun[y + 1]; run++) {
+                if (areas[runLabel[run]] >= minArea)
+                    builder.addRun(runStart[run], runEnd[run]);
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Same as {@link #toMask(double)} restricted to a rectangle; parts of the
+     * rectangle outside the image are left at 0.
+     */
+    ByteProcessor toMask(double minArea, int x0, int y0, int regionWidth, int regionHeight) {
+        byte[] out = new byte[regionWidth * regionHeight];
+        int firstRow = Math.max(0, y0);
+        int lastRow = Math.min(height, y0 + regionHeight);
+        int x1 = x0 + regionWidth;
+        for (int y = firstRow; y < lastRow; y++) {
+            int offset = (y - y0) * regionWidth - x0;
+            for (int run = rowFirstRun[y]; run < rowFirstRun[y + 1]; run++) {
+                int start = Math.max(runStart[run], x0);
+                int end = Math.min(runEnd[run], x1);
+                if (start < end && areas[runLabel[run]] >= minArea)
+                    Arrays.fill(out, offset + start, offset + end, (byte) 255);
+            }
+        }
+        return new ByteProcessor(regionWidth, regionHeight, out, null);
+    }
+}
@@ -19,21 +19,27 @@ package ac.loong.tools.ijpi;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
-import ij.plugin.filter.BackgroundSubtracter;
-import ij.plugin.filter.GaussianBlur;
-import ij.plugin.filter.ParticleAnalyzer;
 import ij.plugin.frame.Recorder;
-import ij.process.Blitter;
-import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.AutoThresholder;
-import ij.plugin.LutLoader;
 import ij.plugin.PlugIn;
 import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 // import org.scijava.command.Command;
 // import org.scijava.plugin.Plugin;
 
@@ -42,8 +48,11 @@ public class RemoveDirtyStains implements PlugIn {
     // https://imagej.net/develop/plugin-architecture#how-can-a-plugin-specify-inputoutput-parameters
     // https://github.com/imagej/ImageJ/blob/master/ij/plugin/PlugIn.java
 
-    private boolean debugMode = false; // Default debug mode
-    private static ImagePlus pffcBackgroundDisplayImp = null; // Used for PFFC background preview
+    private static final String LIBRARY_PATTERN = "*.{tif,tiff,TIF,TIFF}"; // Flat-field images of a flat library
+
+    // 预览不显示调试图像，警告写入 Log 窗口
+    private final DirtyStainsEngine previewEngine = new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG);
+    private ImagePlus pffcBackgroundDisplayImp = null; // Used for PFFC background preview
 
     // For DialogListener and live preview state management
     private transient ImagePlus currentPreviewDisplayTargetImp = null;
@@ -73,6 +82,20 @@ public class RemoveDirtyStains implements PlugIn {
         final String previewLabel = "Preview";
         final String hidePffcBgLabel = "Hide PFFC background view (for preview)";
         final String debugLabel = "Debug mode";
+        final String stackLabel = "Stack mode (process all slices, channels and frames)";
+        final String threadsLabel = "Threads for stack mode (0 = all cores):";
+        final String downsampleLabel = "Background downsampling factor for flat preparation (1 = exact):";
+        final String blurMethodLabel = "Blur method for PFFC background:";
+        final String blurAccuracyLabel = "Accuracy of PFFC blur (relative error):";
+        final String sparseLabel = "Sparse correction: flat noise floor (-1 = whole frame):";
+        final String metricsLabel = "Record stage timings to the \"" + StageMetrics.TABLE_TITLE + "\" table and the log";
+        final String virtualLabel = "Virtual result for stack mode (slices corrected when viewed)";
+        final String cachedLabel = "Cached slices of the virtual result:";
+        final String readAheadLabel = "Read-ahead slices of the virtual result:";
+        final String integerLabel = "Integer output for 8/16-bit images (keep the sample scale, saturate)";
+        final String calibrationLabel = "Calibration file (optional, created if missing):";
+        final String libraryLabel = "Library of flat-field images (folder, optional, replaces the flat image):";
+        final String factorLabel = "Factor k tolerance when sampling stain pixels (95% half-width, -1 = exact):";
 
         GenericDialog gd = new GenericDialog("Remove Dirty Stains & PFFC");
         gd.addChoice(dirtyChoiceLabel, titles, titles[0]);
@@ -85,13 +108,32 @@ public class RemoveDirtyStains implements PlugIn {
         gd.addCheckbox("Auto-convert flat field image if parameters mismatch (size/bitdepth, etc. May cause signal loss)", true);
         gd.addCheckbox(previewLabel, false);
         gd.addCheckbox(hidePffcBgLabel, true);
-        gd.addCheckbox(debugLabel, this.debugMode); // Initialize with current debugMode state
+        gd.addCheckbox(debugLabel, false);
+        gd.addCheckbox(stackLabel, false);
+        gd.addNumericField(threadsLabel, 0, 0);
+        gd.addNumericField(downsampleLabel, 1, 0);
+        gd.addChoice(blurMethodLabel, BackgroundBlur.Method.labels(), BackgroundBlur.Method.EXACT.getLabel());
+        gd.addNumericField(blurAccuracyLabel, BackgroundBlur.DEFAULT_ACCURACY, 4);
+        gd.addNumericField(sparseLabel, -1, 1);
+        gd.addCheckbox(metricsLabel, false);
+        gd.addCheckbox(virtualLabel, false);
+        gd.addNumericField(cachedLabel, 16, 0);
+        gd.addNumericField(readAheadLabel, 2, 0);
+        gd.addCheckbox(integerLabel, false);
+        gd.addStringField(calibrationLabel, "", 30);
+        gd.addStringField(libraryLabel, "", 30);
+        gd.addNumericField(factorLabel, -1, 4);
 
         PFFCDialogUpdater dialogUpdater = new PFFCDialogUpdater(); // Listener doesn't need params if it gets from gd
         gd.addDialogListener(dialogUpdater);
 
         gd.showDialog(); 
+        dialogUpdater.dispose(); // 等待后台预览结束，之后再还原或处理图像
 
+        StageMetrics metrics = null;
+        StageMetrics.Activation metricsActivation = null;
+        String metricsImageTitle = null;
+        boolean debugMode = false;
         try {
             if (gd.wasCanceled()) {
                 // IJ.log("Plugin canceled by user."); 
@@ -127,7 +169,21 @@ public class RemoveDirtyStains implements PlugIn {
             @SuppressWarnings("unused") // preview checkbox value primarily used by listener
             boolean previewDialogValue = gd.getNextBoolean();
             boolean hidePffcBackgroundViewDialog = gd.getNextBoolean();
-            this.debugMode = gd.getNextBoolean();
+            debugMode = gd.getNextBoolean();
+            boolean stackMode = gd.getNextBoolean();
+            int threads = (int) gd.getNextNumber();
+            int flatDownsample = (int) gd.getNextNumber();
+            BackgroundBlur.Method blurMethod = BackgroundBlur.Method.fromLabel(gd.getNextChoice());
+            double blurAccuracy = gd.getNextNumber();
+            double sparseNoiseFloor = gd.getNextNumber();
+            boolean recordMetrics = gd.getNextBoolean();
+            boolean virtualResult = gd.getNextBoolean();
+            int cachedSlices = (int) gd.getNextNumber();
+            int readAheadSlices = (int) gd.getNextNumber();
+            boolean integerOutput = gd.getNextBoolean();
+            String calibrationPath = gd.getNextString().trim();
+            String libraryPath = gd.getNextString().trim();
+            double factorTolerance = gd.getNextNumber();
 
             //可能是因为DialogListener的引入，现在macro recorder不能自动记录各个参数生成命令了，虽然还是能读取命令并执行，所以要手动构造命令参数
             // --- Manual Macro Options Recording via Recorder.recordOption ---
@@ -158,9 +214,44 @@ public class RemoveDirtyStains implements PlugIn {
                 if (hidePffcBackgroundViewDialog) {
                     Recorder.recordOption("hide"); // Keyword from "Hide PFFC background view..." label
                 }
-                if (this.debugMode) {
+                if (debugMode) {
                     Recorder.recordOption("debug"); // Keyword from "Debug mode" label
                 }
+                if (stackMode) {
+                    Recorder.recordOption("stack"); // Keyword from "Stack mode (...)" label
+                    Recorder.recordOption("threads", Integer.toString(threads));
+                }
+                if (flatDownsample != 1) {
+                    Recorder.recordOption("background", Integer.toString(flatDownsample));
+                }
+                if (pffcEnabled) {
+                    Recorder.recordOption("blur", blurMethod.getLabel());
+                    Recorder.recordOption("accuracy", IJ.d2s(blurAccuracy, 4));
+                }
+                if (sparseNoiseFloor >= 0) {
+                    Recorder.recordOption("sparse",
+                            IJ.d2s(sparseNoiseFloor, (int) sparseNoiseFloor == sparseNoiseFloor ? 0 : 4));
+                }
+                if (recordMetrics) {
+                    Recorder.recordOption("record"); // Keyword from "Record stage timings..." label
+                }
+                if (stackMode && virtualResult) {
+                    Recorder.recordOption("virtual"); // Keyword from "Virtual result..." label
+                    Recorder.recordOption("cached", Integer.toString(cachedSlices));
+                    Recorder.recordOption("read-ahead", Integer.toString(readAheadSlices));
+                }
+                if (integerOutput) {
+                    Recorder.recordOption("integer"); // Keyword from "Integer output..." label
+                }
+                if (!calibrationPath.isEmpty()) {
+                    Recorder.recordOption("calibration", calibrationPath); // Keyword from "Calibration file..." label
+                }
+                if (!libraryPath.isEmpty()) {
+                    Recorder.recordOption("library", libraryPath); // Keyword from "Library of flat-field..." label
+                }
+                if (factorTolerance >= 0) {
+                    Recorder.recordOption("factor", IJ.d2s(factorTolerance, 6)); // Keyword from "Factor k tolerance..." label
+                }
             }
 
             // Parameter Validation
@@ -176,6 +267,48 @@ public class RemoveDirtyStains implements PlugIn {
                 IJ.error("PFFC blurring radius must be >= 0.5 pixels.");
                 return;
             }
+            if (pffcEnabled && !(blurAccuracy > 0 && blurAccuracy < 1)) {
+                IJ.error("PFFC blur accuracy must be between 0 and 1.");
+                return;
+            }
+            if (flatDownsample < 1) {
+                IJ.error("Invalid background downsampling factor. Must be >= 1.");
+                return;
+            }
+            if (threads < 0) {
+                IJ.error("Invalid number of threads. Must be >= 0.");
+                return;
+            }
+            if (Double.isNaN(sparseNoiseFloor)) {
+                IJ.error("Invalid sparse correction noise floor.");
+                return;
+            }
+            if (virtualResult && (cachedSlices < 1 || readAheadSlices < 0)) {
+                IJ.error("The virtual result needs at least 1 cached slice and >= 0 read-ahead slices.");
+                return;
+            }
+            if (Double.isNaN(factorTolerance)) {
+                IJ.error("Invalid correction factor tolerance.");
+                return;
+            }
+            DirtyStainsEngine engine = new DirtyStainsEngine(guiObserver(debugMode), factorTolerance);
+
+            if (!libraryPath.isEmpty() && !calibrationPath.isEmpty()) {
+                IJ.error("A flat library cannot be combined with a calibration file.");
+                return;
+            }
+            if (!libraryPath.isEmpty() && sampleImp != null && sampleImp.getType() != ImagePlus.COLOR_RGB) {
+                // 按当前切片的污点图案从平场库中选择平场，对话框中选择的平场不再使用
+                try {
+                    FlatFieldLibrary.Match match = FlatFieldLibrary.open(Paths.get(libraryPath), LIBRARY_PATTERN)
+                            .select(sampleImp);
+                    IJ.log("Flat field from library: " + match);
+                    flatImp = match.entry.open();
+                } catch (IOException | IllegalArgumentException e) {
+                    IJ.error("Flat library error: " + e.getMessage());
+                    return;
+                }
+            }
             if (sampleImp == null || flatImp == null) {
                 IJ.error("Could not retrieve selected images. Please ensure they are still open.");
                 return;
@@ -186,9 +319,9 @@ public class RemoveDirtyStains implements PlugIn {
                 IJ.error("Grayscale images (8/16/32bit) are required for processing.");
                 return;
             }
-            if (!areImagesCompatible(sampleImp, flatImp)) {
+            if (!engine.areImagesCompatible(sampleImp, flatImp)) {
                 if (autoConvert) {
-                    flatImp = convertImageToMatch(flatImp, sampleImp);
+                    flatImp = engine.convertImageToMatch(flatImp, sampleImp);
                     if (flatImp == null) {
                         IJ.error("Flat field image conversion failed or was aborted.");
                         return;
@@ -199,21 +332,68 @@ public class RemoveDirtyStains implements PlugIn {
                 }
             }
 
+            if (recordMetrics) {
+                metrics = new StageMetrics();
+                metricsImageTitle = sampleImp.getTitle();
+            }
+            metricsActivation = StageMetrics.activate(metrics);
+
+            FlatFieldCalibration calibration;
+            if (calibrationPath.isEmpty()) {
+                calibration = engine.getCalibration(flatImp, expandRatio, percentile, flatDownsample);
+            } else {
+                try {
+                    calibration = CalibrationFile.loadOrBuild(Paths.get(calibrationPath), flatImp, expandRatio,
+                            percentile, flatDownsample, engine);
+                } catch (IOException | InvalidPathException e) {
+                    IJ.error("Calibration file error: " + e.getMessage());
+                    return;
+                }
+            }
+            BackgroundBlur pffcBlur = pffcEnabled ? new BackgroundBlur(pffcRadius, blurMethod, blurAccuracy) : null;
+
+            // --- Stack Processing ---
+            if (stackMode && virtualResult && sampleImp.getStackSize() > 1) {
+                // 结果按需从源堆栈计算，源窗口必须保留
+                createVirtualResult(engine, sampleImp, calibration, pffcBlur, sparseNoiseFloor, integerOutput,
+                        cachedSlices, readAheadSlices).show();
+                return;
+            }
+            if (stackMode && sampleImp.getStackSize() > 1) {
+                ImagePlus stackResultImp = processStack(engine, sampleImp, calibration, pffcBlur, threads,
+                        sparseNoiseFloor, integerOutput);
+                stackResultImp.show();
+                if (!keepSourceWindow)
+                    closeSourceWindow(sampleImp, stackResultImp);
+                return;
+            }
+
+            // --- Fused Processing (no intermediate image has to be shown) ---
+            // 整数输出只有融合路径实现，此时不显示中间结果与 PFFC 背景
+            if (integerOutput || !debugMode && (!pffcEnabled || hidePffcBackgroundViewDialog)) {
+                ImagePlus fusedResultImp = removeFixedStainsFused(engine, sampleImp, calibration, pffcBlur,
+                        sparseNoiseFloor, integerOutput);
+                fusedResultImp.show();
+                if (!keepSourceWindow)
+                    closeSourceWindow(sampleImp, fusedResultImp);
+                return;
+            }
+
             // --- Main Processing ---
-            ImagePlus resultAfterStains = removeFixedStains(sampleImp, flatImp, expandRatio, percentile);
+            ImagePlus resultAfterStains = engine.removeFixedStains(sampleImp, calibration, sparseNoiseFloor);
             ImagePlus finalResultImp = null;
 
             if (resultAfterStains != null) {
                 finalResultImp = resultAfterStains;
 
                 if (pffcEnabled) {
-                    if (this.debugMode) {
+                    if (debugMode) {
                         ImagePlus intermediateDisplay = resultAfterStains.duplicate();
                         intermediateDisplay.setTitle("Cleaned_BeforePFFC_" + sampleImp.getTitle());
                         intermediateDisplay.show();
                     }
-                    ImagePlus pffcResult = pseudoFlatFieldCorrection(resultAfterStains, pffcRadius,
-                            hidePffcBackgroundViewDialog, false);
+                    ImagePlus pffcResult = pseudoFlatFieldCorrection(engine, resultAfterStains, pffcBlur,
+                            hidePffcBackgroundViewDialog, debugMode);
                     if (pffcResult != null) {
                         finalResultImp = pffcResult;
                         finalResultImp.setTitle("PFFC_Cleaned_" + sampleImp.getTitle());
@@ -225,16 +405,11 @@ public class RemoveDirtyStains implements PlugIn {
                     finalResultImp.setTitle("Cleaned_" + sampleImp.getTitle());
                 }
 
-                finalResultImp = convertImageToMatch(finalResultImp, sampleImp); // Ensure final result matches sample
+                finalResultImp = engine.convertImageToMatch(finalResultImp, sampleImp); // Ensure final result matches sample
                 finalResultImp.show();
 
-                if (!keepSourceWindow) {
-                    if (sampleImp != finalResultImp && sampleImp.getWindow() != null) {
-                        sampleImp.changes = false;
-                        sampleImp.close();
-                        // // IJ.log("Closed original sample image: " + sampleImp.getTitle()); //
-                    }
-                }
+                if (!keepSourceWindow)
+                    closeSourceWindow(sampleImp, finalResultImp);
             } else {
                 IJ.error("Stain removal process failed to produce a result.");
             }
@@ -245,6 +420,10 @@ public class RemoveDirtyStains implements PlugIn {
         } finally {
             // This block executes regardless of exceptions or normal completion (unless System.exit is called).
             // IJ.log("Plugin execution finished or terminated. Entering finally block for cleanup.");
+            if (metricsActivation != null)
+                metricsActivation.close();
+            if (metrics != null)
+                publishMetrics(metrics, metricsImageTitle);
 
             // Restore the previewed image if preview was active when the dialog was closed (OK or Cancel)
             if (isPreviewModeActive && currentPreviewDisplayTargetImp != null
@@ -262,7 +441,7 @@ public class RemoveDirtyStains implements PlugIn {
 
             // Clean up PFFC background window if it's not meant to stay due to debug mode
             if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible()) {
-                if (!this.debugMode) {
+                if (!debugMode) {
                     // IJ.log("Finally: Closing PFFC background display window.");
                     pffcBackgroundDisplayImp.close();
                     pffcBackgroundDisplayImp = null;
@@ -274,309 +453,548 @@ public class RemoveDirtyStains implements PlugIn {
         }
     }
 
-    private void resetPreviewState() {
-        this.currentPreviewDisplayTargetImp = null;
-        this.originalProcessorOfDisplayTarget = null;
-        this.isPreviewModeActive = false;
-        // IJ.log("Preview state has been reset.");
-    }
+    /**
+     * Logs warnings and shows the stack progress; in debug mode also shows the
+     * intermediate images and logs the correction factor of every image.
+     */
+    private static DirtyStainsEngine.Observer guiObserver(final boolean debugMode) {
+        return new DirtyStainsEngine.Observer() {
+            @Override
+            public boolean wantsIntermediates() {
+                return debugMode;
+            }
 
-    private ImagePlus removeFixedStains(ImagePlus sampleImp, ImagePlus flatImp, double expandRatio, int percentile) {
-        ImageProcessor preparedFlat = prepareFlatField(flatImp);
-        ImageProcessor stainMask = createDirtyMask(preparedFlat, percentile);
-        double k = calculateCorrectionFactor(sampleImp, preparedFlat, stainMask, expandRatio);
-        ImagePlus result = applyCorrection(sampleImp, preparedFlat, k);
-        result.setTitle("Cleaned_" + sampleImp.getTitle());
-        return result;
-    }
+            @Override
+            public void intermediate(String title, ImageProcessor ip) {
+                new ImagePlus(title, ip).show();
+            }
+
+            @Override
+            public void warning(String message) {
+                IJ.log(message);
+            }
 
-    private ImageProcessor prepareFlatField(ImagePlus flatImp) {
-        ImageProcessor ip = flatImp.getProcessor().duplicate();
-        ip.invert();
-        if (this.debugMode)
-            new ImagePlus("Debug_1.1-Inverted", ip.duplicate()).show();
+            @Override
+            public void info(String message) {
+                IJ.log(message);
+            }
 
-        BackgroundSubtracter ba = new BackgroundSubtracter();
-        ba.rollingBallBackground(ip, ip.getWidth(), false, false, true, true, true);
+            @Override
+            public void progress(int done, int total) {
+                IJ.showProgress(done, total);
+            }
 
-        if (this.debugMode)
-            new ImagePlus("Debug_1.2-BackgroundSubtracted", ip.duplicate()).show();
-        return ip;
+            @Override
+            public void correctionFactor(DirtyStainsEngine.CorrectionFactor factor) {
+                if (debugMode)
+                    IJ.log("Brightness correction factor: " + factor);
+            }
+        };
     }
 
-    private ImageProcessor createDirtyMask(ImageProcessor preparedIp, int percentile) {
-        ImageProcessor ip = preparedIp.duplicate();
-        ip.setAutoThreshold(AutoThresholder.Method.MaxEntropy, true, ImageProcessor.BLACK_AND_WHITE_LUT);
-        ByteProcessor maskBp = ip.createMask();
-        if (this.debugMode)
-            new ImagePlus("Debug_2.1-Thresholded_Mask", maskBp.duplicate()).show();
+    private void closeSourceWindow(ImagePlus sampleImp, ImagePlus resultImp) {
+        if (sampleImp != resultImp && sampleImp.getWindow() != null) {
+            sampleImp.changes = false;
+            sampleImp.close();
+            // // IJ.log("Closed original sample image: " + sampleImp.getTitle()); //
+        }
+    }
 
-        ImageProcessor filteredMask = filterSmallRegions(maskBp, percentile);
-        filteredMask.setColorModel(LutLoader.getLut("Grays"));
-        if (this.debugMode)
-            new ImagePlus("Debug_2.2-Small_Particle_Filtered_Mask", filteredMask.duplicate()).show();
+    /** Appends the metrics of one image to the stage metrics table and logs them as one JSON line. */
+    private static void publishMetrics(StageMetrics metrics, String label) {
+        ResultsTable table = ResultsTable.getResultsTable(StageMetrics.TABLE_TITLE);
+        if (table == null)
+            table = new ResultsTable();
+        metrics.addTo(table, label);
+        table.show(StageMetrics.TABLE_TITLE);
+        IJ.log(metrics.toLogLine(label));
+    }
 
-        return filteredMask;
+    private void resetPreviewState() {
+        this.currentPreviewDisplayTargetImp = null;
+        this.originalProcessorOfDisplayTarget = null;
+        this.isPreviewModeActive = false;
+        // IJ.log("Preview state has been reset.");
     }
 
-    private ImageProcessor filterSmallRegions(ByteProcessor maskBp, int percentile) {
-        ResultsTable rt = new ResultsTable();
-        ParticleAnalyzer pa = new ParticleAnalyzer(ParticleAnalyzer.SHOW_NONE,
-                ParticleAnalyzer.AREA,
-                rt, 0, Double.POSITIVE_INFINITY, 0, 1);
-        pa.analyze(new ImagePlus("", maskBp));
-
-        // 获取面积数据
-        // 使用HashSet去重
-        java.util.Set<Double> uniqueAreas = new java.util.HashSet<>();
-        for (int i = 0; i < rt.size(); i++) {
-            uniqueAreas.add(rt.getValue("Area", i));
+    private void restoreAndClearPreview() {
+        if (currentPreviewDisplayTargetImp != null && originalProcessorOfDisplayTarget != null) {
+            currentPreviewDisplayTargetImp.setProcessor(originalProcessorOfDisplayTarget.duplicate());
+            currentPreviewDisplayTargetImp.updateAndDraw();
         }
-        double[] areas = uniqueAreas.stream().mapToDouble(Double::doubleValue).toArray();
-
-        if (areas.length == 0) {
-            IJ.log("No particles found in the mask.");
-            return maskBp;
+        if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible() && isPreviewModeActive) {
+            pffcBackgroundDisplayImp.close();
+            pffcBackgroundDisplayImp = null;
         }
+        resetPreviewState();
+    }
 
-        // 计算面积阈值
-        java.util.Arrays.sort(areas);
-        int cutoffIndex = (int) (areas.length * (100 - percentile) / 100.0);
-        double minArea = cutoffIndex < areas.length ? areas[cutoffIndex] : 0;
-        // IJ.log("Minimum area: " + minArea);
-
-        ImagePlus resultImp = new ImagePlus("", maskBp.duplicate());
-        pa = new ParticleAnalyzer(ParticleAnalyzer.SHOW_MASKS,
-                ParticleAnalyzer.AREA,
-                rt, minArea, Double.POSITIVE_INFINITY, 0, 1);
-        pa.setHideOutputImage(true);
-        pa.analyze(resultImp);
-
-        return pa.getOutputImage().getStack().getProcessor(1);
+    /**
+     * PFFC of the whole image for the path that shows intermediate images: the blurred
+     * background is shown in its own window unless it is hidden (debug mode always
+     * shows it).
+     */
+    private ImagePlus pseudoFlatFieldCorrection(DirtyStainsEngine engine, ImagePlus impToCorrect,
+            BackgroundBlur blur, boolean hideBackgroundPreview, boolean debugMode) {
+        FloatProcessor background = engine.pffcBackground(impToCorrect.getProcessor(), blur);
+        if (debugMode || !hideBackgroundPreview)
+            showPffcBackground("PFFC_Blurred_Background_" + impToCorrect.getTitle(), background);
+        else
+            closePffcBackground();
+        return engine.applyPffcBackground(impToCorrect, background);
     }
 
-    private double calculateCorrectionFactor(ImagePlus sampleImp, ImageProcessor preparedIp,
-            ImageProcessor stainMaskIp, double expandRatio) {
-        try {
-            // 平场图像参数
-            double[] flatMeasures = measureRegions(preparedIp, stainMaskIp, expandRatio);
-            double mStain = flatMeasures[0];
-            double mSurround = flatMeasures[1];
-
-            // 样本图像参数
-            ImageProcessor sampleIp = sampleImp.getProcessor().duplicate();
-            double[] sampleMeasures = measureRegions(sampleIp, stainMaskIp, expandRatio);
-            double sStain = sampleMeasures[0];
-            double sSurround = sampleMeasures[1];
-
-            // 安全计算系数
-            double denominator = mStain - mSurround;
-            if (Math.abs(denominator) < 1e-6 || Double.isNaN(denominator)) {
-                // IJ.log("Warning: Correction factor denominator near zero or NaN. Defaulting k to 1.0.");
-                return 1.0;
-            }
-
-            double k = (-1) * (sStain - sSurround) / denominator;
-            // IJ.log("Brightness correction factor: " + k);
-            
-            return Math.max(0, k);
-        } catch (Exception e) {
-            IJ.log("Error calculating brightness correction factor: " + e.getMessage());
-            e.printStackTrace();
-            return 1.0;
+    /** Shows a copy of the PFFC background, reusing the background window when it has the same title. */
+    private void showPffcBackground(String title, ImageProcessor background) {
+        if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.getWindow() != null
+                && pffcBackgroundDisplayImp.isVisible()) {
+            if (!pffcBackgroundDisplayImp.getTitle().equals(title)) {
+                pffcBackgroundDisplayImp.close();
+                pffcBackgroundDisplayImp = new ImagePlus(title, background.duplicate());
+                pffcBackgroundDisplayImp.show();
+            } else {
+                pffcBackgroundDisplayImp.setProcessor(background.duplicate());
+            }
+        } else {
+            pffcBackgroundDisplayImp = new ImagePlus(title, background.duplicate());
+            pffcBackgroundDisplayImp.show();
         }
+        if (pffcBackgroundDisplayImp != null)
+            pffcBackgroundDisplayImp.updateAndDraw();
     }
 
-    private double[] measureRegions(ImageProcessor ip, ImageProcessor maskIp, double expandRatio) {
-        // 原始污渍区域
-        double stainMean = maskedMean(ip, maskIp);
-
-        // 扩展区域
-        ImageProcessor expandedMaskIp = expandMask(maskIp, expandRatio);
-        if (this.debugMode)
-            new ImagePlus("Debug_Expanded_Mask_in_Measure", expandedMaskIp.duplicate()).show();
-
-        expandedMaskIp.copyBits(maskIp, 0, 0, Blitter.XOR);
-        if (this.debugMode)
-            new ImagePlus("Debug_XOR_Ring_Mask_in_Measure", expandedMaskIp.duplicate()).show();
-
-        // 有效性检查
-        if (expandedMaskIp.getStatistics().mean == 0) {
-            // IJ.log("Warning: Surrounding ring mask is empty in measureRegions. Using stainMean for surroundMean.");
-            return new double[] { stainMean, stainMean };
+    private void closePffcBackground() {
+        if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible()) {
+            pffcBackgroundDisplayImp.close();
+            pffcBackgroundDisplayImp = null;
         }
+    }
 
-        double surroundMean = maskedMean(ip, expandedMaskIp);
-        return new double[] { stainMean, surroundMean };
+    /**
+     * Same result as removeFixedStains + pseudoFlatFieldCorrection + convertImageToMatch,
+     * computed by the fused kernel. Used whenever no intermediate image has to be shown.
+     */
+    private ImagePlus removeFixedStainsFused(DirtyStainsEngine engine, ImagePlus sampleImp,
+            FlatFieldCalibration calibration, BackgroundBlur pffcBlur, double sparseNoiseFloor,
+            boolean integerOutput) {
+        ImageProcessor result = engine.correctSlice(sampleImp.getProcessor(), calibration, pffcBlur,
+                sparseNoiseFloor, integerOutput);
+        ImagePlus resultImp = sampleImp.createImagePlus();
+        resultImp.setProcessor((pffcBlur != null ? "PFFC_Cleaned_" : "Cleaned_") + sampleImp.getTitle(), result);
+        resultImp.setProperty("Info", sampleImp.getProperty("Info"));
+        return resultImp;
     }
 
-    private ImageProcessor expandMask(ImageProcessor maskIp, double ratio) {
-        ImageProcessor expandedIp = maskIp.duplicate();
-        int width = maskIp.getWidth();
-        int steps = Math.max(1, (int)(width * ratio / 10));
-        
-        for (int i = 0; i < steps; i++) {
-            expandedIp.erode();
-        }
-        return expandedIp;
+    /**
+     * Corrects every slice/channel/frame of the sample stack against one flat
+     * calibration (in parallel, see {@link DirtyStainsEngine#correctStack}).
+     */
+    private ImagePlus processStack(DirtyStainsEngine engine, ImagePlus sampleImp, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur, int threads, double sparseNoiseFloor, boolean integerOutput)
+            throws InterruptedException, ExecutionException {
+        ImageStack resultStack = engine.correctStack(sampleImp.getStack(), calibration, pffcBlur, sparseNoiseFloor,
+                integerOutput, threads);
+        String prefix = pffcBlur != null ? "PFFC_Cleaned_" : "Cleaned_";
+        ImagePlus resultImp = sampleImp.createImagePlus();
+        resultImp.setStack(prefix + sampleImp.getTitle(), resultStack);
+        resultImp.setDimensions(sampleImp.getNChannels(), sampleImp.getNSlices(), sampleImp.getNFrames());
+        if (sampleImp.isHyperStack())
+            resultImp.setOpenAsHyperStack(true);
+        resultImp.resetDisplayRange();
+        return resultImp;
     }
 
-    private double maskedMean(ImageProcessor ip, ImageProcessor maskIp) {
-        double sum = 0;
-        int count = 0;
-        byte[] maskPixels = (byte[]) maskIp.getPixels(); //mask:0-255->byte
-        float[] origPixels = (float[]) ip.convertToFloat().getPixels(); //float:32bit
+    /**
+     * Result of the stack mode as a {@link CorrectedVirtualStack}: nothing is corrected
+     * up front, each slice is corrected when it is first viewed.
+     */
+    ImagePlus createVirtualResult(DirtyStainsEngine engine, ImagePlus sampleImp, FlatFieldCalibration calibration,
+            BackgroundBlur pffcBlur, double sparseNoiseFloor, boolean integerOutput, int cachedSlices,
+            int readAheadSlices) {
+        CorrectedVirtualStack stack = new CorrectedVirtualStack(engine, sampleImp.getStack(), calibration, pffcBlur,
+                sparseNoiseFloor, integerOutput, cachedSlices, readAheadSlices);
+        String prefix = pffcBlur != null ? "PFFC_Cleaned_" : "Cleaned_";
+        ImagePlus resultImp = sampleImp.createImagePlus();
+        resultImp.setStack(prefix + sampleImp.getTitle(), stack);
+        resultImp.setDimensions(sampleImp.getNChannels(), sampleImp.getNSlices(), sampleImp.getNFrames());
+        if (sampleImp.isHyperStack())
+            resultImp.setOpenAsHyperStack(true);
+        resultImp.resetDisplayRange();
+        return resultImp;
+    }
 
-        for (int i = 0; i < maskPixels.length; i++) {
-            if (maskPixels[i] != 0) {
-                sum += origPixels[i];
-                count++;
-            }
+    /** Parameters of one preview run, read from the dialog on the event thread. */
+    private static final class PreviewSettings {
+        final ImagePlus target;
+        final ImageProcessor original; // read only, never modified by the preview
+        final ImagePlus flat;
+        final double expandRatio;
+        final int percentile;
+        final int flatDownsample;
+        final BackgroundBlur pffcBlur; // null without PFFC
+        final boolean hidePffcBackground;
+        final double sparseNoiseFloor; // < 0: whole frame
+        final boolean integerOutput;
+        final double factorTolerance; // < 0: exact k
+        final String calibrationPath; // empty: no calibration file
+        final String libraryPath; // empty: the flat above, otherwise picked from this library
+
+        PreviewSettings(ImagePlus target, ImageProcessor original, ImagePlus flat, double expandRatio, int percentile,
+                int flatDownsample, BackgroundBlur pffcBlur, boolean hidePffcBackground, double sparseNoiseFloor,
+                boolean integerOutput, double factorTolerance, String calibrationPath, String libraryPath) {
+            this.target = target;
+            this.original = original;
+            this.flat = flat;
+            this.expandRatio = expandRatio;
+            this.percentile = percentile;
+            this.flatDownsample = flatDownsample;
+            this.pffcBlur = pffcBlur;
+            this.hidePffcBackground = hidePffcBackground;
+            this.sparseNoiseFloor = sparseNoiseFloor;
+            this.integerOutput = integerOutput;
+            this.factorTolerance = factorTolerance;
+            this.calibrationPath = calibrationPath;
+            this.libraryPath = libraryPath;
         }
-        // IJ.log("masked_mean: " + String.valueOf(count > 0 ? sum / count : 0.0));
-        return count > 0 ? sum / count : 0.0;
     }
 
-    private ImagePlus applyCorrection(ImagePlus sampleImp, ImageProcessor processedFp, double k) {
-        ImageProcessor correction = processedFp.duplicate().convertToFloat();
-        correction.multiply(k);
+    /**
+     * The preview pipeline split into stages that each remember their last inputs and
+     * output: prepared flat (flat, downsampling) → stain mask (percentile) →
+     * calibration (expansion ratio) → k and corrected sample (sample) → PFFC
+     * background (blur). A parameter change only recomputes the stages after it, so a
+     * radius sweep costs one blur per step. Same pixels as removeFixedStainsFused, for
+     * the stretched and the integer output and with the same (exact or sampled) k.
+     */
+    private class PreviewStages {
+        private final MemoizedStage<ImageProcessor> preparedFlat = new MemoizedStage<>();
+        private final MemoizedStage<RunLengthMask> stainMask = new MemoizedStage<>();
+        private final MemoizedStage<FlatFieldCalibration> calibration = new MemoizedStage<>();
+        private final MemoizedStage<Double> correctionFactor = new MemoizedStage<>();
+        private final MemoizedStage<float[]> corrected = new MemoizedStage<>();
+        private final MemoizedStage<float[]> background = new MemoizedStage<>();
+
+        FlatFieldCalibration calibration(final ImagePlus flat, final double expandRatio, final int percentile,
+                final int flatDownsample) {
+            FlatFieldCalibration.Key key = FlatFieldCalibration.keyOf(flat, expandRatio, percentile, flatDownsample);
+            FlatFieldCalibration.Key flatKey = FlatFieldCalibration.keyOf(flat, flatDownsample);
+            FlatFieldCalibration cached = FlatFieldCalibration.getCached(key);
+            if (cached != null) {
+                // 从标定缓存中恢复各阶段的输出，之后只改百分位或扩展比例时也无需重新准备平场
+                preparedFlat.put(cached.getPreparedFlat(), flatKey);
+                stainMask.put(cached.getStainRuns(), cached.getPreparedFlat(), percentile);
+                calibration.put(cached, cached.getPreparedFlat(), cached.getStainRuns(), expandRatio);
+                return cached;
+            }
+            final ImageProcessor prepared = preparedFlat.get(() -> previewEngine.prepareFlatField(flat, flatDownsample),
+                    flatKey);
+            final RunLengthMask mask = stainMask.get(() -> previewEngine.createDirtyMask(prepared, percentile), prepared,
+                    percentile);
+            FlatFieldCalibration result = calibration.get(
+                    () -> previewEngine.calibrate(prepared, mask, expandRatio, percentile, flatDownsample), prepared, mask,
+                    expandRatio);
+            FlatFieldCalibration.putCached(key, result);
+            return result;
+        }
 
-        ImageProcessor result = sampleImp.getProcessor().duplicate().convertToFloat();
-        result.copyBits(correction, 0, 0, Blitter.ADD);
-        result.resetMinAndMax();
+        /** k of the sample, computed like the engine of the OK path (exact, or sampled to the tolerance). */
+        private double correctionFactor(final ImageProcessor sample, final FlatFieldCalibration calibration,
+                final double factorTolerance) {
+            return correctionFactor.get(() -> new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG, factorTolerance)
+                    .calculateCorrectionFactor(sample, calibration), sample, calibration, factorTolerance);
+        }
 
-        // 直接复制原始图像并替换其像素值以保留元数据
-        ImagePlus cleanedImp = sampleImp.duplicate();
-        cleanedImp.setProcessor(result);
+        /** sample + k * flat in float, shared by the PFFC background and the output. */
+        private float[] corrected(final ImageProcessor sample, final FlatFieldCalibration calibration,
+                final double sparseNoiseFloor, double factorTolerance) {
+            final double k = correctionFactor(sample, calibration, factorTolerance);
+            return corrected.get(() -> {
+                float[] pixels = new float[sample.getPixelCount()];
+                if (sparseNoiseFloor >= 0)
+                    CorrectionKernel.addScaled(sample.getPixels(), calibration.getPreparedFlat().getPixels(),
+                            calibration.getCorrectionSupport(sparseNoiseFloor), k, pixels);
+                else
+                    CorrectionKernel.addScaled(sample.getPixels(), calibration.getPreparedFlat().getPixels(), k,
+                            pixels);
+                return pixels;
+            }, sample, calibration, k, sparseNoiseFloor < 0 ? -1.0 : sparseNoiseFloor);
+        }
 
-        cleanedImp.setTitle("Cleaned_RAW_" + sampleImp.getTitle());
+        FloatProcessor background(ImageProcessor sample, FlatFieldCalibration calibration, final BackgroundBlur blur,
+                double sparseNoiseFloor, double factorTolerance) {
+            final int width = sample.getWidth();
+            final int height = sample.getHeight();
+            final float[] source = corrected(sample, calibration, sparseNoiseFloor, factorTolerance);
+            float[] pixels = background.get(() -> {
+                float[] blurred = source.clone();
+                blur.blur(new FloatProcessor(width, height, blurred, null));
+                return blurred;
+            }, source, blur.getSigma(), blur.getMethod(), blur.getAccuracy());
+            return new FloatProcessor(width, height, pixels, null);
+        }
 
-        return cleanedImp;
-    }
+        /**
+         * The corrected sample (with PFFC when {@code blur} is not null) at the sample bit
+         * depth, stretched or, with {@code integerOutput}, in the scale of the sample.
+         */
+        ImageProcessor correct(ImageProcessor sample, FlatFieldCalibration calibration, BackgroundBlur blur,
+                double sparseNoiseFloor, boolean integerOutput, double factorTolerance) {
+            if (integerOutput && IntegerCorrectionKernel.supports(sample)) {
+                // 与 DirtyStainsEngine.correctSlice 的整数路径相同
+                return IntegerCorrectionKernel.correct(sample, calibration.getPreparedFlat(),
+                        sparseNoiseFloor >= 0 ? calibration.getCorrectionSupport(sparseNoiseFloor) : null,
+                        correctionFactor(sample, calibration, factorTolerance), blur);
+            }
+            float[] pixels = corrected(sample, calibration, sparseNoiseFloor, factorTolerance).clone();
+            if (blur != null) {
+                float[] backgroundPixels = (float[]) background(sample, calibration, blur, sparseNoiseFloor,
+                        factorTolerance).getPixels();
+                double backgroundMean = CorrectionKernel.mean(backgroundPixels);
+                if (backgroundMean != 0)
+                    CorrectionKernel.divideByBackground(pixels, backgroundPixels, backgroundMean);
+            }
+            return CorrectionKernel.toBitDepth(pixels, sample.getWidth(), sample.getHeight(), sample.getBitDepth(),
+                    null);
+        }
 
-    private boolean areImagesCompatible(ImagePlus imp1, ImagePlus imp2) {
-        return imp1.getWidth() == imp2.getWidth() &&
-                imp1.getHeight() == imp2.getHeight() &&
-                imp1.getBitDepth() == imp2.getBitDepth() &&
-                imp1.getType() == imp2.getType();
+        void clear() {
+            preparedFlat.clear();
+            stainMask.clear();
+            calibration.clear();
+            correctionFactor.clear();
+            corrected.clear();
+            background.clear();
+        }
     }
 
-    private ImagePlus convertImageToMatch(ImagePlus source, ImagePlus target) {
-        ImageProcessor sourceIp = source.getProcessor();
-        // ImageProcessor targetIp = target.getProcessor();
-        
-        // 如果尺寸不同，进行缩放
-        if (source.getWidth() != target.getWidth() || source.getHeight() != target.getHeight()) {
-            sourceIp = sourceIp.resize(target.getWidth(), target.getHeight());
+    /**
+     * Computes the live preview off the event thread. A request only starts after the
+     * parameters have been left alone for {@link #DELAY_MS}; every new request (or
+     * {@link #cancel()}) makes the run in progress stale, which then stops at the next
+     * stage and never touches the display. Large images are first corrected on a
+     * proxy shrunk to at most {@link #PROXY_SIZE} pixels, shown upscaled, and then
+     * refined at full resolution. Proxy and full resolution keep their own
+     * {@link PreviewStages}, so only the stages downstream of a change are redone.
+     */
+    private class PreviewWorker {
+        private static final long DELAY_MS = 200;
+        private static final int PROXY_SIZE = 1024;
+
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Remove Dirty Stains preview");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final AtomicInteger generation = new AtomicInteger();
+        private ScheduledFuture<?> pending;
+
+        // Only used on the worker thread
+        private final MemoizedStage<ImagePlus> libraryFlat = new MemoizedStage<>();
+        private final MemoizedStage<ImagePlus> matchedFlat = new MemoizedStage<>();
+        private final MemoizedStage<FlatFieldCalibration> fileCalibration = new MemoizedStage<>();
+        private final MemoizedStage<ImagePlus> proxyFlat = new MemoizedStage<>();
+        private final MemoizedStage<ImageProcessor> proxySample = new MemoizedStage<>();
+        private final PreviewStages proxyStages = new PreviewStages();
+        private final PreviewStages fullStages = new PreviewStages();
+
+        synchronized void submit(final PreviewSettings settings) {
+            final int run = generation.incrementAndGet();
+            if (pending != null)
+                pending.cancel(false);
+            if (!executor.isShutdown())
+                pending = executor.schedule(() -> render(settings, run), DELAY_MS, TimeUnit.MILLISECONDS);
         }
-        
-        // 如果位深不同，进行转换
-        if (source.getBitDepth() != target.getBitDepth()) {
-            switch (target.getBitDepth()) {
-                case 8:
-                    sourceIp = sourceIp.convertToByte(true);
-                    break;
-                case 16:
-                    sourceIp = sourceIp.convertToShort(true);
-                    break;
-                case 32:
-                    sourceIp = sourceIp.convertToFloat();
-                    break;
-            }
+
+        synchronized void cancel() {
+            generation.incrementAndGet();
+            if (pending != null)
+                pending.cancel(false);
+            pending = null;
         }
-        
-        // 如果类型不同（例如RGB vs 灰度），进行转换
-        if (source.getType() != target.getType()) {
-            if (target.getType() == ImagePlus.COLOR_RGB) {
-                sourceIp = sourceIp.convertToRGB();
+
+        /**
+         * Stops the worker and waits until the run in progress and the display updates
+         * it has already posted are done, so the caller owns the previewed image again.
+         */
+        void shutdown() {
+            cancel();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                if (!EventQueue.isDispatchThread())
+                    EventQueue.invokeAndWait(() -> {
+                    });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (InvocationTargetException e) {
+                // the flush task is empty
             }
+            // 释放各阶段缓存的全分辨率中间结果
+            libraryFlat.clear();
+            matchedFlat.clear();
+            fileCalibration.clear();
+            proxyFlat.clear();
+            proxySample.clear();
+            proxyStages.clear();
+            fullStages.clear();
         }
 
-        // return new ImagePlus("Converted", sourceIp);
-        // 复制目标图像并替换其像素值以保留元数据
-        ImagePlus convertedImp = source.duplicate();
-        convertedImp.setProcessor(sourceIp);
-        convertedImp.setTitle(source.getTitle());
+        private boolean isStale(int run) {
+            return generation.get() != run;
+        }
 
-        return convertedImp;
-    }
+        private void render(PreviewSettings settings, int run) {
+            if (isStale(run))
+                return;
+            try {
+                final ImageProcessor original = settings.original;
+                ImagePlus sample = settings.target.createImagePlus();
+                sample.setProcessor(settings.target.getTitle(), original);
+                ImagePlus flat = settings.libraryPath.isEmpty() ? settings.flat : selectLibraryFlat(settings);
+                if (flat != null)
+                    flat = matchFlat(flat, sample);
+                if (flat == null || sample.getType() == ImagePlus.COLOR_RGB || flat.getType() == ImagePlus.COLOR_RGB) {
+                    // 平场转换失败或为 RGB 图像时无法预览
+                    showOriginal(run);
+                    return;
+                }
 
+                final int width = sample.getWidth();
+                final int height = sample.getHeight();
+                final int factor = (Math.max(width, height) + PROXY_SIZE - 1) / PROXY_SIZE;
+                if (factor > 1) {
+                    ImageProcessor proxySampleIp = proxySample.get(
+                            () -> original.resize(width / factor, height / factor, true), original, factor);
+                    ImagePlus proxyFlatImp = shrinkFlat(flat, factor);
+                    if (isStale(run))
+                        return;
+                    FlatFieldCalibration proxyCalibration = proxyStages.calibration(proxyFlatImp,
+                            settings.expandRatio, settings.percentile, Math.max(1, settings.flatDownsample / factor));
+                    if (isStale(run))
+                        return;
+                    BackgroundBlur proxyBlur = settings.pffcBlur == null ? null
+                            : new BackgroundBlur(settings.pffcBlur.getSigma() / factor, settings.pffcBlur.getMethod(),
+                                    settings.pffcBlur.getAccuracy());
+                    ImageProcessor proxy = proxyStages.correct(proxySampleIp, proxyCalibration, proxyBlur,
+                            settings.sparseNoiseFloor, settings.integerOutput, settings.factorTolerance);
+                    proxy.setInterpolationMethod(ImageProcessor.BILINEAR);
+                    show(run, settings, proxy.resize(width, height), false, null);
+                }
 
-    private ImagePlus pseudoFlatFieldCorrection(ImagePlus impToCorrect, double radius, boolean hideBackgroundPreview,
-            boolean isInPreviewMode) {
-        if (impToCorrect == null) {
-            IJ.log("PFFC Error: Input image is null.");
-            return null;
+                if (isStale(run))
+                    return;
+                FlatFieldCalibration calibration = settings.calibrationPath.isEmpty() ? null
+                        : loadFileCalibration(flat, settings);
+                if (calibration == null)
+                    calibration = fullStages.calibration(flat, settings.expandRatio, settings.percentile,
+                            settings.flatDownsample);
+                if (isStale(run))
+                    return;
+                ImageProcessor result = fullStages.correct(original, calibration, settings.pffcBlur,
+                        settings.sparseNoiseFloor, settings.integerOutput, settings.factorTolerance);
+                // 整数输出与 OK 后一样不显示 PFFC 背景
+                FloatProcessor background = settings.pffcBlur != null && !settings.hidePffcBackground
+                        && !settings.integerOutput
+                        ? fullStages.background(original, calibration, settings.pffcBlur, settings.sparseNoiseFloor,
+                                settings.factorTolerance)
+                        : null;
+                show(run, settings, result, true, background);
+            } catch (RuntimeException e) {
+                IJ.log("Preview failed: " + e);
+                showOriginal(run);
+            }
         }
-        if (radius < 0.5) {
-            // IJ.log("PFFC Warning: Radius is too small (<0.5), PFFC might not be effective. Using 0.5.");
-            radius = 0.5;
+
+        /** The flat the OK path would pick from the library for this sample, or null if none fits. */
+        private ImagePlus selectLibraryFlat(final PreviewSettings settings) {
+            return libraryFlat.get(() -> {
+                try {
+                    return FlatFieldLibrary.open(Paths.get(settings.libraryPath), LIBRARY_PATTERN)
+                            .select(settings.original, FlatFieldLibrary.exposureOf(settings.target)).entry.open();
+                } catch (IOException | IllegalArgumentException e) {
+                    IJ.log("Preview: flat library error: " + e.getMessage());
+                    return null;
+                }
+            }, settings.libraryPath, settings.original);
         }
 
-        ImagePlus outputImp = impToCorrect.duplicate();
-        outputImp.setTitle("PFFC_Applied_to_" + impToCorrect.getTitle());
-        ImageProcessor outputIp = outputImp.getProcessor();
-        ImageProcessor originalIpReader = impToCorrect.getProcessor();
+        /**
+         * The calibration stored in the calibration file if it was made from this flat with
+         * these parameters, as the OK path would load it; null if it has to be built. The
+         * preview never writes the file.
+         */
+        private FlatFieldCalibration loadFileCalibration(final ImagePlus flat, final PreviewSettings settings) {
+            return fileCalibration.get(() -> {
+                try {
+                    return CalibrationFile.loadMatching(Paths.get(settings.calibrationPath),
+                            CalibrationFile.checksum(flat.getProcessor()), settings.expandRatio, settings.percentile,
+                            settings.flatDownsample);
+                } catch (IOException | InvalidPathException e) {
+                    return null; // OK 时会重新标定
+                }
+            }, settings.calibrationPath, flat, flat.getProcessor().getPixels(), settings.expandRatio,
+                    settings.percentile, settings.flatDownsample);
+        }
 
-        ImageProcessor blurredBackgroundSourceIp = originalIpReader.duplicate().convertToFloat();
-        GaussianBlur gb = new GaussianBlur();
-        gb.blurGaussian(blurredBackgroundSourceIp, radius, radius, 0.02);
+        /** The flat converted to match the sample, reused while neither of them changes. */
+        private ImagePlus matchFlat(final ImagePlus flat, final ImagePlus sample) {
+            if (previewEngine.areImagesCompatible(sample, flat))
+                return flat;
+            return matchedFlat.get(() -> previewEngine.convertImageToMatch(flat, sample), flat, flat.getProcessor().getPixels(),
+                    sample.getWidth(), sample.getHeight(), sample.getBitDepth(), sample.getType());
+        }
 
-        double backgroundMeanIntensity = blurredBackgroundSourceIp.getStatistics().mean;
-        if (Double.isNaN(backgroundMeanIntensity) || backgroundMeanIntensity == 0) {
-            // IJ.log("PFFC Warning: Mean intensity of blurred background is zero or NaN.");
-            if (backgroundMeanIntensity == 0)
-                return outputImp.duplicate();
+        private ImagePlus shrinkFlat(final ImagePlus flat, final int factor) {
+            return proxyFlat.get(() -> {
+                ImagePlus shrunk = flat.createImagePlus();
+                shrunk.setProcessor(flat.getTitle(),
+                        flat.getProcessor().resize(flat.getWidth() / factor, flat.getHeight() / factor, true));
+                return shrunk;
+            }, flat, flat.getProcessor().getPixels(), factor);
         }
 
-        String bgTitle = "PFFC_Blurred_Background_" + impToCorrect.getTitle();
-        if ((!hideBackgroundPreview && isInPreviewMode) || (this.debugMode && !isInPreviewMode)
-                || (!isInPreviewMode && !hideBackgroundPreview && !this.debugMode)) {
-            if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.getWindow() != null
-                    && pffcBackgroundDisplayImp.isVisible()) {
-                if (!pffcBackgroundDisplayImp.getTitle().equals(bgTitle)) {
+        /**
+         * Posts {@code ip} to the previewed image. With {@code updateBackground} the PFFC
+         * background window shows {@code background}, or is closed if it is null.
+         */
+        private void show(final int run, final PreviewSettings settings, ImageProcessor ip,
+                final boolean updateBackground, final ImageProcessor background) {
+            ImagePlus shown = new ImagePlus(settings.target.getTitle(), ip);
+            final ImageProcessor display = previewEngine.areImagesCompatible(shown, settings.target) ? ip
+                    : previewEngine.convertImageToMatch(shown, settings.target).getProcessor().duplicate();
+            EventQueue.invokeLater(() -> {
+                if (isStale(run) || currentPreviewDisplayTargetImp != settings.target)
+                    return;
+                currentPreviewDisplayTargetImp.setProcessor(display);
+                currentPreviewDisplayTargetImp.updateAndDraw();
+                if (!updateBackground)
+                    return;
+                if (background != null) {
+                    showPffcBackground("PFFC_Blurred_Background_Cleaned_" + settings.target.getTitle(),
+                            background);
+                } else if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible()) {
                     pffcBackgroundDisplayImp.close();
-                    pffcBackgroundDisplayImp = new ImagePlus(bgTitle, blurredBackgroundSourceIp.duplicate());
-                    pffcBackgroundDisplayImp.show();
-                } else {
-                    pffcBackgroundDisplayImp.setProcessor(blurredBackgroundSourceIp.duplicate());
+                    pffcBackgroundDisplayImp = null;
                 }
-            } else {
-                pffcBackgroundDisplayImp = new ImagePlus(bgTitle, blurredBackgroundSourceIp.duplicate());
-                pffcBackgroundDisplayImp.show();
-            }
-            if (pffcBackgroundDisplayImp != null)
-                pffcBackgroundDisplayImp.updateAndDraw();
-        } else if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible()) {
-            if (isInPreviewMode && hideBackgroundPreview) {
-                pffcBackgroundDisplayImp.close();
-                pffcBackgroundDisplayImp = null;
-            } else if (!this.debugMode && !isInPreviewMode) {
-                pffcBackgroundDisplayImp.close();
-                pffcBackgroundDisplayImp = null;
-            }
+            });
         }
 
-        ImageProcessor floatOutputIp = outputIp.convertToFloat();
-        float[] pixels = (float[]) floatOutputIp.getPixels();
-        float[] blurredPixels = (float[]) blurredBackgroundSourceIp.getPixels();
-
-        for (int i = 0; i < pixels.length; i++) {
-            double bgPixelVal = blurredPixels[i];
-            if (bgPixelVal != 0 && !Double.isNaN(bgPixelVal)) {
-                double originalPixelVal = originalIpReader.getf(i);
-                double correctedVal = (originalPixelVal * backgroundMeanIntensity) / bgPixelVal;
-                pixels[i] = (float) correctedVal;
-            }
+        private void showOriginal(final int run) {
+            EventQueue.invokeLater(() -> {
+                if (!isStale(run))
+                    restoreAndClearPreview();
+            });
         }
-        outputIp.setPixels(pixels);
-        floatOutputIp.resetMinAndMax();
-        outputImp.setProcessor(floatOutputIp);
-
-        return outputImp;
     }
 
     private class PFFCDialogUpdater implements DialogListener {
+        private final PreviewWorker previewWorker = new PreviewWorker();
+
+        /** Stops the preview worker; called once the dialog has been closed. */
+        void dispose() {
+            previewWorker.shutdown();
+        }
+
         @Override
         public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
             // IJ.log("-----------------------------------------------------");
@@ -601,22 +1019,33 @@ public class RemoveDirtyStains implements PlugIn {
             double expRatio = parseDouble(((java.awt.TextField) numerics.get(0)).getText(), 0.1);
             int perc = parseInt(((java.awt.TextField) numerics.get(1)).getText(), 80);
             double pffcRad = parseDouble(((java.awt.TextField) numerics.get(2)).getText(), 50.0);
+            int flatDownsample = numerics.size() > 4
+                    ? parseInt(((java.awt.TextField) numerics.get(4)).getText(), 1) : 1;
+            BackgroundBlur.Method blurMethod = choices.size() > 2
+                    ? BackgroundBlur.Method.fromLabel(((java.awt.Choice) choices.get(2)).getSelectedItem())
+                    : BackgroundBlur.Method.EXACT;
+            double blurAccuracy = numerics.size() > 5
+                    ? parseDouble(((java.awt.TextField) numerics.get(5)).getText(), BackgroundBlur.DEFAULT_ACCURACY)
+                    : BackgroundBlur.DEFAULT_ACCURACY;
+            double sparseNoiseFloor = numerics.size() > 6
+                    ? parseDouble(((java.awt.TextField) numerics.get(6)).getText(), -1) : -1;
+            double factorTolerance = numerics.size() > 9
+                    ? parseDouble(((java.awt.TextField) numerics.get(9)).getText(), -1) : -1;
+            java.util.Vector<?> strings = gd.getStringFields();
+            String calibrationPath = strings != null && strings.size() > 0
+                    ? ((java.awt.TextField) strings.get(0)).getText().trim() : "";
+            String libraryPath = strings != null && strings.size() > 1
+                    ? ((java.awt.TextField) strings.get(1)).getText().trim() : "";
 
             boolean pffcSelected = ((java.awt.Checkbox) checkboxes.get(0)).getState();
             boolean userWantsPreviewNow = ((java.awt.Checkbox) checkboxes.get(3)).getState();
             boolean hidePffcBG = ((java.awt.Checkbox) checkboxes.get(4)).getState();
-            RemoveDirtyStains.this.debugMode = ((java.awt.Checkbox) checkboxes.get(5)).getState();
-
-            // IJ.log("Params: Preview=" + userWantsPreviewNow + ", PFFC=" + pffcSelected +
-            // ", HideBG=" + hidePffcBG + ", Radius=" + pffcRad + ", ClassDebug=" +
-            // RemoveDirtyStains.this.debugMode);
-            // IJ.log("Selected Dirty: " + (newSelectedDirtyImp != null ?
-            // newSelectedDirtyImp.getTitle() : "null") +
-            // ", Selected Flat: " + (currentFlatImpSource != null ?
-            // currentFlatImpSource.getTitle() : "null"));
+            boolean integerOutput = checkboxes.size() > 9 && ((java.awt.Checkbox) checkboxes.get(9)).getState();
+            // The debug checkbox is read in run(); the preview never shows debug images.
 
             if (newSelectedDirtyImp == null || currentFlatImpSource == null) {
                 // IJ.log("Preview Error: Dirty or Flat image not found (null).");
+                previewWorker.cancel();
                 if (isPreviewModeActive && currentPreviewDisplayTargetImp != null
                         && originalProcessorOfDisplayTarget != null) {
                     // IJ.log("Restoring original due to null selected image during active preview.");
@@ -635,6 +1064,15 @@ public class RemoveDirtyStains implements PlugIn {
                     paramsValid = false;
                 if (pffcSelected && (Double.isNaN(pffcRad) || pffcRad < 0.5))
                     paramsValid = false;
+                if (flatDownsample < 1)
+                    paramsValid = false;
+                if (pffcSelected && !(blurAccuracy > 0 && blurAccuracy < 1))
+                    paramsValid = false;
+                if (Double.isNaN(sparseNoiseFloor) || Double.isNaN(factorTolerance))
+                    paramsValid = false;
+                // 平场库不能与标定文件同时使用（OK 时会报错）
+                if (!libraryPath.isEmpty() && !calibrationPath.isEmpty())
+                    paramsValid = false;
             } catch (Exception ex) {
                 paramsValid = false;
             }
@@ -649,10 +1087,6 @@ public class RemoveDirtyStains implements PlugIn {
             if (userWantsPreviewNow) {
                 // IJ.log("Preview is ON.");
                 if (currentPreviewDisplayTargetImp != newSelectedDirtyImp) {
-                    // IJ.log("Preview target image has changed from " +
-                    // (currentPreviewDisplayTargetImp != null ?
-                    // currentPreviewDisplayTargetImp.getTitle() : "null") + " to " +
-                    // newSelectedDirtyImp.getTitle());
                     if (currentPreviewDisplayTargetImp != null && originalProcessorOfDisplayTarget != null
                             && isPreviewModeActive) {
                         // IJ.log("Restoring previously previewed image: " + currentPreviewDisplayTargetImp.getTitle());
@@ -664,115 +1098,26 @@ public class RemoveDirtyStains implements PlugIn {
                     // IJ.log("Stored original processor for new target: " + currentPreviewDisplayTargetImp.getTitle());
                 } else if (originalProcessorOfDisplayTarget == null && currentPreviewDisplayTargetImp != null) {
                     originalProcessorOfDisplayTarget = currentPreviewDisplayTargetImp.getProcessor().duplicate();
-                    // IJ.log("Preview toggled ON for current target. Stored original processor for:
-                    // " + currentPreviewDisplayTargetImp.getTitle());
                 }
 
                 if (currentPreviewDisplayTargetImp == null || originalProcessorOfDisplayTarget == null) {
-                    // IJ.log("Error: currentPreviewDisplayTargetImp or
-                    // originalProcessorOfDisplayTarget is null. Cannot proceed with preview.");
                     resetPreviewState();
                     return true;
                 }
                 isPreviewModeActive = true;
 
-                ImagePlus previewDirtyImgForProcessing = currentPreviewDisplayTargetImp.duplicate();
-                previewDirtyImgForProcessing.setProcessor(originalProcessorOfDisplayTarget.duplicate());
-                // IJ.log("Created fresh 'previewDirtyImgForProcessing' from original processor
-                // for: " + currentPreviewDisplayTargetImp.getTitle());
-
-                ImagePlus previewFlatCopy = currentFlatImpSource.duplicate();
-                // IJ.log("Duplicated flat field image for processing: " +
-                // previewFlatCopy.getTitle());
-
-                if (!areImagesCompatible(previewDirtyImgForProcessing, previewFlatCopy)) {
-                    // IJ.log("Images for preview processing are not compatible. Attempting to
-                    // convert flat image...");
-                    previewFlatCopy = convertImageToMatch(previewFlatCopy, previewDirtyImgForProcessing);
-                    if (previewFlatCopy == null) {
-                        // IJ.log("Preview: Flat conversion failed.");
-                        restoreAndClearPreview();
-                        return true;
-                    }
-                    // IJ.log("Flat image converted for preview compatibility.");
-                }
-                if (previewDirtyImgForProcessing.getType() == ImagePlus.COLOR_RGB
-                        || previewFlatCopy.getType() == ImagePlus.COLOR_RGB) {
-                    // IJ.log("Preview: Grayscale images required.");
-                    restoreAndClearPreview();
-                    return true;
-                }
-
-                boolean actualDebugCheckboxState = RemoveDirtyStains.this.debugMode;
-                RemoveDirtyStains.this.debugMode = false;
-                // IJ.log("Temporarily set class debugMode to false. Actual checkbox state was:
-                // " + actualDebugCheckboxState);
-
-                ImagePlus stainRemovedPreview = null;
-                ImagePlus finalImageForDisplay = null;
-
-                try {
-                    // --- 1: Always perform stain removal for preview ---
-                    // IJ.log("Performing stain removal for preview...");
-                    stainRemovedPreview = removeFixedStains(previewDirtyImgForProcessing, previewFlatCopy, expRatio,
-                            perc);
-
-                    if (stainRemovedPreview == null) {
-                        // IJ.log("Stain removal returned null for preview.");
-                    } else {
-                        // IJ.log("Stain removal successful for preview. Result: " + stainRemovedPreview.getTitle());
-                        // --- 2: Perform PFFC if selected ---
-                        if (pffcSelected) {
-                            // IJ.log("PFFC is selected. Performing PFFC on stain-removed image. Radius: " +
-                            // pffcRad + ", HideBG: " + hidePffcBG);
-                            ImagePlus pffcPreviewResult = pseudoFlatFieldCorrection(stainRemovedPreview, pffcRad,
-                                    hidePffcBG, true); // isInPreviewMode = true
-                            if (pffcPreviewResult != null) {
-                                finalImageForDisplay = pffcPreviewResult;
-                                // IJ.log("PFFC successful for preview. Result: " +
-                                // pffcPreviewResult.getTitle());
-                            } else {
-                                // IJ.log("PFFC processing returned null for preview. Using only stain-removed
-                                // result.");
-                                finalImageForDisplay = stainRemovedPreview;
-                            }
-                        } else {
-                            // IJ.log("PFFC is NOT selected for preview. Using stain-removed result.");
-                            finalImageForDisplay = stainRemovedPreview;
-                            if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible()) {
-                                // IJ.log("Closing existing PFFC background window as PFFC is now deselected.");
-                                pffcBackgroundDisplayImp.close();
-                                pffcBackgroundDisplayImp = null;
-                            }
-                        }
-                    }
-                } finally {
-                    RemoveDirtyStains.this.debugMode = actualDebugCheckboxState;
-                    // IJ.log("Restored class debugMode to: " + RemoveDirtyStains.this.debugMode);
-                }
-
-                // --- 3: Update the main preview display window ---
-                if (finalImageForDisplay != null && currentPreviewDisplayTargetImp != null) {
-                    // IJ.log("Updating main preview display with " +
-                    // finalImageForDisplay.getTitle());
-                    ImageProcessor finalProcessorForDisplay = convertImageToMatch(finalImageForDisplay,
-                            currentPreviewDisplayTargetImp).getProcessor();
-                    currentPreviewDisplayTargetImp.setProcessor(finalProcessorForDisplay.duplicate());
-                    currentPreviewDisplayTargetImp.updateAndDraw();
-                    // IJ.log("Main preview display updated.");
-                } else if (currentPreviewDisplayTargetImp != null && originalProcessorOfDisplayTarget != null) {
-                    // IJ.log("Preview processing resulted in null image or error, restoring
-                    // original processor to display target: " +
-                    // currentPreviewDisplayTargetImp.getTitle());
-                    currentPreviewDisplayTargetImp.setProcessor(originalProcessorOfDisplayTarget.duplicate());
-                    currentPreviewDisplayTargetImp.updateAndDraw();
-                } else {
-                    // IJ.log("Cannot update display: finalImageForDisplay is null or
-                    // currentPreviewDisplayTargetImp is null, and no original to restore.");
-                }
+                // The sample and the flat are only read by the preview, so the worker works on the
+                // stored original and the flat window directly instead of duplicating them.
+                BackgroundBlur previewBlur = pffcSelected ? new BackgroundBlur(pffcRad, blurMethod, blurAccuracy)
+                        : null;
+                previewWorker.submit(new PreviewSettings(currentPreviewDisplayTargetImp,
+                        originalProcessorOfDisplayTarget, currentFlatImpSource, expRatio, perc, flatDownsample,
+                        previewBlur, hidePffcBG, sparseNoiseFloor, integerOutput, factorTolerance, calibrationPath,
+                        libraryPath));
 
             } else {
                 // IJ.log("Preview is OFF.");
+                previewWorker.cancel();
                 if (isPreviewModeActive && currentPreviewDisplayTargetImp != null
                         && originalProcessorOfDisplayTarget != null) {
                     // IJ.log("Restoring original image because preview was turned off: " +
@@ -791,22 +1136,6 @@ public class RemoveDirtyStains implements PlugIn {
             return true;
         }
 
-        private void restoreAndClearPreview() {
-            // IJ.log("restoreAndClearPreview called.");
-            if (currentPreviewDisplayTargetImp != null && originalProcessorOfDisplayTarget != null) {
-                // IJ.log("Restoring original processor to " +
-                // currentPreviewDisplayTargetImp.getTitle() + " in restoreAndClearPreview.");
-                currentPreviewDisplayTargetImp.setProcessor(originalProcessorOfDisplayTarget.duplicate());
-                currentPreviewDisplayTargetImp.updateAndDraw();
-            }
-            if (pffcBackgroundDisplayImp != null && pffcBackgroundDisplayImp.isVisible() && isPreviewModeActive) {
-                // IJ.log("Closing PFFC background window during restoreAndClearPreview.");
-                pffcBackgroundDisplayImp.close();
-                pffcBackgroundDisplayImp = null;
-            }
-            resetPreviewState();
-        }
-
         private double parseDouble(String s, double defaultValue) {
             try {
                 return Double.parseDouble(s);
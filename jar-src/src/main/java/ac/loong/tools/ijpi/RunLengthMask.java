@@ -0,0 +1,337 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+
+/**
+ * Immutable binary mask stored as runs: for every row, the sorted, disjoint
+ * {@code [start, end)} intervals of set pixels.
+ * <p>
+ * Stain masks cover a few percent of the frame, so the runs take a small fraction
+ * of a byte mask and loops over the masked pixels skip the empty rows and the
+ * gaps between runs. Union, XOR and dilation work on the runs directly.
+ */
+final class RunLengthMask {
+
+    private static final int[] EMPTY_ROW = new int[0];
+
+    private final int width;
+    private final int height;
+    private final int[] rowFirstRun; // height + 1 entries
+    private final int[] runStart;
+    private final int[] runEnd; // exclusive
+
+    private RunLengthMask(int width, int height, int[] rowFirstRun, int[] runStart, int[] runEnd) {
+        this.width = width;
+        this.height = height;
+        this.rowFirstRun = rowFirstRun;
+        this.runStart = runStart;
+        this.runEnd = runEnd;
+    }
+
+    /** Collects runs row by row; adjacent runs of a row are merged. */
+    static final class Builder {
+        private final int width;
+        private final int height;
+        private final int[] rowFirstRun;
+        private int rows;
+        private int runCount;
+        private int[] runStart = new int[256];
+        private int[] runEnd = new int[256];
+
+        Builder(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.rowFirstRun = new int[height + 1];
+        }
+
+        /** Adds {@code [start, end)} to the current row; runs must come from left to right. */
+        void addRun(int start, int end) {
+            if (start >= end)
+                return;
+            if (runCount > rowFirstRun[rows] && start <= runEnd[runCount - 1]) {
+                runEnd[runCount - 1] = Math.max(runEnd[runCount - 1], end);
+                return;
+            }
+            if (runCount == runStart.length) {
+                runStart = Arrays.copyOf(runStart, runCount * 2);
+                runEnd = Arrays.copyOf(runEnd, runCount * 2);
+            }
+            runStart[runCount] = start;
+            runEnd[runCount] = end;
+            runCount++;
+        }
+
+        /** Adds the runs of a row given as {start0, end0, start1, end1, ...}. */
+        void addRuns(int[] row) {
+            for (int i = 0; i < row.length; i += 2)
+                addRun(row[i], row[i + 1]);
+        }
+
+        void endRow() {
+            if (rows >= height)
+                throw new IllegalStateException("All " + height + " rows have already been added.");
+            rowFirstRun[++rows] = runCount;
+        }
+
+        RunLengthMask build() {
+            while (rows < height)
+                endRow();
+            return new RunLengthMask(width, height, rowFirstRun, Arrays.copyOf(runStart, runCount),
+                    Arrays.copyOf(runEnd, runCount));
+        }
+    }
+
+    /**
+     * Mask from raw run arrays, e.g. read back from a calibration file; the arrays are
+     * kept, not copied. Throws IllegalArgumentException if the runs are not sorted,
+     * disjoint and inside the image.
+     */
+    static RunLengthMask of(int width, int height, int[] rowFirstRun, int[] runStart, int[] runEnd) {
+        if (rowFirstRun.length != height + 1 || runStart.length != runEnd.length || rowFirstRun[0] != 0
+                || rowFirstRun[height] != runStart.length)
+            throw new IllegalArgumentException("Inconsistent run-length mask.");
+        for (int y = 0; y < height; y++) {
+            if (rowFirstRun[y + 1] < rowFirstRun[y])
+                throw new IllegalArgumentException("Inconsistent run-length mask at row " + y + ".");
+            for (int run = rowFirstRun[y], previousEnd = -1; run < rowFirstRun[y + 1]; run++) {
+                if (runStart[run] <= previousEnd || runStart[run] >= runEnd[run] || runEnd[run] > width)
+                    throw new IllegalArgumentException("Inconsistent run-length mask at row " + y + ".");
+                previousEnd = runEnd[run];
+            }
+        }
+        return new RunLengthMask(width, height, rowFirstRun, runStart, runEnd);
+    }
+
+    /** Runs of the non-zero pixels of an 8-bit mask. */
+    static RunLengthMask of(ImageProcessor maskIp) {
+        int width = maskIp.getWidth();
+        int height = maskIp.getHeight();
+        byte[] pixels = (byte[]) maskIp.getPixels();
+        Builder builder = new Builder(width, height);
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            int x = 0;
+            while (x < width) {
+                while (x < width && pixels[offset + x] == 0)
+                    x++;
+                int start = x;
+                while (x < width && pixels[offset + x] != 0)
+                    x++;
+                builder.addRun(start, x);
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int getRunCount() {
+        return runStart.length;
+    }
+
+    /** Index of the first run of row {@code y}; the runs of the row end at {@code firstRun(y + 1)}. */
+    int firstRun(int y) {
+        return rowFirstRun[y];
+    }
+
+    int runStart(int run) {
+        return runStart[run];
+    }
+
+    int runEnd(int run) {
+        return runEnd[run];
+    }
+
+    /** Number of set pixels. */
+    long getPixelCount() {
+        long count = 0;
+        for (int run = 0; run < runStart.length; run++)
+            count += runEnd[run] - runStart[run];
+        return count;
+    }
+
+    boolean isEmpty() {
+        return runStart.length == 0;
+    }
+
+    /** New 8-bit mask, 255 on the set pixels. */
+    ByteProcessor toByteProcessor() {
+        byte[] pixels = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int run = rowFirstRun[y]; run < rowFirstRun[y + 1]; run++)
+                Arrays.fill(pixels, offset + runStart[run], offset + runEnd[run], (byte) 255);
+        }
+        return new ByteProcessor(width, height, pixels, null);
+    }
+
+    private int[] row(int y) {
+        int first = rowFirstRun[y];
+        int count = rowFirstRun[y + 1] - first;
+        if (count == 0)
+            return EMPTY_ROW;
+        int[] row = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            row[2 * i] = runStart[first + i];
+            row[2 * i + 1] = runEnd[first + i];
+        }
+        return row;
+    }
+
+    private void checkSize(RunLengthMask other) {
+        if (other.width != width || other.height != height)
+            throw new IllegalArgumentException("Mask size " + other.width + "x" + other.height + " differs from "
+                    + width + "x" + height + ".");
+    }
+
+    RunLengthMask union(RunLengthMask other) {
+        checkSize(other);
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            builder.addRuns(union(row(y), other.row(y)));
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /** Pixels set in exactly one of the masks, e.g. the ring around the stains: expanded XOR stains. */
+    RunLengthMask xor(RunLengthMask other) {
+        checkSize(other);
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            // 两个掩膜的边界合并排序，奇数次翻转处即为异或结果的边界，重合的边界相互抵消
+            int[] a = row(y);
+            int[] b = other.row(y);
+            int i = 0;
+            int j = 0;
+            boolean inside = false;
+            int start = 0;
+            while (i < a.length || j < b.length) {
+                int x;
+                if (j == b.length || (i < a.length && a[i] < b[j])) {
+                    x = a[i++];
+                } else if (i == a.length || b[j] < a[i]) {
+                    x = b[j++];
+                } else {
+                    i++;
+                    j++;
+                    continue;
+                }
+                if (inside)
+                    builder.addRun(start, x);
+                else
+                    start = x;
+                inside = !inside;
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Every pixel within chessboard distance {@code radius} of the mask, like
+     * {@link MaskMorphology#dilate}: the runs are widened by {@code radius}, then each
+     * row is the union of the 2 * radius + 1 rows around it, computed by doubling
+     * windows (1, 2, 4, ... rows) so the cost grows with log(radius).
+     */
+    RunLengthMask dilate(int radius) {
+        if (radius <= 0)
+            return this;
+        int window = 2 * radius + 1;
+        // 上下各补 radius 个空行，使每个输出行都对应一个完整的窗口
+        int[][] rows = new int[height + 2 * radius][];
+        Arrays.fill(rows, EMPTY_ROW);
+        for (int y = 0; y < height; y++)
+            rows[y + radius] = widen(row(y), radius);
+        int span = 1;
+        while (2 * span <= window) {
+            int[][] next = new int[rows.length - span][];
+            for (int y = 0; y < next.length; y++)
+                next[y] = union(rows[y], rows[y + span]);
+            rows = next;
+            span *= 2;
+        }
+        Builder builder = new Builder(width, height);
+        for (int y = 0; y < height; y++) {
+            builder.addRuns(union(rows[y], rows[y + window - span]));
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    private int[] widen(int[] row, int radius) {
+        if (row.length == 0)
+            return row;
+        int[] out = new int[row.length];
+        int n = 0;
+        for (int i = 0; i < row.length; i += 2) {
+            int start = Math.max(0, row[i] - radius);
+            int end = Math.min(width, row[i + 1] + radius);
+            if (n > 0 && start <= out[n - 1]) {
+                out[n - 1] = end;
+            } else {
+                out[n++] = start;
+                out[n++] = end;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Union of two sorted run rows, overlapping and touching runs merged. */
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0)
+            return b;
+        if (b.length == 0 || a == b)
+            return a;
+        int[] out = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            int start;
+            int end;
+            if (j == b.length || (i < a.length && a[i] <= b[j])) {
+                start = a[i];
+                end = a[i + 1];
+                i += 2;
+            } else {
+                start = b[j];
+                end = b[j + 1];
+                j += 2;
+            }
+            if (n > 0 && start <= out[n - 1]) {
+                if (end > out[n - 1])
+                    out[n - 1] = end;
+            } else {
+                out[n++] = start;
+                out[n++] = end;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.process.ImageProcessor;
+import java.util.SplittableRandom;
+
+/**
+ * Mean of an image inside a run-length mask, estimated from a stratified systematic
+ * sample: the mask is split into horizontal bands (the strata) and in each band
+ * every {@code step}-th masked pixel is read, counted along the runs in raster order
+ * from a start drawn for that band by a fixed-seed generator, so the result is
+ * reproducible. The step is made odd so it shares no period with power-of-two image
+ * widths and column patterns (readout channels, even/odd columns); with a fixed
+ * phase such a pattern would bias the mean.
+ * <p>
+ * The variance reported treats the sample of each band as a simple random sample
+ * (with the finite population correction), the usual approximation for systematic
+ * samples. It can still be too small for a pattern whose period divides the step.
+ * A step of 1 gives the exact mean.
+ */
+final class SampledRegionMean {
+
+    private static final int STRATA = 64;
+    private static final long SEED = 0x5DEECE66DL;
+
+    private final double mean;
+    private final double variance;
+    private final long sampleCount;
+    private final long regionCount;
+
+    private SampledRegionMean(double mean, double variance, long sampleCount, long regionCount) {
+        this.mean = mean;
+        this.variance = variance;
+        this.sampleCount = sampleCount;
+        this.regionCount = regionCount;
+    }
+
+    static SampledRegionMean measure(ImageProcessor ip, RunLengthMask mask, int step) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        if (mask.getWidth() != width || mask.getHeight() != height)
+            throw new IllegalArgumentException("Mask size " + mask.getWidth() + "x" + mask.getHeight()
+                    + " differs from image size " + width + "x" + height + ".");
+        Object pixels = ip.getPixels();
+        if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[]))
+            throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        if (step < 1)
+            throw new IllegalArgumentException("Sampling step must be >= 1: " + step);
+        step |= 1; // 奇数步长，避免与 2 的幂次的宽度及列周期对齐
+        if (step == 1) {
+            // 全部像素：用精确的游程求和，结果与 RegionStatistics 相同
+            RegionStatistics stats = RegionStatistics.measure(ip, mask, null);
+            return new SampledRegionMean(stats.getStainMean(), 0.0, stats.getStainCount(), stats.getStainCount());
+        }
+
+        int strata = Math.max(1, Math.min(STRATA, height));
+        long[] populations = new long[strata];
+        long[] counts = new long[strata];
+        double[] sums = new double[strata];
+        double[] sumsSq = new double[strata];
+        double[] runSums = new double[2];
+        // 每层的起点由固定种子的伪随机数决定，游程之间延续取样相位
+        int[] starts = new int[strata];
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int h = 0; h < strata; h++)
+            starts[h] = random.nextInt(step);
+        for (int y = 0, offset = 0; y < height; y++, offset += width) {
+            int h = (int) ((long) y * strata / height);
+            for (int run = mask.firstRun(y); run < mask.firstRun(y + 1); run++) {
+                int from = offset + mask.runStart(run);
+                int to = offset + mask.runEnd(run);
+                int first = from + (int) Math.floorMod(starts[h] - populations[h], (long) step);
+                counts[h] += sumEvery(pixels, first, to, step, runSums);
+                sums[h] += runSums[0];
+                sumsSq[h] += runSums[1];
+                populations[h] += to - from;
+            }
+        }
+
+        // 样本少于 2 个的层并入相邻的层，以便估计层内方差
+        int groups = 0;
+        for (int h = 0; h < strata; h++) {
+            if (groups > 0 && counts[groups - 1] < 2) {
+                merge(populations, counts, sums, sumsSq, h, groups - 1);
+            } else {
+                merge(populations, counts, sums, sumsSq, h, groups);
+                groups++;
+            }
+        }
+        if (groups > 1 && counts[groups - 1] < 2) {
+            merge(populations, counts, sums, sumsSq, groups - 1, groups - 2);
+            groups--;
+        }
+
+        long regionCount = 0;
+        long sampleCount = 0;
+        double total = 0;
+        double varianceSum = 0;
+        for (int g = 0; g < groups; g++) {
+            regionCount += populations[g];
+            sampleCount += counts[g];
+            if (counts[g] > 0)
+                total += sums[g] / counts[g] * populations[g];
+            varianceSum += stratumVariance(populations[g], counts[g], sums[g], sumsSq[g]);
+        }
+        if (sampleCount == 0)
+            return new SampledRegionMean(0.0, 0.0, 0, regionCount);
+        double n = regionCount;
+        return new SampledRegionMean(total / n, varianceSum / (n * n), sampleCount, regionCount);
+    }
+
+    /** Adds stratum {@code from} to stratum {@code to} (which may be the same slot, then it is moved). */
+    private static void merge(long[] populations, long[] counts, double[] sums, double[] sumsSq, int from, int to) {
+        if (from == to)
+            return;
+        populations[to] += populations[from];
+        counts[to] += counts[from];
+        sums[to] += sums[from];
+        sumsSq[to] += sumsSq[from];
+        populations[from] = 0;
+        counts[from] = 0;
+        sums[from] = 0;
+        sumsSq[from] = 0;
+    }
+
+    /** N^2 (1 - n/N) s^2 / n of one stratum, s^2 being the sample variance. */
+    private static double stratumVariance(double population, double count, double sum, double sumSq) {
+        if (count < 2)
+            return 0.0;
+        double sampleMean = sum / count;
+        double s2 = Math.max(0, (sumSq - count * sampleMean * sampleMean) / (count - 1));
+        return population * population * (1 - count / population) * s2 / count;
+    }
+
+    /** Sum and sum of squares of pixels[from], pixels[from + step], ... below {@code to}; returns their count. */
+    private static int sumEvery(Object pixels, int from, int to, int step, double[] sums) {
+        double sum = 0;
+        double sumSq = 0;
+        int count = 0;
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = from; i < to; i += step, count++) {
+                double v = p[i] & 0xffff;
+                sum += v;
+                sumSq += v * v;
+            }
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = from; i < to; i += step, count++) {
+                double v = p[i] & 0xff;
+                sum += v;
+                sumSq += v * v;
+            }
+        } else {
+            float[] p = (float[]) pixels;
+            for (int i = from; i < to; i += step, count++) {
+                double v = p[i];
+                sum += v;
+                sumSq += v * v;
+            }
+        }
+        sums[0] = sum;
+        sums[1] = sumSq;
+        return count;
+    }
+
+    double getMean() {
+        return mean;
+    }
+
+    /** Variance of the estimated mean. */
+    double getVariance() {
+        return variance;
+    }
+
+    long getSampleCount() {
+        return sampleCount;
+    }
+
+    long getRegionCount() {
+        return regionCount;
+    }
+}
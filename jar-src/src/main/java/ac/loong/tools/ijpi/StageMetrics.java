@@ -0,0 +1,252 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.measure.ResultsTable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Wall time, pixels and allocated bytes of each processing stage of one image.
+ * <p>
+ * A collector is made current for the calling thread with {@link #activate}; the
+ * pipeline code then records its stages with {@link #start} without having to pass
+ * the collector around. Without a current collector {@code start} returns a shared
+ * no-op span, so the instrumentation costs nothing when metrics are off. Allocation
+ * is measured per thread (HotSpot's ThreadMXBean), so bytes allocated by ImageJ's
+ * own worker threads (e.g. inside GaussianBlur) are not included; it is -1 where
+ * the JVM cannot measure it.
+ */
+public final class StageMetrics {
+
+    public enum Stage {
+        FLAT_PREPARATION("Flat preparation"),
+        THRESHOLD("Threshold"),
+        PARTICLE_FILTER("Particle filter"),
+        RING_EXPANSION("Ring expansion"),
+        STATISTICS("Statistics"),
+        CORRECTION("Correction"),
+        PFFC("PFFC"),
+        CONVERSION("Conversion");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** Title of the table the plugin publishes to; macros read it with Table.get(column, row, title). */
+    public static final String TABLE_TITLE = "Stage Metrics";
+    /** Prefix of the machine-readable log line, followed by one JSON object. */
+    public static final String LOG_PREFIX = "RemoveDirtyStains.metrics ";
+
+    private static final ThreadLocal<StageMetrics> CURRENT = new ThreadLocal<>();
+    private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+    private static final Span NO_SPAN = new Span(null, null, 0, 0);
+    private static final Activation NO_ACTIVATION = new Activation(null);
+
+    private final int stageCount = Stage.values().length;
+    private final long[] nanos = new long[stageCount];
+    private final long[] pixels = new long[stageCount];
+    private final long[] bytes = new long[stageCount];
+    private final int[] calls = new int[stageCount];
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+                if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+                    return hotspot;
+            }
+        } catch (LinkageError | RuntimeException e) {
+            // 非 HotSpot 虚拟机，不统计内存分配
+        }
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION_BEAN != null ? ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Makes {@code metrics} the collector of the calling thread until the returned
+     * activation is closed; {@code null} is allowed and records nothing.
+     */
+    public static Activation activate(StageMetrics metrics) {
+        if (metrics == null && CURRENT.get() == null)
+            return NO_ACTIVATION;
+        Activation activation = new Activation(CURRENT.get());
+        CURRENT.set(metrics);
+        return activation;
+    }
+
+    /** Collector of the calling thread, or null; hand it to worker threads with {@link #activate}. */
+    public static StageMetrics current() {
+        return CURRENT.get();
+    }
+
+    /** Starts timing {@code stage} for the current collector of this thread. */
+    static Span start(Stage stage) {
+        StageMetrics metrics = CURRENT.get();
+        if (metrics == null)
+            return NO_SPAN;
+        return new Span(metrics, stage, System.nanoTime(), allocatedBytes());
+    }
+
+    private synchronized void add(Stage stage, long elapsedNanos, long stagePixels, long allocated) {
+        int i = stage.ordinal();
+        nanos[i] += elapsedNanos;
+        pixels[i] += stagePixels;
+        if (allocated < 0 || bytes[i] < 0)
+            bytes[i] = -1;
+        else
+            bytes[i] += allocated;
+        calls[i]++;
+    }
+
+    public synchronized double getMillis(Stage stage) {
+        return nanos[stage.ordinal()] / 1e6;
+    }
+
+    public synchronized long getPixels(Stage stage) {
+        return pixels[stage.ordinal()];
+    }
+
+    /** Bytes allocated by the recording threads, -1 if unknown. */
+    public synchronized long getBytes(Stage stage) {
+        return bytes[stage.ordinal()];
+    }
+
+    public synchronized int getCalls(Stage stage) {
+        return calls[stage.ordinal()];
+    }
+
+    public synchronized double getTotalMillis() {
+        long total = 0;
+        for (long n : nanos)
+            total += n;
+        return total / 1e6;
+    }
+
+    /** Appends one row for {@code label} with the time, pixels and bytes of every stage. */
+    public void addTo(ResultsTable table, String label) {
+        synchronized (table) {
+            table.incrementCounter();
+            table.addLabel(label);
+            for (Stage stage : Stage.values()) {
+                table.addValue(stage.getLabel() + " (ms)", getMillis(stage));
+                table.addValue(stage.getLabel() + " (px)", getPixels(stage));
+                long allocated = getBytes(stage);
+                table.addValue(stage.getLabel() + " (bytes)", allocated < 0 ? Double.NaN : allocated);
+            }
+            table.addValue("Total (ms)", getTotalMillis());
+        }
+    }
+
+    /** One-line JSON record of the stages that ran, prefixed with {@link #LOG_PREFIX}. */
+    public synchronized String toLogLine(String label) {
+        StringBuilder sb = new StringBuilder(LOG_PREFIX);
+        sb.append("{\"image\":\"").append(escape(label)).append("\",\"total_ms\":")
+                .append(format(getTotalMillis())).append(",\"stages\":{");
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (calls[i] == 0)
+                continue;
+            if (!first)
+                sb.append(',');
+            first = false;
+            sb.append('"').append(stage.key()).append("\":{\"ms\":").append(format(nanos[i] / 1e6))
+                    .append(",\"pixels\":").append(pixels[i])
+                    .append(",\"bytes\":").append(bytes[i])
+                    .append(",\"calls\":").append(calls[i]).append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String format(double millis) {
+        return String.format(Locale.ROOT, "%.3f", millis);
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** A running stage; {@link #end} adds it to the collector it was started for. */
+    static final class Span {
+        private final StageMetrics metrics;
+        private final Stage stage;
+        private final long startNanos;
+        private final long startBytes;
+
+        private Span(StageMetrics metrics, Stage stage, long startNanos, long startBytes) {
+            this.metrics = metrics;
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.startBytes = startBytes;
+        }
+
+        void end(long stagePixels) {
+            if (metrics == null)
+                return;
+            long elapsed = System.nanoTime() - startNanos;
+            long allocated = startBytes < 0 ? -1 : allocatedBytes() - startBytes;
+            metrics.add(stage, elapsed, stagePixels, allocated);
+        }
+    }
+
+    /** Restores the previous collector of the thread when closed. */
+    public static final class Activation implements AutoCloseable {
+        private final StageMetrics previous;
+
+        private Activation(StageMetrics previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (this == NO_ACTIVATION)
+                return;
+            if (previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        }
+    }
+}
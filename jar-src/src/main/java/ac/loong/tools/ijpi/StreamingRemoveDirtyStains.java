@@ -0,0 +1,638 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming entry point for acquisition pipelines: frames are corrected as they
+ * arrive, against a flat calibration prepared once at start-up.
+ * <p>
+ * Frames come from a producer calling {@link #submit} or from a watched directory
+ * ({@link #watch}). They wait in a bounded queue for a pool of workers, which run
+ * the fused stain removal + PFFC path and hand the result to a {@link FrameSink}
+ * (by default a TIFF writer). When the queue is full the {@link OverflowPolicy}
+ * decides between back-pressure on the producer and dropping frames; dropped
+ * frames and the arrival-to-output latency are reported by {@link #getStatistics}.
+ *
+ * <pre>
+ * java -cp ij.jar:Remove_Dirty_Stains.jar ac.loong.tools.ijpi.StreamingRemoveDirtyStains \
+ *     --flat flat.tif --watch /camera/out --output cleaned/ --threads 4 --queue 64 --overflow drop-oldest
+ * </pre>
+ */
+public class StreamingRemoveDirtyStains implements AutoCloseable {
+
+    /** What {@link #submit} does when the queue is full. */
+    public enum OverflowPolicy {
+        /** Wait for a free slot: the producer is slowed down to the correction rate. */
+        BLOCK,
+        /** Discard the oldest queued frame to make room (lowest latency). */
+        DROP_OLDEST,
+        /** Discard the new frame. */
+        DROP_NEWEST
+    }
+
+    /** Receives every corrected frame, on a worker thread. */
+    public interface FrameSink {
+        void accept(String name, ImageProcessor corrected) throws IOException;
+    }
+
+    /** Streaming parameters, with the same correction defaults as the plugin dialog. */
+    public static class Options {
+        public Path flat; // may be null when calibrationFile exists
+        public Path calibrationFile; // loaded if it matches the flat and parameters, otherwise built and saved
+        public double expandRatio = 0.1;
+        public int percentile = 80;
+        public int flatDownsample = 1; // 1 = exact rolling-ball background
+        public boolean pffcEnabled = false;
+        public double pffcRadius = 50.0;
+        public BackgroundBlur.Method pffcBlurMethod = BackgroundBlur.Method.EXACT;
+        public double pffcBlurAccuracy = BackgroundBlur.DEFAULT_ACCURACY;
+        public double sparseNoiseFloor = -1; // >= 0: correct only stains and rings, flat values up to it count as 0
+        public boolean integerOutput; // 8/16-bit output keeps the sample scale instead of min/max stretching
+        public double factorTolerance = -1; // >= 0: estimate k from sampled pixels to this 95% half-width
+        public int threads = 0; // 0 = all cores
+        public int queueCapacity = 32;
+        public OverflowPolicy overflow = OverflowPolicy.BLOCK;
+        public long settleMillis = 100; // watched files must keep their size this long before they are read
+
+        // command line only
+        Path watchDir;
+        String pattern = "*.{tif,tiff,TIF,TIFF}";
+        Path outputDir;
+        int statisticsSeconds = 10;
+    }
+
+    /** Counters and latency percentiles since start-up. */
+    public static class Statistics {
+        public final long submitted;
+        public final long processed;
+        public final long dropped;
+        public final long failed;
+        public final int queued;
+        public final double framesPerSecond;
+        public final double latencyP50Millis;
+        public final double latencyP95Millis;
+        public final double latencyP99Millis;
+        public final double latencyMaxMillis;
+
+        Statistics(long submitted, long processed, long dropped, long failed, int queued, double framesPerSecond,
+                double[] latencyMillis) {
+            this.submitted = submitted;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.failed = failed;
+            this.queued = queued;
+            this.framesPerSecond = framesPerSecond;
+            this.latencyP50Millis = latencyMillis[0];
+            this.latencyP95Millis = latencyMillis[1];
+            this.latencyP99Millis = latencyMillis[2];
+            this.latencyMaxMillis = latencyMillis[3];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "submitted=%d processed=%d dropped=%d failed=%d queued=%d fps=%.1f"
+                            + " latency p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                    submitted, processed, dropped, failed, queued, framesPerSecond, latencyP50Millis,
+                    latencyP95Millis, latencyP99Millis, latencyMaxMillis);
+        }
+    }
+
+    /** A queued frame; frames from a watched directory are only read by the worker. */
+    private static final class Frame {
+        final String name;
+        final long arrivalNanos;
+        final ImageProcessor ip;
+        final Path path;
+
+        Frame(String name, long arrivalNanos, ImageProcessor ip, Path path) {
+            this.name = name;
+            this.arrivalNanos = arrivalNanos;
+            this.ip = ip;
+            this.path = path;
+        }
+
+        ImageProcessor load() throws IOException {
+            if (ip != null)
+                return ip;
+            ImagePlus imp = IJ.openImage(path.toString());
+            if (imp == null)
+                throw new IOException("Cannot open image");
+            return imp.getProcessor();
+        }
+    }
+
+    /** Latencies of the most recent frames, for the percentiles. */
+    private static final class LatencyWindow {
+        private final long[] nanos = new long[8192];
+        private long count;
+        private long max;
+
+        synchronized void add(long latency) {
+            nanos[(int) (count++ % nanos.length)] = latency;
+            if (latency > max)
+                max = latency;
+        }
+
+        /** p50, p95, p99 (of the window) and the overall maximum, in milliseconds. */
+        synchronized double[] percentiles() {
+            int n = (int) Math.min(count, nanos.length);
+            if (n == 0)
+                return new double[4];
+            long[] sorted = Arrays.copyOf(nanos, n);
+            Arrays.sort(sorted);
+            return new double[] { sorted[(int) Math.ceil(0.50 * n) - 1] / 1e6,
+                    sorted[(int) Math.ceil(0.95 * n) - 1] / 1e6, sorted[(int) Math.ceil(0.99 * n) - 1] / 1e6,
+                    max / 1e6 };
+        }
+    }
+
+    private final Options options;
+    private final FrameSink sink;
+    private final DirtyStainsEngine engine;
+    private final ImagePlus flatImp;
+    private final BackgroundBlur pffcBlur;
+    private final Map<String, FutureTask<FlatFieldCalibration>> calibrations = new HashMap<>();
+    private final BlockingQueue<Frame> queue;
+    private final ExecutorService workers;
+    private final LatencyWindow latencies = new LatencyWindow();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    private StreamingRemoveDirtyStains(Options options, ImagePlus flatImp, FlatFieldCalibration fileCalibration,
+            FrameSink sink) {
+        this.options = options;
+        this.engine = new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG, options.factorTolerance);
+        this.flatImp = flatImp;
+        this.sink = sink;
+        this.pffcBlur = options.pffcEnabled
+                ? new BackgroundBlur(options.pffcRadius, options.pffcBlurMethod, options.pffcBlurAccuracy)
+                : null;
+        this.queue = new ArrayBlockingQueue<>(options.queueCapacity);
+        int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(threads);
+        // 启动时即完成平场标定，避免第一帧的延迟尖峰
+        if (fileCalibration != null) {
+            FutureTask<FlatFieldCalibration> loaded = new FutureTask<>(() -> fileCalibration);
+            loaded.run();
+            calibrations.put(fileCalibration.getWidth() + "x" + fileCalibration.getHeight() + "x"
+                    + fileCalibration.getPreparedFlat().getBitDepth(), loaded);
+        } else {
+            calibrationFor(flatImp.getProcessor());
+        }
+        for (int i = 0; i < threads; i++)
+            workers.execute(this::work);
+    }
+
+    /** Opens the flat (or the calibration file), prepares its calibration and starts the workers. */
+    public static StreamingRemoveDirtyStains start(Options options, FrameSink sink) throws IOException {
+        validate(options);
+        ImagePlus flatImp = null;
+        if (options.flat != null) {
+            flatImp = IJ.openImage(options.flat.toString());
+            if (flatImp == null)
+                throw new IOException("Cannot open flat field image: " + options.flat);
+            if (flatImp.getType() == ImagePlus.COLOR_RGB)
+                throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+        }
+        FlatFieldCalibration fileCalibration = null;
+        if (options.calibrationFile != null)
+            fileCalibration = CalibrationFile.loadOrBuild(options.calibrationFile, flatImp, options.expandRatio,
+                    options.percentile, options.flatDownsample, new DirtyStainsEngine(DirtyStainsEngine.Observer.LOG));
+        return new StreamingRemoveDirtyStains(options, flatImp, fileCalibration, sink);
+    }
+
+    /** Sink writing every frame as {@code <name>.tif} into {@code outputDir}. */
+    public static FrameSink tiffWriter(final Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+        return (name, corrected) -> {
+            int dot = name.lastIndexOf('.');
+            Path output = outputDir.resolve((dot > 0 ? name.substring(0, dot) : name) + ".tif");
+            if (!new FileSaver(new ImagePlus(name, corrected)).saveAsTiff(output.toString()))
+                throw new IOException("Cannot write " + output);
+        };
+    }
+
+    private static void validate(Options options) {
+        if (options.flat == null && (options.calibrationFile == null || !Files.exists(options.calibrationFile)))
+            throw new IllegalArgumentException("Flat field image or an existing calibration file is required.");
+        if (options.expandRatio < 0 || options.expandRatio > 1.0)
+            throw new IllegalArgumentException("Invalid expansion ratio. Must be between 0 and 1.0.");
+        if (options.percentile < 0 || options.percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile. Must be between 0 and 100.");
+        if (options.pffcEnabled && options.pffcRadius < 0.5)
+            throw new IllegalArgumentException("PFFC blurring radius must be >= 0.5 pixels.");
+        if (options.pffcEnabled && !(options.pffcBlurAccuracy > 0 && options.pffcBlurAccuracy < 1))
+            throw new IllegalArgumentException("PFFC blur accuracy must be between 0 and 1.");
+        if (options.flatDownsample < 1)
+            throw new IllegalArgumentException("Invalid background downsampling factor. Must be >= 1.");
+        if (Double.isNaN(options.sparseNoiseFloor))
+            throw new IllegalArgumentException("Invalid sparse correction noise floor.");
+        if (Double.isNaN(options.factorTolerance))
+            throw new IllegalArgumentException("Invalid correction factor tolerance.");
+        if (options.threads < 0 || options.queueCapacity < 1 || options.settleMillis < 0)
+            throw new IllegalArgumentException("Threads must be >= 0, queue capacity >= 1 and settle time >= 0.");
+    }
+
+    /**
+     * Queues a frame for correction. Returns false if the frame was dropped
+     * ({@link OverflowPolicy#DROP_NEWEST} with a full queue, or after {@link #close()});
+     * with {@link OverflowPolicy#BLOCK} waits until there is room.
+     */
+    public boolean submit(String name, ImageProcessor frame) throws InterruptedException {
+        return enqueue(new Frame(name, System.nanoTime(), frame, null));
+    }
+
+    private boolean enqueue(Frame frame) throws InterruptedException {
+        if (closed)
+            return false;
+        submitted.incrementAndGet();
+        switch (options.overflow) {
+            case BLOCK:
+                // 关闭后工作线程不再取帧，不能无限期等待空位
+                while (!queue.offer(frame, 50, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+                return keepUnlessClosed(frame);
+            case DROP_OLDEST:
+                while (!queue.offer(frame)) {
+                    if (queue.poll() != null)
+                        dropped.incrementAndGet();
+                }
+                return keepUnlessClosed(frame);
+            default:
+                if (queue.offer(frame))
+                    return keepUnlessClosed(frame);
+                dropped.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Called after {@code frame} was queued: if {@link #close()} ran in the meantime the
+     * workers may already have drained the queue and stopped, so a frame still in the
+     * queue is taken back and counted as dropped. A frame a worker has taken is processed.
+     */
+    private boolean keepUnlessClosed(Frame frame) {
+        if (closed && queue.remove(frame)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void work() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Frame frame = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (frame == null)
+                    continue;
+                try {
+                    ImageProcessor ip = frame.load();
+                    if (ip instanceof ij.process.ColorProcessor)
+                        throw new IllegalArgumentException("Grayscale images (8/16/32bit) are required for processing.");
+                    sink.accept(frame.name,
+                            engine.correctSlice(ip, calibrationFor(ip), pffcBlur, options.sparseNoiseFloor,
+                                    options.integerOutput));
+                    latencies.add(System.nanoTime() - frame.arrivalNanos);
+                    processed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    IJ.log("Failed to process " + frame.name + ": " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One calibration per frame geometry; the flat is auto-converted like in the dialog.
+     * The first worker to see a new geometry calibrates it outside the lock, so frames
+     * of geometries already known are not held up; a failed calibration is retried by
+     * the next frame.
+     */
+    private FlatFieldCalibration calibrationFor(ImageProcessor ip) {
+        String key = ip.getWidth() + "x" + ip.getHeight() + "x" + ip.getBitDepth();
+        FutureTask<FlatFieldCalibration> task;
+        boolean owner = false;
+        synchronized (calibrations) {
+            task = calibrations.get(key);
+            if (task == null) {
+                if (flatImp == null)
+                    throw new IllegalArgumentException("No flat field image for " + key
+                            + " frames, the calibration file is for " + calibrations.keySet());
+                task = new FutureTask<>(() -> calibrate(ip));
+                calibrations.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner)
+            task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calibrating " + key, e);
+        } catch (ExecutionException e) {
+            if (owner) {
+                synchronized (calibrations) {
+                    calibrations.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException("Calibration for " + key + " failed", cause);
+        }
+    }
+
+    private FlatFieldCalibration calibrate(ImageProcessor ip) {
+        ImagePlus frameImp = new ImagePlus("Frame", ip);
+        ImagePlus matchingFlat = engine.areImagesCompatible(frameImp, flatImp) ? flatImp
+                : engine.convertImageToMatch(flatImp, frameImp);
+        return engine.getCalibration(matchingFlat, options.expandRatio, options.percentile, options.flatDownsample);
+    }
+
+    /**
+     * Queues every new file of {@code dir} whose name matches the glob {@code pattern},
+     * once its size has not changed for {@link Options#settleMillis} (so frames still
+     * being written are not read). Blocks until {@link #close()}; files present before
+     * the call are ignored.
+     * <p>
+     * Each file is queued once: later modifications (a late flush, a writer pausing
+     * longer than the settle time) do not queue it again. A file that is deleted and
+     * then written again under the same name counts as a new file.
+     */
+    public void watch(Path dir, String pattern) throws IOException, InterruptedException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        // 待稳定的文件：{上次的大小, 大小最后变化的时间, 首次发现的时间}
+        Map<Path, long[]> pending = new HashMap<>();
+        // 已入队的文件，删除后才会再次入队
+        Set<Path> queued = new HashSet<>();
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            while (!closed) {
+                WatchKey key = watcher.poll(Math.max(5, Math.min(50, options.settleMillis / 2)),
+                        TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            continue;
+                        Path file = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            queued.remove(file);
+                            pending.remove(file);
+                        } else if (matcher.matches(file.getFileName()) && !queued.contains(file)
+                                && !pending.containsKey(file)) {
+                            pending.put(file, new long[] { -1, now, now });
+                        }
+                    }
+                    key.reset();
+                }
+                for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Path, long[]> entry = it.next();
+                    long[] state = entry.getValue();
+                    long size;
+                    try {
+                        size = Files.size(entry.getKey());
+                    } catch (NoSuchFileException e) {
+                        it.remove(); // 临时文件已被改名或删除
+                        continue;
+                    }
+                    if (size != state[0]) {
+                        state[0] = size;
+                        state[1] = now;
+                    } else if (size > 0 && now - state[1] >= options.settleMillis * 1_000_000L) {
+                        it.remove();
+                        Path file = entry.getKey();
+                        queued.add(file);
+                        enqueue(new Frame(file.getFileName().toString(), state[2], null, file));
+                    }
+                }
+            }
+        }
+    }
+
+    public Statistics getStatistics() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return new Statistics(submitted.get(), processed.get(), dropped.get(), failed.get(), queue.size(),
+                seconds > 0 ? processed.get() / seconds : 0, latencies.percentiles());
+    }
+
+    /**
+     * Stops accepting frames, finishes the queued ones and stops the workers. If the
+     * calling thread is interrupted while waiting, the workers keep finishing the queue
+     * in the background and the interrupt flag of the thread is set again.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+        final Options options;
+        try {
+            options = parseArgs(args);
+            if (options.watchDir == null || options.outputDir == null)
+                throw new IllegalArgumentException("A directory to watch and an output directory are required.");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        try {
+            final StreamingRemoveDirtyStains stream = start(options, tiffWriter(options.outputDir));
+            final Thread mainThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stream.close();
+                try {
+                    mainThread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                System.out.println("Remove Dirty Stains stream stopped: " + stream.getStatistics());
+            }));
+            if (options.statisticsSeconds > 0) {
+                Thread reporter = new Thread(() -> {
+                    try {
+                        while (!stream.closed) {
+                            Thread.sleep(options.statisticsSeconds * 1000L);
+                            System.out.println("Remove Dirty Stains stream: " + stream.getStatistics());
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }, "Remove Dirty Stains statistics");
+                reporter.setDaemon(true);
+                reporter.start();
+            }
+            System.out.println("Watching " + options.watchDir + " (Ctrl-C to stop)");
+            stream.watch(options.watchDir, options.pattern);
+        } catch (Exception e) {
+            System.err.println("Remove Dirty Stains stream failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--flat":
+                    options.flat = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--calibration":
+                    options.calibrationFile = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--watch":
+                    options.watchDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--pattern":
+                    options.pattern = value(args, ++i, arg);
+                    break;
+                case "--output":
+                    options.outputDir = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--expand":
+                    options.expandRatio = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--percentile":
+                    options.percentile = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--flat-downsample":
+                    options.flatDownsample = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--pffc":
+                    options.pffcEnabled = true;
+                    options.pffcRadius = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--pffc-blur":
+                    options.pffcBlurMethod = BackgroundBlur.Method.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--pffc-accuracy":
+                    options.pffcBlurAccuracy = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--sparse":
+                    options.sparseNoiseFloor = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--integer":
+                    options.integerOutput = true;
+                    break;
+                case "--k-tolerance":
+                    options.factorTolerance = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--queue":
+                    options.queueCapacity = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--overflow":
+                    options.overflow = OverflowPolicy.valueOf(value(args, ++i, arg).toUpperCase().replace('-', '_'));
+                    break;
+                case "--settle":
+                    options.settleMillis = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--stats":
+                    options.statisticsSeconds = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i, String name) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + name);
+        return args[i];
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: StreamingRemoveDirtyStains --flat <file> --watch <dir> --output <dir>\n"
+                + "  [--calibration <file>]  load the flat calibration from this file, or save it there;\n"
+                + "                          --flat may be left out when the file exists\n"
+                + "  [--pattern <glob>]      file name glob (default *.{tif,tiff,TIF,TIFF})\n"
+                + "  [--expand <0-1.0>]      peripheral detection expansion ratio (default 0.1)\n"
+                + "  [--percentile <0-100>]  percentage of flat-field microparticle to be kept (default 80)\n"
+                + "  [--flat-downsample <n>] estimate the flat background on an n-times smaller image (default 1)\n"
+                + "  [--pffc <radius>]       apply PFFC with the given radius after removal\n"
+                + "  [--pffc-blur <method>]  exact or box (default exact)\n"
+                + "  [--pffc-accuracy <e>]   relative error tolerated by the PFFC blur (default 0.02)\n"
+                + "  [--sparse <floor>]      only correct stains and their rings; flat values <= floor count as 0\n"
+                + "  [--integer]             keep the scale of 8/16-bit images (saturate) instead of stretching\n"
+                + "  [--k-tolerance <t>]     estimate k from sampled stain/ring pixels, exact if its 95% half-width > t\n"
+                + "  [--threads <n>]         worker threads (default: all cores)\n"
+                + "  [--queue <n>]           frames waiting for a worker at most (default 32)\n"
+                + "  [--overflow <policy>]   block, drop-oldest or drop-newest when the queue is full (default block)\n"
+                + "  [--settle <ms>]         a new file is read once its size is stable this long (default 100)\n"
+                + "  [--stats <s>]           print statistics every s seconds, 0 = only at exit (default 10)");
+    }
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.plugin.filter.BackgroundSubtracter;
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Out-of-core correction of images too large to be held in memory, such as
+ * stitched whole-slide scans. The flat-field, sample and result images stay in
+ * memory-mapped files (uncompressed TIFF or raw) and are processed tile by tile:
+ * <ol>
+ * <li>the flat is shrunk by block averaging and its rolling-ball background is
+ * estimated on the small image, as in the pyramid mode of the plugin;</li>
+ * <li>the MaxEntropy threshold is computed from a histogram accumulated over all
+ * tiles of the prepared flat, exactly like {@code setAutoThreshold};</li>
+ * <li>the stain particles are labeled row by row and kept as runs, so the
+ * percentile filter sees the whole image;</li>
+ * <li>ring statistics, correction and PFFC are computed per tile with a halo of
+ * the ring expansion or the PFFC blur reach, and summed over the tiles.</li>
+ * </ol>
+ * With the box blur the tiled PFFC background is the blur of the whole image. The
+ * exact Gaussian only approximates it for large radii: ImageJ's GaussianBlur then
+ * blurs a downscaled copy on a grid anchored at the origin of each tile's region,
+ * so the tiles differ slightly (within the blur accuracy) from a whole-image blur.
+ * The prepared flat and the corrected image are recomputed from the mapped
+ * inputs in each pass instead of being written to temporary files; memory use is
+ * a few times the size of a tile plus its halo per thread. Example:
+ *
+ * <pre>
+ * java -Xmx24g -cp ij.jar:Remove_Dirty_Stains.jar ac.loong.tools.ijpi.TiledRemoveDirtyStains \
+ *     --flat flat.tif --sample slide.raw --raw-width 100000 --raw-height 100000 --raw-bits 16 \
+ *     --output cleaned.raw --pffc 300 --pffc-blur box
+ * </pre>
+ */
+public class TiledRemoveDirtyStains {
+
+    private static final int MAX_SHRUNK_SIZE = 2048; // Largest side of the shrunk flat used for the background
+    private static final int MIN_PYRAMID_SIZE = 64; // Smallest side of the shrunk flat, as in the plugin
+    private static final long LABEL_BAND_PIXELS = 1 << 24;
+    private static final int MAX_TILE_SIZE = 16384; // 瓦片加上边缘后仍须能放进一个数组
+
+    /** Tiled parameters, with the same defaults as the plugin dialog where they exist. */
+    public static class Options {
+        public Path flat;
+        public Path sample;
+        public Path output; // .raw for raw little-endian data, TIFF otherwise
+        public int rawWidth;
+        public int rawHeight;
+        public int rawBitDepth = 16;
+        public long rawOffset = 0;
+        public boolean rawLittleEndian = true;
+        public double expandRatio = 0.1;
+        public int percentile = 80;
+        public int flatDownsample = 0; // 0 = shrink the flat to at most MAX_SHRUNK_SIZE pixels
+        public boolean pffcEnabled = false;
+        public double pffcRadius = 50.0;
+        public BackgroundBlur.Method pffcBlurMethod = BackgroundBlur.Method.EXACT;
+        public double pffcBlurAccuracy = BackgroundBlur.DEFAULT_ACCURACY;
+        public int tileSize = 4096;
+        public int threads = 0; // 0 = all cores
+    }
+
+    private final Options options;
+    private final MappedImage flat;
+    private final MappedImage sample;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int threads;
+    private final ExecutorService executor;
+
+    // 平场背景（缩小后的滚球背景）
+    private double invertOffset;
+    private int shrinkFactor;
+    private FloatProcessor shrunkBackground;
+
+    // 污渍掩膜
+    private Threshold threshold;
+    private ParticleLabeling particles;
+    private double minArea;
+    private int constantMask = -1; // >= 0: no particle was found, the whole mask has this value
+
+    private TiledRemoveDirtyStains(Options options, MappedImage flat, MappedImage sample, int threads) {
+        this.options = options;
+        this.flat = flat;
+        this.sample = sample;
+        this.width = sample.getWidth();
+        this.height = sample.getHeight();
+        this.bitDepth = sample.getBitDepth();
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public static void run(Options options) throws IOException, InterruptedException {
+        validate(options);
+        int threads = options.threads > 0 ? options.threads : Runtime.getRuntime().availableProcessors();
+        try (MappedImage flat = open(options.flat, options); MappedImage sample = open(options.sample, options)) {
+            if (flat.getWidth() != sample.getWidth() || flat.getHeight() != sample.getHeight()
+                    || flat.getBitDepth() != sample.getBitDepth())
+                throw new IllegalArgumentException("Flat field and sample must have the same size and bit depth.");
+            TiledRemoveDirtyStains engine = new TiledRemoveDirtyStains(options, flat, sample, threads);
+            try {
+                engine.process();
+            } finally {
+                engine.executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void validate(Options options) {
+        if (options.flat == null || options.sample == null || options.output == null)
+            throw new IllegalArgumentException("Flat field image, sample image and output file are required.");
+        if (options.expandRatio < 0 || options.expandRatio > 1.0)
+            throw new IllegalArgumentException("Invalid expansion ratio. Must be between 0 and 1.0.");
+        if (options.percentile < 0 || options.percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile. Must be between 0 and 100.");
+        if (options.pffcEnabled && options.pffcRadius < 0.5)
+            throw new IllegalArgumentException("PFFC blurring radius must be >= 0.5 pixels.");
+        if (options.pffcEnabled && !(options.pffcBlurAccuracy > 0 && options.pffcBlurAccuracy < 1))
+            throw new IllegalArgumentException("PFFC blur accuracy must be between 0 and 1.");
+        if (options.flatDownsample < 0)
+            throw new IllegalArgumentException("Invalid background downsampling factor. Must be >= 0.");
+        if (options.tileSize < 64 || options.tileSize > MAX_TILE_SIZE)
+            throw new IllegalArgumentException("Tile size must be between 64 and " + MAX_TILE_SIZE + " pixels.");
+        if (options.threads < 0)
+            throw new IllegalArgumentException("Thread count must be >= 0.");
+    }
+
+    private static MappedImage open(Path path, Options options) throws IOException {
+        if (isRaw(path)) {
+            if (options.rawWidth <= 0 || options.rawHeight <= 0)
+                throw new IllegalArgumentException("Raw images need --raw-width and --raw-height.");
+            return MappedImage.openRaw(path, options.rawWidth, options.rawHeight, options.rawBitDepth,
+                    options.rawOffset, options.rawLittleEndian);
+        }
+        return MappedImage.openTiff(path);
+    }
+
+    private static boolean isRaw(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".raw");
+    }
+
+    private void process() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        prepareFlatBackground();
+        log("flat background", start);
+
+        long t = System.currentTimeMillis();
+        computeThreshold();
+        labelStains();
+        log("stain mask", t);
+
+        t = System.currentTimeMillis();
+        double k = correctionFactor();
+        log("correction factor k=" + IJ.d2s(k, 4), t);
+
+        t = System.currentTimeMillis();
+        BackgroundBlur pffcBlur = options.pffcEnabled
+                ? new BackgroundBlur(options.pffcRadius, options.pffcBlurMethod, options.pffcBlurAccuracy)
+                : null;
+        writeCorrected(k, pffcBlur);
+        log("correction", t);
+        log("total", start);
+    }
+
+    private static void log(String stage, long start) {
+        IJ.log("Remove Dirty Stains (tiled): " + stage + " " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // --- Tiles ---
+
+    private interface TileTask<T> {
+        T run(Rectangle tile) throws IOException;
+    }
+
+    /** Tiles of {@code options.tileSize} pixels (rounded to a multiple of {@code alignment}), row by row. */
+    private List<Rectangle> tiles(int alignment) {
+        int size = Math.max(alignment, options.tileSize / alignment * alignment);
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += size) {
+            for (int x = 0; x < width; x += size)
+                tiles.add(new Rectangle(x, y, Math.min(size, width - x), Math.min(size, height - y)));
+        }
+        return tiles;
+    }
+
+    /** Runs {@code task} on every tile in parallel and returns the results in tile order. */
+    private <T> List<T> forEachTile(List<Rectangle> tiles, TileTask<T> task) throws IOException, InterruptedException {
+        List<Future<T>> futures = new ArrayList<>(tiles.size());
+        for (Rectangle tile : tiles)
+            futures.add(executor.submit(() -> task.run(tile)));
+        List<T> results = new ArrayList<>(tiles.size());
+        for (Future<T> future : futures)
+            results.add(get(future));
+        return results;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /** {@code tile} grown by {@code halo} pixels on each side, clipped to the image. */
+    private Rectangle withHalo(Rectangle tile, int halo) {
+        long grownWidth = Math.min(width, tile.width + 2L * halo);
+        long grownHeight = Math.min(height, tile.height + 2L * halo);
+        if (grownWidth * grownHeight > MappedImage.MAX_REGION_PIXELS)
+            throw new IllegalArgumentException("Tile with a halo of " + halo
+                    + " pixels does not fit in one array, use a smaller --tile.");
+        Rectangle region = new Rectangle(tile.x - halo, tile.y - halo, tile.width + 2 * halo, tile.height + 2 * halo);
+        return region.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    // --- Flat preparation ---
+
+    /**
+     * Block-averages the inverted flat and computes its rolling-ball background,
+     * like {@code subtractPyramidBackground} with the ball radius set to the width
+     * of the shrunk image.
+     */
+    private void prepareFlatBackground() throws IOException, InterruptedException {
+        int factor = options.flatDownsample > 0 ? options.flatDownsample
+                : (Math.max(width, height) + MAX_SHRUNK_SIZE - 1) / MAX_SHRUNK_SIZE;
+        factor = Math.max(1, Math.min(factor, Math.min(width, height) / MIN_PYRAMID_SIZE));
+        final int f = factor;
+        final int shrunkWidth = width / f;
+        final int shrunkHeight = height / f;
+        final double[] sums = new double[shrunkWidth * shrunkHeight];
+
+        // 各分块写入互不重叠的块，可并行累加
+        List<double[]> minMax = forEachTile(tiles(f), tile -> {
+            ImageProcessor ip = flat.read(tile.x, tile.y, tile.width, tile.height);
+            for (int y = 0; y < tile.height; y++) {
+                int by = (tile.y + y) / f;
+                if (by >= shrunkHeight)
+                    break;
+                for (int x = 0; x < tile.width; x++) {
+                    int bx = (tile.x + x) / f;
+                    if (bx >= shrunkWidth)
+                        break;
+                    sums[by * shrunkWidth + bx] += ip.getf(x, y);
+                }
+            }
+            return nativeMinAndMax(ip);
+        });
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double[] m : minMax) {
+            min = Math.min(min, m[0]);
+            max = Math.max(max, m[1]);
+        }
+
+        // 与 ImageProcessor.invert() 一致：8 位为 255 - v，16/32 位按像素范围翻转
+        invertOffset = bitDepth == 8 ? 255 : min + max;
+        float[] shrunk = new float[sums.length];
+        double blockArea = (double) f * f;
+        for (int i = 0; i < shrunk.length; i++)
+            shrunk[i] = (float) (invertOffset - sums[i] / blockArea);
+        FloatProcessor background = new FloatProcessor(shrunkWidth, shrunkHeight, shrunk, null);
+        BackgroundSubtracter ba = new BackgroundSubtracter();
+        ba.rollingBallBackground(background, shrunkWidth, true, false, true, true, true);
+        this.shrinkFactor = f;
+        this.shrunkBackground = background;
+    }
+
+    private static double[] nativeMinAndMax(ImageProcessor ip) {
+        if (ip instanceof FloatProcessor) {
+            float[] pixels = (float[]) ip.getPixels();
+            return CorrectionKernel.minAndMax(pixels, 0, 0, ip.getWidth(), ip.getWidth(), ip.getHeight());
+        }
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (int i = 0, n = ip.getPixelCount(); i < n; i++) {
+            int v = ip.get(i);
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        }
+        return new double[] { min, max };
+    }
+
+    /** Prepared (inverted, background subtracted) flat over a rectangle, in the flat bit depth. */
+    private ImageProcessor preparedFlat(Rectangle r) throws IOException {
+        ImageProcessor ip = flat.read(r.x, r.y, r.width, r.height);
+        float[] background = backgroundRegion(r);
+        Object pixels = ip.getPixels();
+        // 与 subtractPyramidBackground 一致：整数图像减去背景后截断为非负
+        if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < p.length; i++)
+                p[i] = (float) (invertOffset - p[i]) - background[i];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            int offset = (int) invertOffset;
+            for (int i = 0; i < p.length; i++) {
+                int v = Math.round((offset - (p[i] & 0xffff)) - background[i]);
+                p[i] = (short) (v < 0 ? 0 : v > 65535 ? 65535 : v);
+            }
+        } else {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < p.length; i++) {
+                int v = Math.round((255 - (p[i] & 0xff)) - background[i]);
+                p[i] = (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+            }
+        }
+        return ip;
+    }
+
+    /** Bilinear interpolation of the shrunk background over a rectangle of the full image. */
+    private float[] backgroundRegion(Rectangle r) {
+        int sw = shrunkBackground.getWidth();
+        int sh = shrunkBackground.getHeight();
+        float[] small = (float[]) shrunkBackground.getPixels();
+        int[] x0 = new int[r.width];
+        int[] x1 = new int[r.width];
+        float[] wx = new float[r.width];
+        for (int x = 0; x < r.width; x++) {
+            double sx = Math.max(0, Math.min(sw - 1, (r.x + x + 0.5) / shrinkFactor - 0.5));
+            x0[x] = (int) sx;
+            x1[x] = Math.min(sw - 1, x0[x] + 1);
+            wx[x] = (float) (sx - x0[x]);
+        }
+        float[] out = new float[r.width * r.height];
+        for (int y = 0; y < r.height; y++) {
+            double sy = Math.max(0, Math.min(sh - 1, (r.y + y + 0.5) / shrinkFactor - 0.5));
+            int y0 = (int) sy;
+            int y1 = Math.min(sh - 1, y0 + 1);
+            float wy = (float) (sy - y0);
+            int row0 = y0 * sw;
+            int row1 = y1 * sw;
+            for (int x = 0, i = y * r.width; x < r.width; x++, i++) {
+                float top = small[row0 + x0[x]] + (small[row0 + x1[x]] - small[row0 + x0[x]]) * wx[x];
+                float bottom = small[row1 + x0[x]] + (small[row1 + x1[x]] - small[row1 + x0[x]]) * wx[x];
+                out[i] = top + (bottom - top) * wy;
+            }
+        }
+        return out;
+    }
+
+    // --- Stain mask ---
+
+    private void computeThreshold() throws IOException, InterruptedException {
+        List<Rectangle> tiles = tiles(1);
+        double min = 0;
+        double max = 255;
+        if (bitDepth != 8) {
+            min = Double.MAX_VALUE;
+            max = -Double.MAX_VALUE;
+            for (double[] m : forEachTile(tiles, tile -> nativeMinAndMax(preparedFlat(tile)))) {
+                min = Math.min(min, m[0]);
+                max = Math.max(max, m[1]);
+            }
+        }
+        final double rangeMin = min;
+        final double rangeMax = max;
+        int[] histogram = new int[256];
+        for (int[] h : forEachTile(tiles, tile -> Threshold.histogram(preparedFlat(tile), rangeMin, rangeMax))) {
+            for (int i = 0; i < 256; i++)
+                histogram[i] += h[i];
+        }
+        threshold = Threshold.fromHistogram(histogram, bitDepth, rangeMin, rangeMax);
+    }
+
+    /**
+     * Labels the thresholded prepared flat in bands of full rows: the bands are
+     * prepared in parallel, a few ahead, and fed to the labeling in order.
+     */
+    private void labelStains() throws IOException, InterruptedException {
+        // 与 filterSmallRegions 一致：createMask 的 LUT 不反转，由“黑色背景”选项决定分析 255 还是 0
+        int foreground = Prefs.blackBackground ? 255 : 0;
+        int bandRows = (int) Math.max(1, Math.min(height, LABEL_BAND_PIXELS / width));
+        ParticleLabeling labeling = new ParticleLabeling(width, height);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        int nextBand = 0;
+        int lookahead = Math.max(2, threads);
+        for (int y = 0; y < height; y += bandRows) {
+            while (nextBand < height && pending.size() < lookahead) {
+                final Rectangle band = new Rectangle(0, nextBand, width, Math.min(bandRows, height - nextBand));
+                pending.add(executor.submit(() -> threshold.mask(preparedFlat(band))));
+                nextBand += bandRows;
+            }
+            byte[] mask = get(pending.removeFirst());
+            for (int offset = 0; offset < mask.length; offset += width)
+                labeling.addRow(mask, offset, foreground);
+        }
+        labeling.finish();
+
+        particles = labeling;
+        if (labeling.getParticleCount() == 0) {
+            IJ.log("No particles found in the mask.");
+            constantMask = 255 - foreground;
+        } else {
+            minArea = labeling.minAreaForPercentile(options.percentile);
+        }
+    }
+
+    private ByteProcessor stainMask(Rectangle r) {
+        if (constantMask >= 0) {
+            byte[] pixels = new byte[r.width * r.height];
+            Arrays.fill(pixels, (byte) constantMask);
+            return new ByteProcessor(r.width, r.height, pixels, null);
+        }
+        return particles.toMask(minArea, r.x, r.y, r.width, r.height);
+    }
+
+    // --- Statistics and correction ---
+
+    /** Stain and ring statistics of the prepared flat and of the sample, summed over all tiles. */
+    private double correctionFactor() throws IOException, InterruptedException {
+        final int steps = DirtyStainsEngine.expandSteps(width, options.expandRatio);
+        RegionStatistics flatStats = RegionStatistics.empty();
+        RegionStatistics sampleStats = RegionStatistics.empty();
+        for (RegionStatistics[] stats : forEachTile(tiles(1), tile -> {
+            Rectangle region = withHalo(tile, steps);
+            ByteProcessor expanded = MaskMorphology.dilate(stainMask(region), steps);
+            ByteProcessor stain = stainMask(tile);
+            byte[] ring = (byte[]) crop(expanded, tile.x - region.x, tile.y - region.y, tile.width, tile.height)
+                    .getPixels();
+            byte[] stainPixels = (byte[]) stain.getPixels();
+            for (int i = 0; i < ring.length; i++)
+                ring[i] ^= stainPixels[i];
+            ByteProcessor ringMask = new ByteProcessor(tile.width, tile.height, ring, null);
+            return new RegionStatistics[] {
+                    RegionStatistics.measure(preparedFlat(tile), stain, ringMask),
+                    RegionStatistics.measure(sample.read(tile.x, tile.y, tile.width, tile.height), stain, ringMask) };
+        })) {
+            flatStats.add(stats[0]);
+            sampleStats.add(stats[1]);
+        }
+        boolean ringEmpty = flatStats.getRingCount() == 0;
+        double[] flatMeasures = DirtyStainsEngine.measureRegions(flatStats, ringEmpty);
+        double[] sampleMeasures = DirtyStainsEngine.measureRegions(sampleStats, ringEmpty);
+        return DirtyStainsEngine.correctionFactor(flatMeasures[0], flatMeasures[1], sampleMeasures[0],
+                sampleMeasures[1]);
+    }
+
+    private static ImageProcessor crop(ImageProcessor ip, int x, int y, int cropWidth, int cropHeight) {
+        ip.setRoi(x, y, cropWidth, cropHeight);
+        return ip.crop();
+    }
+
+    /** sample + k * prepared flat over a rectangle, as float. */
+    private float[] corrected(Rectangle r, double k) throws IOException {
+        float[] out = new float[r.width * r.height];
+        CorrectionKernel.addScaled(sample.read(r.x, r.y, r.width, r.height).getPixels(),
+                preparedFlat(r).getPixels(), k, out);
+        return out;
+    }
+
+    /**
+     * Corrected tile (without halo). With PFFC the tile is computed with a halo of
+     * the blur reach so the blurred background approximately matches a blur of the
+     * whole image (exactly with the box blur, see the class comment).
+     */
+    private float[] correctedTile(Rectangle tile, double k, BackgroundBlur pffcBlur, double backgroundMean)
+            throws IOException {
+        if (pffcBlur == null)
+            return corrected(tile, k);
+        Rectangle region = withHalo(tile, pffcBlur.reach());
+        float[] pixels = corrected(region, k);
+        float[] background = pixels.clone();
+        pffcBlur.blur(new FloatProcessor(region.width, region.height, background, null));
+        if (backgroundMean != 0)
+            CorrectionKernel.divideByBackground(pixels, background, backgroundMean);
+        return cropPixels(pixels, region, tile);
+    }
+
+    private static float[] cropPixels(float[] pixels, Rectangle region, Rectangle tile) {
+        float[] out = new float[tile.width * tile.height];
+        for (int y = 0; y < tile.height; y++) {
+            System.arraycopy(pixels, (tile.y - region.y + y) * region.width + tile.x - region.x, out,
+                    y * tile.width, tile.width);
+        }
+        return out;
+    }
+
+    private void writeCorrected(final double k, final BackgroundBlur pffcBlur)
+            throws IOException, InterruptedException {
+        List<Rectangle> tiles = tiles(1);
+
+        // PFFC：背景均值需要整幅图像，先单独扫描一遍
+        double backgroundMean = 0;
+        if (pffcBlur != null) {
+            final int reach = pffcBlur.reach();
+            double sum = 0;
+            long count = 0;
+            for (double[] s : forEachTile(tiles, tile -> {
+                Rectangle region = withHalo(tile, reach);
+                float[] background = corrected(region, k);
+                pffcBlur.blur(new FloatProcessor(region.width, region.height, background, null));
+                double tileSum = 0;
+                long tileCount = 0;
+                for (float v : cropPixels(background, region, tile)) {
+                    if (v >= -Float.MAX_VALUE && v <= Float.MAX_VALUE) {
+                        tileSum += v;
+                        tileCount++;
+                    }
+                }
+                return new double[] { tileSum, tileCount };
+            })) {
+                sum += s[0];
+                count += (long) s[1];
+            }
+            backgroundMean = count > 0 ? sum / count : Double.NaN;
+        }
+        final double mean = backgroundMean;
+
+        // 8/16 位输出按整幅结果的最小/最大值缩放
+        double min = 0;
+        double max = 0;
+        if (bitDepth != 32) {
+            min = Float.MAX_VALUE;
+            max = -Float.MAX_VALUE;
+            for (double[] m : forEachTile(tiles, tile -> CorrectionKernel.minAndMax(
+                    correctedTile(tile, k, pffcBlur, mean), 0, 0, tile.width, tile.width, tile.height))) {
+                min = Math.min(min, m[0]);
+                max = Math.max(max, m[1]);
+            }
+        }
+        final double outputMin = min;
+        final double outputMax = max;
+
+        try (MappedImage output = isRaw(options.output)
+                ? MappedImage.createRaw(options.output, width, height, bitDepth)
+                : MappedImage.createTiff(options.output, width, height, bitDepth)) {
+            forEachTile(tiles, tile -> {
+                float[] pixels = correctedTile(tile, k, pffcBlur, mean);
+                output.write(tile.x, tile.y, CorrectionKernel.toBitDepth(pixels, tile.width, tile.height, bitDepth,
+                        outputMin, outputMax, null));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Auto threshold of {@code setAutoThreshold(MaxEntropy, true, ...)} followed by
+     * {@code createMask()}, computed from a histogram accumulated tile by tile:
+     * 16/32-bit values are binned like {@code convertToByte(true)} over the global
+     * range, and the 8-bit level is scaled back like {@code scaleAndSetThreshold}.
+     */
+    static final class Threshold {
+        private final int bitDepth;
+        private final double lower;
+        private final double upper;
+
+        private Threshold(int bitDepth, double lower, double upper) {
+            this.bitDepth = bitDepth;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        static int[] histogram(ImageProcessor ip, double min, double max) {
+            int[] histogram = new int[256];
+            Object pixels = ip.getPixels();
+            if (pixels instanceof byte[]) {
+                for (byte v : (byte[]) pixels)
+                    histogram[v & 0xff]++;
+            } else if (pixels instanceof short[]) {
+                int imin = (int) min;
+                double scale = 256.0 / (max - min + 1);
+                for (short s : (short[]) pixels) {
+                    int v = (s & 0xffff) - imin;
+                    if (v < 0)
+                        v = 0;
+                    v = (int) (v * scale + 0.5);
+                    histogram[v > 255 ? 255 : v]++;
+                }
+            } else {
+                double scale = 255.0 / (max - min);
+                for (float f : (float[]) pixels) {
+                    double v = f - min;
+                    if (v < 0)
+                        v = 0;
+                    int level = (int) (v * scale + 0.5);
+                    histogram[level > 255 ? 255 : level]++;
+                }
+            }
+            return histogram;
+        }
+
+        static Threshold fromHistogram(int[] histogram, int bitDepth, double min, double max) {
+            int level = new AutoThresholder().getThreshold(AutoThresholder.Method.MaxEntropy, histogram);
+            double lower = Math.min(255, level + 1);
+            double upper = 255;
+            if (bitDepth == 8)
+                return new Threshold(8, lower, upper);
+            if (max > min) {
+                lower = min + (lower / 255.0) * (max - min);
+                upper = bitDepth == 16 ? 65535 : Math.max(max, 1e30);
+            } else {
+                lower = upper = min;
+            }
+            if (bitDepth == 16) {
+                // ShortProcessor.setThreshold 将阈值取整
+                lower = Math.round(Math.max(0, lower));
+                upper = Math.round(upper);
+            }
+            return new Threshold(bitDepth, lower, upper);
+        }
+
+        /** 255 where the pixel is inside the threshold range, 0 elsewhere. */
+        byte[] mask(ImageProcessor ip) {
+            Object pixels = ip.getPixels();
+            byte[] mask = new byte[ip.getPixelCount()];
+            if (bitDepth == 32) {
+                float lo = (float) lower;
+                float hi = (float) upper;
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < p.length; i++) {
+                    if (p[i] >= lo && p[i] <= hi)
+                        mask[i] = (byte) 255;
+                }
+            } else {
+                int lo = (int) lower;
+                int hi = (int) upper;
+                for (int i = 0; i < mask.length; i++) {
+                    int v = ip.get(i);
+                    if (v >= lo && v <= hi)
+                        mask[i] = (byte) 255;
+                }
+            }
+            return mask;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null)
+            System.setProperty("java.awt.headless", "true");
+        Options options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        try {
+            run(options);
+            System.exit(0);
+        } catch (Exception e) {
+            System.err.println("Remove Dirty Stains tiled run failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--flat":
+                    options.flat = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--sample":
+                    options.sample = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--output":
+                    options.output = Paths.get(value(args, ++i, arg));
+                    break;
+                case "--raw-width":
+                    options.rawWidth = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--raw-height":
+                    options.rawHeight = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--raw-bits":
+                    options.rawBitDepth = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--raw-offset":
+                    options.rawOffset = Long.parseLong(value(args, ++i, arg));
+                    break;
+                case "--raw-big-endian":
+                    options.rawLittleEndian = false;
+                    break;
+                case "--expand":
+                    options.expandRatio = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--percentile":
+                    options.percentile = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--flat-downsample":
+                    options.flatDownsample = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--pffc":
+                    options.pffcEnabled = true;
+                    options.pffcRadius = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--pffc-blur":
+                    options.pffcBlurMethod = BackgroundBlur.Method.valueOf(value(args, ++i, arg).toUpperCase());
+                    break;
+                case "--pffc-accuracy":
+                    options.pffcBlurAccuracy = Double.parseDouble(value(args, ++i, arg));
+                    break;
+                case "--tile":
+                    options.tileSize = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value(args, ++i, arg));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static String value(String[] args, int i, String name) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + name);
+        return args[i];
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: TiledRemoveDirtyStains --flat <file> --sample <file> --output <file>\n"
+                + "  Files are uncompressed TIFF, or raw data if the name ends with .raw\n"
+                + "  [--raw-width <n>] [--raw-height <n>]  size of raw images\n"
+                + "  [--raw-bits <8|16|32>]  bit depth of raw images (default 16)\n"
+                + "  [--raw-offset <bytes>]  header size of raw images (default 0)\n"
+                + "  [--raw-big-endian]      raw images are big-endian (default little-endian)\n"
+                + "  [--expand <0-1.0>]      peripheral detection expansion ratio (default 0.1)\n"
+                + "  [--percentile <0-100>]  percentage of flat-field microparticle to be kept (default 80)\n"
+                + "  [--flat-downsample <n>] shrink factor of the flat background (default: at most "
+                + MAX_SHRUNK_SIZE + " px)\n"
+                + "  [--pffc <radius>]       apply PFFC with the given radius after removal\n"
+                + "  [--pffc-blur <method>]  exact or box (default exact)\n"
+                + "  [--pffc-accuracy <e>]   relative error tolerated by the PFFC blur (default 0.02)\n"
+                + "  [--tile <n>]            tile size in pixels (64-16384, default 4096)\n"
+                + "  [--threads <n>]         worker threads (default: all cores)");
+    }
+}
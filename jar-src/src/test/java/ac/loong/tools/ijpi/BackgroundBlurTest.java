@@ -0,0 +1,115 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.process.FloatProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/** Non-finite pixels in the box blur of {@link BackgroundBlur}. */
+public class BackgroundBlurTest {
+
+    @Test
+    public void nanStaysWithinTheReach() {
+        assertLocal(Float.NaN, 100, 80);
+        assertLocal(Float.NaN, 0, 0);
+        assertLocal(Float.POSITIVE_INFINITY, 150, 199);
+        assertLocal(Float.NEGATIVE_INFINITY, 199, 10);
+    }
+
+    @Test
+    public void finiteImagesGetTheBoxFilter() {
+        int width = 120;
+        int height = 90;
+        double sigma = 5;
+        float[] pixels = noise(width, height, 1);
+        FloatProcessor box = blur(pixels, width, height, BackgroundBlur.Method.BOX, sigma);
+        // 默认精度下为 3 次盒式滤波，逐像素直接求均值作为参照
+        float[] expected = pixels.clone();
+        for (int r : BackgroundBlur.boxRadii(sigma, 3)) {
+            expected = boxReference(expected, width, height, r, 1, 0);
+            expected = boxReference(expected, width, height, r, 0, 1);
+        }
+        for (int i = 0; i < pixels.length; i++)
+            assertEquals(expected[i], box.getf(i), 1e-3);
+    }
+
+    /**
+     * One bad pixel at (x0, y0): the box blur is NaN only within its reach, and equal to
+     * the blur of the image without it everywhere else.
+     */
+    private static void assertLocal(float bad, int x0, int y0) {
+        int width = 200;
+        int height = 200;
+        double sigma = 5;
+        float[] pixels = noise(width, height, 7);
+        FloatProcessor clean = blur(pixels, width, height, BackgroundBlur.Method.BOX, sigma);
+        pixels[y0 * width + x0] = bad;
+        FloatProcessor box = blur(pixels, width, height, BackgroundBlur.Method.BOX, sigma);
+        int reach = new BackgroundBlur(sigma, BackgroundBlur.Method.BOX, BackgroundBlur.DEFAULT_ACCURACY).reach();
+        int nan = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float v = box.getf(x, y);
+                boolean near = Math.abs(x - x0) <= reach && Math.abs(y - y0) <= reach;
+                if (Float.isNaN(v)) {
+                    nan++;
+                    assertTrue("NaN at " + x + "," + y + " beyond the reach " + reach, near);
+                } else if (!near) {
+                    assertEquals(clean.getf(x, y), v, 0);
+                }
+            }
+        }
+        assertTrue(nan > 0);
+    }
+
+    /** Mean over 2r+1 pixels along (dx, dy), repeating the edge pixels. */
+    private static float[] boxReference(float[] src, int width, int height, int r, int dx, int dy) {
+        float[] dst = new float[src.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double sum = 0;
+                for (int i = -r; i <= r; i++) {
+                    int sx = Math.min(width - 1, Math.max(0, x + i * dx));
+                    int sy = Math.min(height - 1, Math.max(0, y + i * dy));
+                    sum += src[sy * width + sx];
+                }
+                dst[y * width + x] = (float) (sum / (2 * r + 1));
+            }
+        }
+        return dst;
+    }
+
+    private static float[] noise(int width, int height, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (float) (1000 + 100 * random.nextGaussian());
+        return pixels;
+    }
+
+    private static FloatProcessor blur(float[] pixels, int width, int height, BackgroundBlur.Method method,
+            double sigma) {
+        FloatProcessor fp = new FloatProcessor(width, height, pixels.clone(), null);
+        new BackgroundBlur(sigma, method, BackgroundBlur.DEFAULT_ACCURACY).blur(fp);
+        return fp;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Save/load round trip of {@link CalibrationFile}. */
+public class CalibrationFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DirtyStainsEngine engine = new DirtyStainsEngine(DirtyStainsEngine.Observer.NONE);
+
+    @Test
+    public void roundTripOfEveryBitDepth() throws IOException {
+        for (int bitDepth : new int[] { 8, 16, 32 }) {
+            for (int flatDownsample : new int[] { 1, 3 }) {
+                ImagePlus flat = flat(bitDepth, 160, 120, 42);
+                FlatFieldCalibration calibration = engine.getCalibration(flat, 0.1, 80, flatDownsample);
+                assertTrue(calibration.getStainRuns().getPixelCount() > 0);
+                Path path = folder.getRoot().toPath().resolve("flat" + bitDepth + "_" + flatDownsample + ".rdscal");
+                long checksum = CalibrationFile.checksum(flat.getProcessor());
+                CalibrationFile.save(calibration, checksum, path);
+
+                CalibrationFile.Header header = CalibrationFile.readHeader(path);
+                assertEquals(160, header.width);
+                assertEquals(120, header.height);
+                assertEquals(calibration.getPreparedFlat().getBitDepth(), header.bitDepth);
+                assertEquals(checksum, header.flatChecksum);
+                assertTrue(header.matches(checksum, 0.1, 80, flatDownsample));
+                assertSameCalibration(calibration, CalibrationFile.load(path));
+            }
+        }
+    }
+
+    @Test
+    public void loadMatchingChecksFlatAndParameters() throws IOException {
+        ImagePlus flat = flat(16, 96, 64, 7);
+        FlatFieldCalibration calibration = engine.getCalibration(flat, 0.1, 80, 1);
+        Path path = folder.getRoot().toPath().resolve("flat.rdscal");
+        long checksum = CalibrationFile.checksum(flat.getProcessor());
+        assertNull(CalibrationFile.loadMatching(path, checksum, 0.1, 80, 1));
+        CalibrationFile.save(calibration, checksum, path);
+
+        assertSameCalibration(calibration, CalibrationFile.loadMatching(path, checksum, 0.1, 80, 1));
+        assertNull(CalibrationFile.loadMatching(path, checksum + 1, 0.1, 80, 1));
+        assertNull(CalibrationFile.loadMatching(path, checksum, 0.2, 80, 1));
+        assertNull(CalibrationFile.loadMatching(path, checksum, 0.1, 70, 1));
+        assertNull(CalibrationFile.loadMatching(path, checksum, 0.1, 80, 2));
+    }
+
+    @Test
+    public void loadedFileCanBeReplaced() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("flat.rdscal");
+        ImagePlus first = flat(16, 96, 64, 5);
+        CalibrationFile.save(engine.getCalibration(first, 0.1, 80, 1), CalibrationFile.checksum(first.getProcessor()),
+                path);
+        CalibrationFile.load(path);
+        // load 不保留对文件的映射，参数改变后可以立即覆盖
+        ImagePlus second = flat(16, 96, 64, 6);
+        FlatFieldCalibration calibration = engine.getCalibration(second, 0.2, 70, 1);
+        CalibrationFile.save(calibration, CalibrationFile.checksum(second.getProcessor()), path);
+        assertSameCalibration(calibration, CalibrationFile.load(path));
+    }
+
+    @Test
+    public void loadOrBuildWritesOnceAndReuses() throws IOException {
+        ImagePlus flat = flat(16, 96, 64, 9);
+        Path path = folder.getRoot().toPath().resolve("sub").resolve("flat.rdscal");
+        FlatFieldCalibration built = CalibrationFile.loadOrBuild(path, flat, 0.1, 80, 1, engine);
+        CalibrationFile.Header header = CalibrationFile.readHeader(path);
+        assertEquals(CalibrationFile.checksum(flat.getProcessor()), header.flatChecksum);
+        FlatFieldCalibration loaded = CalibrationFile.loadOrBuild(path, null, 0, 0, 0, engine);
+        assertSameCalibration(built, loaded);
+    }
+
+    @Test
+    public void corruptedBodyIsRejected() throws IOException {
+        ImagePlus flat = flat(8, 64, 48, 3);
+        Path path = folder.getRoot().toPath().resolve("flat.rdscal");
+        CalibrationFile.save(engine.getCalibration(flat, 0.1, 80, 1), CalibrationFile.checksum(flat.getProcessor()),
+                path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0x5a));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        }
+        try {
+            CalibrationFile.load(path);
+            fail("corrupted file was loaded");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        Path path = folder.newFile("not-a-calibration.rdscal").toPath();
+        Files.write(path, "not a calibration file".getBytes("US-ASCII"));
+        CalibrationFile.readHeader(path);
+    }
+
+    private static void assertSameCalibration(FlatFieldCalibration expected, FlatFieldCalibration actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getExpandRatio(), actual.getExpandRatio(), 0);
+        assertEquals(expected.getPercentile(), actual.getPercentile());
+        assertEquals(expected.getFlatDownsample(), actual.getFlatDownsample());
+        assertEquals(expected.getFlatStainMean(), actual.getFlatStainMean(), 0);
+        assertEquals(expected.getFlatSurroundMean(), actual.getFlatSurroundMean(), 0);
+        assertEquals(expected.isRingEmpty(), actual.isRingEmpty());
+        assertSameMask(expected.getStainRuns(), actual.getStainRuns());
+        assertSameMask(expected.getRingRuns(), actual.getRingRuns());
+        ImageProcessor flat = expected.getPreparedFlat();
+        ImageProcessor loaded = actual.getPreparedFlat();
+        assertEquals(flat.getBitDepth(), loaded.getBitDepth());
+        for (int i = 0; i < flat.getPixelCount(); i++)
+            assertEquals("pixel " + i, Float.floatToIntBits(flat.getf(i)), Float.floatToIntBits(loaded.getf(i)));
+    }
+
+    private static void assertSameMask(RunLengthMask expected, RunLengthMask actual) {
+        assertEquals(expected.getRunCount(), actual.getRunCount());
+        assertArrayEquals((byte[]) expected.toByteProcessor().getPixels(),
+                (byte[]) actual.toByteProcessor().getPixels());
+    }
+
+    /** Vignetted flat with dark stains of several sizes, some cut by the border. */
+    private static ImagePlus flat(int bitDepth, int width, int height, long seed) {
+        Random random = new Random(seed);
+        double max = bitDepth == 8 ? 220 : bitDepth == 16 ? 40000 : 1.0;
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double dx = (x - width / 2.0) / width;
+                double dy = (y - height / 2.0) / height;
+                pixels[y * width + x] = (float) (max * (1 - 0.5 * (dx * dx + dy * dy))
+                        * (1 + 0.01 * random.nextGaussian()));
+            }
+        }
+        for (int s = 0; s < 12; s++) {
+            int cx = random.nextInt(width);
+            int cy = s < 3 ? 0 : random.nextInt(height);
+            double r = 1.5 + random.nextInt(6);
+            for (int y = Math.max(0, (int) (cy - r)); y <= Math.min(height - 1, cy + r); y++) {
+                for (int x = Math.max(0, (int) (cx - r)); x <= Math.min(width - 1, cx + r); x++) {
+                    if (Math.hypot(x - cx, y - cy) <= r)
+                        pixels[y * width + x] *= 0.6f;
+                }
+            }
+        }
+        FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+        ImageProcessor ip = bitDepth == 8 ? fp.convertToByteProcessor(false)
+                : bitDepth == 16 ? fp.convertToShortProcessor(false) : fp;
+        return new ImagePlus("flat" + bitDepth, ip);
+    }
+}
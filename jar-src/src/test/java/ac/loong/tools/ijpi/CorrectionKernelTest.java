@@ -0,0 +1,147 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.Blitter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * {@link CorrectionKernel#correct} against the step-by-step chain it replaces:
+ * applyCorrection, pseudoFlatFieldCorrection and convertImageToMatch of the original plugin.
+ */
+public class CorrectionKernelTest {
+
+    private static final double PFFC_ACCURACY = 0.02; // 原插件固定使用的 GaussianBlur 精度
+
+    @Test
+    public void fusedMatchesStepByStep() {
+        Random random = new Random(13);
+        for (int bitDepth : new int[] { 8, 16, 32 }) {
+            for (double pffcRadius : new double[] { 0, 4, 25 }) {
+                for (double k : new double[] { 0.37, 1.8, 0 }) {
+                    ImageProcessor sample = image(bitDepth, 90, 70, random);
+                    ImageProcessor flat = image(32, 90, 70, random);
+                    assertSame(bitDepth + "-bit, radius " + pffcRadius + ", k " + k,
+                            stepByStep(sample, flat, k, pffcRadius), fused(sample, flat, k, pffcRadius));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void flatOfTheSampleBitDepth() {
+        Random random = new Random(21);
+        for (int bitDepth : new int[] { 8, 16 }) {
+            ImageProcessor sample = image(bitDepth, 64, 48, random);
+            ImageProcessor flat = image(bitDepth, 64, 48, random);
+            assertSame(bitDepth + "-bit flat", stepByStep(sample, flat, 0.6, 0), fused(sample, flat, 0.6, 0));
+            assertSame(bitDepth + "-bit flat, PFFC", stepByStep(sample, flat, 0.6, 6), fused(sample, flat, 0.6, 6));
+        }
+    }
+
+    @Test
+    public void constantImage() {
+        for (int bitDepth : new int[] { 8, 16, 32 }) {
+            ImageProcessor sample = image(bitDepth, 20, 10, null);
+            ImageProcessor flat = image(32, 20, 10, null);
+            assertSame(bitDepth + "-bit constant", stepByStep(sample, flat, 0.5, 0), fused(sample, flat, 0.5, 0));
+        }
+    }
+
+    private static ImageProcessor fused(ImageProcessor sample, ImageProcessor flat, double k, double pffcRadius) {
+        BackgroundBlur blur = pffcRadius > 0 ? new BackgroundBlur(pffcRadius) : null;
+        return CorrectionKernel.correct(sample, flat, k, blur, sample.getBitDepth());
+    }
+
+    private static ImageProcessor stepByStep(ImageProcessor sample, ImageProcessor flat, double k, double pffcRadius) {
+        // applyCorrection
+        ImageProcessor correction = flat.duplicate().convertToFloat();
+        correction.multiply(k);
+        ImageProcessor result = sample.duplicate().convertToFloat();
+        result.copyBits(correction, 0, 0, Blitter.ADD);
+        result.resetMinAndMax();
+
+        // pseudoFlatFieldCorrection
+        if (pffcRadius > 0) {
+            ImageProcessor background = result.duplicate().convertToFloat();
+            new GaussianBlur().blurGaussian(background, pffcRadius, pffcRadius, PFFC_ACCURACY);
+            double backgroundMean = background.getStatistics().mean;
+            if (backgroundMean != 0) {
+                FloatProcessor output = (FloatProcessor) result.duplicate();
+                float[] pixels = (float[]) output.getPixels();
+                float[] blurred = (float[]) background.getPixels();
+                for (int i = 0; i < pixels.length; i++) {
+                    double bg = blurred[i];
+                    if (bg != 0 && !Double.isNaN(bg))
+                        pixels[i] = (float) ((result.getf(i) * backgroundMean) / bg);
+                }
+                output.resetMinAndMax();
+                result = output;
+            }
+        }
+
+        // convertImageToMatch
+        if (sample.getBitDepth() == 8)
+            return result.convertToByte(true);
+        if (sample.getBitDepth() == 16)
+            return result.convertToShort(true);
+        return result;
+    }
+
+    /** Smooth gradient with noise and a few dark stains; constant if {@code random} is null. */
+    private static ImageProcessor image(int bitDepth, int width, int height, Random random) {
+        double max = bitDepth == 8 ? 200 : bitDepth == 16 ? 30000 : 2.5;
+        FloatProcessor fp = new FloatProcessor(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double v = random == null ? 0.5 * max
+                        : max * (0.4 + 0.4 * x / width + 0.1 * y / height + 0.02 * random.nextGaussian());
+                fp.setf(x, y, (float) v);
+            }
+        }
+        if (random != null) {
+            for (int s = 0; s < 4; s++) {
+                int cx = random.nextInt(width);
+                int cy = random.nextInt(height);
+                for (int y = Math.max(0, cy - 3); y < Math.min(height, cy + 4); y++) {
+                    for (int x = Math.max(0, cx - 3); x < Math.min(width, cx + 4); x++)
+                        fp.setf(x, y, fp.getf(x, y) * 0.7f);
+                }
+            }
+        }
+        if (bitDepth == 8)
+            return fp.convertToByteProcessor(false);
+        if (bitDepth == 16)
+            return fp.convertToShortProcessor(false);
+        return fp;
+    }
+
+    private static void assertSame(String message, ImageProcessor expected, ImageProcessor actual) {
+        assertEquals(message, expected.getBitDepth(), actual.getBitDepth());
+        for (int i = 0; i < expected.getPixelCount(); i++) {
+            assertEquals(message + " at pixel " + i, Float.floatToIntBits(expected.getf(i)),
+                    Float.floatToIntBits(actual.getf(i)));
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/** {@link IntegerCorrectionKernel} fixed-point arithmetic against the same formulas in double precision. */
+public class IntegerCorrectionKernelTest {
+
+    private static final double MAX = IntegerCorrectionKernel.MAX_FACTOR;
+    // 定点 k 与增益的舍入误差乘以 16 位像素后不超过约 0.002，离 .5 更近的结果允许差 1
+    private static final double TIE = 1e-2;
+
+    @Test
+    public void addScaledRoundsLikeDoubles() {
+        Random random = new Random(5);
+        double[] ks = { 0.5, -0.5, 0.3137, -1.77, 3.9, 1000.25, -0.001, 0, 0.999 * MAX, -0.999 * MAX };
+        for (boolean shorts : new boolean[] { true, false }) {
+            for (double k : ks) {
+                Object sample = pixels(shorts, 4000, random);
+                Object flat = pixels(shorts, 4000, random);
+                checkAddScaled((shorts ? "16" : "8") + "-bit, k " + k, sample, flat, k);
+            }
+        }
+    }
+
+    @Test
+    public void largeFactorsAndOtherFlatTypesFallBackToDoubles() {
+        Random random = new Random(9);
+        for (boolean shorts : new boolean[] { true, false }) {
+            for (double k : new double[] { MAX, -MAX, 4 * MAX, -4 * MAX }) {
+                Object sample = pixels(shorts, 2000, random);
+                Object flat = pixels(shorts, 2000, random);
+                set(flat, 0, 0);
+                set(flat, 7, 0);
+                checkAddScaled((shorts ? "16" : "8") + "-bit, k " + k, sample, flat, k);
+            }
+            float[] floatFlat = new float[2000];
+            for (int i = 0; i < floatFlat.length; i++)
+                floatFlat[i] = (float) (random.nextGaussian() * (shorts ? 20000 : 80));
+            checkAddScaled("float flat", pixels(shorts, 2000, random), floatFlat, 1.3);
+            checkAddScaled("mixed flat", pixels(shorts, 2000, random), pixels(!shorts, 2000, random), -2.1);
+        }
+    }
+
+    @Test
+    public void addScaledOnlyTouchesTheRange() {
+        Random random = new Random(11);
+        short[] sample = (short[]) pixels(true, 100, random);
+        short[] flat = (short[]) pixels(true, 100, random);
+        short[] out = new short[100];
+        IntegerCorrectionKernel.addScaled(sample, flat, 30, 45, 0.7, fixed(0.7), out);
+        for (int i = 0; i < out.length; i++) {
+            if (i < 30 || i >= 45)
+                assertEquals("pixel " + i, 0, out[i]);
+            else
+                assertPixel("pixel " + i, (sample[i] & 0xffff) + (flat[i] & 0xffff) * 0.7, true,
+                        65535, out[i] & 0xffff);
+        }
+    }
+
+    @Test
+    public void applyGainRoundsAndSaturates() {
+        Random random = new Random(23);
+        for (boolean shorts : new boolean[] { true, false }) {
+            int max = shorts ? 65535 : 255;
+            for (double mean : new double[] { 0.5 * max, 3.7, -20 }) {
+                Object pixels = pixels(shorts, 3000, random);
+                float[] background = new float[3000];
+                for (int i = 0; i < background.length; i++)
+                    background[i] = (float) (max * (0.05 + random.nextDouble()));
+                background[0] = 0;
+                background[1] = Float.NaN;
+                background[2] = (float) (-0.5 * max);
+                background[3] = (float) (Math.abs(mean) / (8 * MAX)); // 增益超过 MAX_FACTOR
+                background[4] = 1e-3f;
+                set(pixels, 4, max);
+                Object before = copy(pixels);
+                IntegerCorrectionKernel.applyGain(pixels, background, mean);
+                for (int i = 0; i < background.length; i++) {
+                    String message = (shorts ? "16" : "8") + "-bit, mean " + mean + ", pixel " + i;
+                    int original = get(before, i);
+                    if (background[i] == 0 || Float.isNaN(background[i])) {
+                        assertEquals(message, original, get(pixels, i));
+                        continue;
+                    }
+                    double gain = mean / background[i];
+                    double expected = gain <= 0 ? 0 : original * Math.min(gain, MAX);
+                    assertPixel(message, expected, true, max, get(pixels, i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sparseSupportLeavesOtherPixelsAlone() {
+        Random random = new Random(31);
+        int width = 70;
+        int height = 40;
+        for (boolean shorts : new boolean[] { true, false }) {
+            ByteProcessor mask = new ByteProcessor(width, height);
+            mask.set(0, 0, 255);
+            mask.set(width - 1, 0, 255);
+            for (int x = 0; x < width; x++)
+                mask.set(x, height - 1, 255);
+            for (int r = 0; r < 8; r++) {
+                int x0 = random.nextInt(width);
+                int y0 = random.nextInt(height);
+                mask.setRoi(x0, y0, 1 + random.nextInt(12), 1 + random.nextInt(6));
+                mask.setValue(255);
+                mask.fill();
+            }
+            mask.resetRoi();
+            RunLengthMask support = RunLengthMask.of(mask);
+            ImageProcessor sample = processor(shorts, width, height, random);
+            ImageProcessor flat = processor(shorts, width, height, random);
+            int max = shorts ? 65535 : 255;
+            for (double k : new double[] { 0.45, -1.3, 2 * MAX }) {
+                ImageProcessor result = IntegerCorrectionKernel.correct(sample, flat, support, k, null);
+                for (int i = 0; i < width * height; i++) {
+                    String message = (shorts ? "16" : "8") + "-bit, k " + k + ", pixel " + i;
+                    if (mask.get(i) == 0)
+                        assertEquals(message, sample.get(i), result.get(i));
+                    else
+                        assertPixel(message, sample.get(i) + flat.get(i) * k, Math.abs(k) < MAX, max, result.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pffcAppliesTheGainOfTheBlurredCorrection() {
+        Random random = new Random(37);
+        for (boolean shorts : new boolean[] { true, false }) {
+            ImageProcessor sample = processor(shorts, 60, 45, random);
+            ImageProcessor flat = processor(shorts, 60, 45, random);
+            ImageProcessor corrected = IntegerCorrectionKernel.correct(sample, flat, null, 0.8, null);
+            ImageProcessor pffc = IntegerCorrectionKernel.correct(sample, flat, null, 0.8, new BackgroundBlur(5));
+            float[] background = (float[]) corrected.convertToFloat().getPixels();
+            new BackgroundBlur(5).blur(new FloatProcessor(60, 45, background, null));
+            double mean = CorrectionKernel.mean(background);
+            for (int i = 0; i < background.length; i++) {
+                assertPixel((shorts ? "16" : "8") + "-bit, pixel " + i, corrected.get(i) * mean / background[i], true,
+                        shorts ? 65535 : 255, pffc.get(i));
+            }
+        }
+    }
+
+    private static void checkAddScaled(String message, Object sample, Object flat, double k) {
+        boolean shorts = sample instanceof short[];
+        int max = shorts ? 65535 : 255;
+        int length = shorts ? ((short[]) sample).length : ((byte[]) sample).length;
+        Object out = shorts ? new short[length] : new byte[length];
+        IntegerCorrectionKernel.addScaled(sample, flat, 0, length, k, fixed(k), out);
+        boolean fixedPoint = Math.abs(k) < MAX && !(flat instanceof float[]) && flat.getClass() == sample.getClass();
+        boolean saturated = false;
+        for (int i = 0; i < length; i++) {
+            double flatValue = flat instanceof float[] ? ((float[]) flat)[i] : get(flat, i);
+            double expected = get(sample, i) + flatValue * k;
+            saturated |= expected < 0 || expected > max;
+            assertPixel(message + ", pixel " + i, expected, fixedPoint, max, get(out, i));
+        }
+        assertTrue(message + " never saturates", saturated || Math.abs(k) < 2);
+    }
+
+    /**
+     * Fixed point rounds half up (floor(x + 0.5)), the double fallback rounds half
+     * to even (Math.rint); both saturate at 0 and max.
+     */
+    private static void assertPixel(String message, double exact, boolean fixedPoint, int max, int actual) {
+        double rounded = fixedPoint ? Math.floor(exact + 0.5) : Math.rint(exact);
+        int expected = (int) Math.max(0, Math.min(max, rounded));
+        if (Math.abs(exact - Math.floor(exact) - 0.5) < TIE && exact > 0 && exact < max)
+            assertTrue(message + ": " + actual + " vs " + exact, Math.abs(actual - expected) <= 1);
+        else
+            assertEquals(message + " (" + exact + ")", expected, actual);
+    }
+
+    private static long fixed(double k) {
+        return Math.round(k * (1L << IntegerCorrectionKernel.FRACTION_BITS));
+    }
+
+    private static Object pixels(boolean shorts, int length, Random random) {
+        Object pixels = shorts ? new short[length] : new byte[length];
+        int max = shorts ? 65535 : 255;
+        for (int i = 0; i < length; i++)
+            set(pixels, i, random.nextInt(10) == 0 ? max : random.nextInt(max + 1));
+        return pixels;
+    }
+
+    private static ImageProcessor processor(boolean shorts, int width, int height, Random random) {
+        Object pixels = pixels(shorts, width * height, random);
+        if (shorts)
+            return new ShortProcessor(width, height, (short[]) pixels, null);
+        return new ByteProcessor(width, height, (byte[]) pixels, null);
+    }
+
+    private static Object copy(Object pixels) {
+        return pixels instanceof short[] ? ((short[]) pixels).clone() : ((byte[]) pixels).clone();
+    }
+
+    private static int get(Object pixels, int i) {
+        return pixels instanceof short[] ? ((short[]) pixels)[i] & 0xffff : ((byte[]) pixels)[i] & 0xff;
+    }
+
+    private static void set(Object pixels, int i, int value) {
+        if (pixels instanceof short[])
+            ((short[]) pixels)[i] = (short) value;
+        else
+            ((byte[]) pixels)[i] = (byte) value;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/** {@link MaskMorphology#dilate} against the repeated 3x3 {@code erode()} it replaces. */
+public class MaskMorphologyTest {
+
+    @Test
+    public void dilateMatchesRepeatedErode() {
+        Random random = new Random(5);
+        for (int t = 0; t < 40; t++) {
+            int width = 10 + random.nextInt(60);
+            int height = 10 + random.nextInt(60);
+            ByteProcessor mask = new ByteProcessor(width, height);
+            int stains = random.nextInt(8);
+            for (int i = 0; i < stains; i++) {
+                int x = random.nextInt(width);
+                int y = random.nextInt(height);
+                mask.set(x, y, 255);
+                if (random.nextBoolean())
+                    mask.set(Math.min(width - 1, x + 1), y, 255);
+            }
+            assertDilation(mask, 1 + random.nextInt(12));
+        }
+    }
+
+    @Test
+    public void dilateAtTheBorder() {
+        ByteProcessor mask = new ByteProcessor(20, 15);
+        mask.set(0, 0, 255);
+        mask.set(19, 7, 255);
+        mask.set(10, 14, 255);
+        for (int radius = 1; radius <= 25; radius += 3)
+            assertDilation(mask, radius);
+    }
+
+    @Test
+    public void dilateEmptyAndFullMasks() {
+        ByteProcessor empty = new ByteProcessor(17, 9);
+        assertDilation(empty, 3);
+        ByteProcessor full = new ByteProcessor(17, 9);
+        full.setValue(255);
+        full.fill();
+        assertDilation(full, 3);
+    }
+
+    @Test
+    public void dilateSinglePixelImages() {
+        ByteProcessor row = new ByteProcessor(12, 1);
+        row.set(5, 0, 255);
+        assertDilation(row, 2);
+        ByteProcessor column = new ByteProcessor(1, 12);
+        column.set(0, 11, 255);
+        assertDilation(column, 4);
+    }
+
+    private static void assertDilation(ByteProcessor mask, int radius) {
+        ImageProcessor expected = mask.duplicate();
+        for (int i = 0; i < radius; i++)
+            expected.erode();
+        ImageProcessor actual = MaskMorphology.dilate(mask, radius);
+        assertArrayEquals("radius " + radius, (byte[]) expected.getPixels(), (byte[]) actual.getPixels());
+    }
+}
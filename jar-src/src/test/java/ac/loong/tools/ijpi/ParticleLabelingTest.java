@@ -0,0 +1,165 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** {@link ParticleLabeling} and the percentile filter against ImageJ's ParticleAnalyzer. */
+public class ParticleLabelingTest {
+
+    private boolean blackBackground;
+
+    @Before
+    public void setUp() {
+        blackBackground = Prefs.blackBackground;
+        Prefs.blackBackground = true;
+    }
+
+    @After
+    public void tearDown() {
+        Prefs.blackBackground = blackBackground;
+    }
+
+    @Test
+    public void areasMatchParticleAnalyzer() {
+        Random random = new Random(7);
+        for (int t = 0; t < 30; t++) {
+            ByteProcessor mask = randomMask(random, t);
+            long[] areas = ParticleLabeling.label(mask, 255).getAreas().clone();
+            Arrays.sort(areas);
+            assertArrayEquals("mask " + t, analyzerAreas(mask), areas);
+        }
+    }
+
+    @Test
+    public void filteredMaskMatchesParticleAnalyzer() {
+        Random random = new Random(11);
+        DirtyStainsEngine engine = new DirtyStainsEngine(DirtyStainsEngine.Observer.NONE);
+        for (int t = 0; t < 30; t++) {
+            ByteProcessor mask = randomMask(random, t);
+            int percentile = 1 + random.nextInt(99);
+            ImageProcessor expected = analyzerFilter((ByteProcessor) mask.duplicate(), percentile);
+            ImageProcessor actual = engine.filterSmallRegions(mask, percentile).toByteProcessor();
+            assertMasksEqual("mask " + t + ", percentile " + percentile, expected, actual);
+        }
+    }
+
+    @Test
+    public void particlesTouchingTheBorder() {
+        ByteProcessor mask = new ByteProcessor(12, 8);
+        mask.setValue(255);
+        mask.fillRect(0, 0, 3, 2); // 左上角
+        mask.fillRect(11, 0, 1, 8); // 右边一整列
+        mask.fillRect(4, 7, 5, 1); // 底边
+        mask.set(10, 3, 255); // 与右边列八连通
+        ParticleLabeling labeling = ParticleLabeling.label(mask, 255);
+        assertEquals(3, labeling.getParticleCount());
+        long[] areas = labeling.getAreas().clone();
+        Arrays.sort(areas);
+        assertArrayEquals(analyzerAreas(mask), areas);
+        DirtyStainsEngine engine = new DirtyStainsEngine(DirtyStainsEngine.Observer.NONE);
+        assertMasksEqual("border", analyzerFilter((ByteProcessor) mask.duplicate(), 50),
+                engine.filterSmallRegions(mask, 50).toByteProcessor());
+    }
+
+    @Test
+    public void emptyMask() {
+        ByteProcessor mask = new ByteProcessor(9, 7);
+        ParticleLabeling labeling = ParticleLabeling.label(mask, 255);
+        assertEquals(0, labeling.getParticleCount());
+        assertEquals(0, labeling.getAreas().length);
+        RunLengthMask filtered = new DirtyStainsEngine(DirtyStainsEngine.Observer.NONE).filterSmallRegions(mask, 80);
+        assertEquals(0, filtered.getPixelCount());
+    }
+
+    /** Sparse noise, dense noise or rings with a particle inside the hole. */
+    private static ByteProcessor randomMask(Random random, int t) {
+        int width = 5 + random.nextInt(60);
+        int height = 5 + random.nextInt(60);
+        double density = random.nextDouble() * (t % 3 == 0 ? 0.7 : 0.15);
+        ByteProcessor mask = new ByteProcessor(width, height);
+        for (int i = 0; i < width * height; i++)
+            mask.set(i, random.nextDouble() < density ? 255 : 0);
+        if (t % 5 == 0) {
+            for (int k = 0; k < 5; k++) {
+                int cx = random.nextInt(width);
+                int cy = random.nextInt(height);
+                int r = 2 + random.nextInt(8);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        double d = Math.hypot(x - cx, y - cy);
+                        if (d < r && d > r - 2)
+                            mask.set(x, y, 255);
+                    }
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static long[] analyzerAreas(ByteProcessor mask) {
+        ResultsTable rt = new ResultsTable();
+        ParticleAnalyzer pa = new ParticleAnalyzer(0, Measurements.AREA, rt, 0, Double.POSITIVE_INFINITY, 0, 1);
+        pa.analyze(new ImagePlus("", mask.duplicate()));
+        long[] areas = new long[rt.size()];
+        for (int i = 0; i < areas.length; i++)
+            areas[i] = Math.round(rt.getValue("Area", i));
+        Arrays.sort(areas);
+        return areas;
+    }
+
+    /** The particle filter of the original plugin: a percentile of the distinct areas. */
+    private static ImageProcessor analyzerFilter(ByteProcessor mask, int percentile) {
+        ResultsTable rt = new ResultsTable();
+        ParticleAnalyzer pa = new ParticleAnalyzer(0, Measurements.AREA, rt, 0, Double.POSITIVE_INFINITY, 0, 1);
+        pa.analyze(new ImagePlus("", mask));
+        double[] areas = new double[rt.size()];
+        for (int i = 0; i < areas.length; i++)
+            areas[i] = rt.getValue("Area", i);
+        areas = Arrays.stream(areas).distinct().sorted().toArray();
+        if (areas.length == 0)
+            return mask;
+        int cutoffIndex = (int) (areas.length * (100 - percentile) / 100.0);
+        double minArea = cutoffIndex < areas.length ? areas[cutoffIndex] : 0;
+        pa = new ParticleAnalyzer(ParticleAnalyzer.SHOW_MASKS, Measurements.AREA, rt, minArea,
+                Double.POSITIVE_INFINITY, 0, 1);
+        pa.setHideOutputImage(true);
+        pa.analyze(new ImagePlus("", mask.duplicate()));
+        return pa.getOutputImage().getStack().getProcessor(1);
+    }
+
+    private static void assertMasksEqual(String message, ImageProcessor expected, ImageProcessor actual) {
+        assertEquals(message, expected.getPixelCount(), actual.getPixelCount());
+        for (int i = 0; i < expected.getPixelCount(); i++)
+            assertEquals(message + " at pixel " + i, expected.get(i) != 0, actual.get(i) != 0);
+    }
+}
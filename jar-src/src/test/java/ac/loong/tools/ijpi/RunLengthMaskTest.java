@@ -0,0 +1,120 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.process.ByteProcessor;
+import java.util.Random;
+import org.junit.Test;
+
+/** {@link RunLengthMask} operations against the same operations on byte masks. */
+public class RunLengthMaskTest {
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random(3);
+        for (ByteProcessor mask : masks(random)) {
+            RunLengthMask runs = RunLengthMask.of(mask);
+            assertArrayEquals(normalized(mask), normalized(runs.toByteProcessor()));
+            assertEquals(count(mask), runs.getPixelCount());
+        }
+    }
+
+    @Test
+    public void unionAndXorMatchByteMasks() {
+        Random random = new Random(17);
+        ByteProcessor[] masks = masks(random);
+        for (int i = 0; i < masks.length; i += 2) {
+            ByteProcessor a = masks[i];
+            ByteProcessor b = masks[i + 1];
+            byte[] or = new byte[a.getPixelCount()];
+            byte[] xor = new byte[a.getPixelCount()];
+            for (int p = 0; p < or.length; p++) {
+                boolean inA = a.get(p) != 0;
+                boolean inB = b.get(p) != 0;
+                or[p] = inA || inB ? (byte) 255 : 0;
+                xor[p] = inA != inB ? (byte) 255 : 0;
+            }
+            RunLengthMask runsA = RunLengthMask.of(a);
+            RunLengthMask runsB = RunLengthMask.of(b);
+            assertArrayEquals("union " + i, or, normalized(runsA.union(runsB).toByteProcessor()));
+            assertArrayEquals("xor " + i, xor, normalized(runsA.xor(runsB).toByteProcessor()));
+        }
+    }
+
+    @Test
+    public void dilateMatchesMaskMorphology() {
+        Random random = new Random(29);
+        for (ByteProcessor mask : masks(random)) {
+            for (int radius : new int[] { 0, 1, 2, 5, 13, 40 }) {
+                ByteProcessor expected = radius == 0 ? mask : MaskMorphology.dilate(mask, radius);
+                assertArrayEquals("radius " + radius, normalized(expected),
+                        normalized(RunLengthMask.of(mask).dilate(radius).toByteProcessor()));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizesMustMatch() {
+        RunLengthMask.of(new ByteProcessor(5, 4)).union(RunLengthMask.of(new ByteProcessor(4, 5)));
+    }
+
+    /** Pairs of random masks of one size, with border runs, empty and full masks. */
+    private static ByteProcessor[] masks(Random random) {
+        ByteProcessor[] masks = new ByteProcessor[24];
+        for (int i = 0; i < masks.length; i += 2) {
+            int width = 1 + random.nextInt(50);
+            int height = 1 + random.nextInt(50);
+            for (int j = i; j < i + 2; j++) {
+                ByteProcessor mask = new ByteProcessor(width, height);
+                double density = random.nextDouble() * 0.5;
+                for (int p = 0; p < width * height; p++)
+                    mask.set(p, random.nextDouble() < density ? 1 + random.nextInt(255) : 0);
+                masks[j] = mask;
+            }
+        }
+        // 空掩膜、全满掩膜，以及只有边缘像素的掩膜
+        masks[0] = new ByteProcessor(masks[0].getWidth(), masks[0].getHeight());
+        masks[3].setValue(255);
+        masks[3].fill();
+        ByteProcessor border = masks[4];
+        border.setValue(0);
+        border.fill();
+        border.setValue(255);
+        border.drawRect(0, 0, border.getWidth(), border.getHeight());
+        return masks;
+    }
+
+    private static byte[] normalized(ByteProcessor mask) {
+        byte[] out = new byte[mask.getPixelCount()];
+        for (int p = 0; p < out.length; p++)
+            out[p] = mask.get(p) != 0 ? (byte) 255 : 0;
+        return out;
+    }
+
+    private static long count(ByteProcessor mask) {
+        long count = 0;
+        for (int p = 0; p < mask.getPixelCount(); p++) {
+            if (mask.get(p) != 0)
+                count++;
+        }
+        return count;
+    }
+}
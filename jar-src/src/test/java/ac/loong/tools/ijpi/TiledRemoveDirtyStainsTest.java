@@ -0,0 +1,113 @@
+/*
+ * Copyright 2025 Lingluo Long
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ac.loong.tools.ijpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * {@link TiledRemoveDirtyStains} against the in-memory engine on images small
+ * enough for both: without downsampling of the flat and without PFFC the tiles
+ * must add up to the same pixels.
+ */
+public class TiledRemoveDirtyStainsTest {
+
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 170;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void tiledMatchesInMemory() throws Exception {
+        for (int bitDepth : new int[] { 8, 16, 32 }) {
+            ImagePlus flat = image(bitDepth, 0.6, 0, 101);
+            ImagePlus sample = image(bitDepth, 0.75, 0.3, 101);
+
+            TiledRemoveDirtyStains.Options options = new TiledRemoveDirtyStains.Options();
+            options.flat = save(flat, "flat" + bitDepth + ".tif");
+            options.sample = save(sample, "sample" + bitDepth + ".tif");
+            options.output = folder.getRoot().toPath().resolve("cleaned" + bitDepth + ".tif");
+            options.flatDownsample = 1;
+            options.tileSize = 64; // 多个瓦片，且最后一列与一行不完整
+            options.threads = 3;
+            TiledRemoveDirtyStains.run(options);
+            ImageProcessor tiled = IJ.openImage(options.output.toString()).getProcessor();
+
+            DirtyStainsEngine engine = new DirtyStainsEngine();
+            FlatFieldCalibration calibration = engine.buildCalibration(flat, options.expandRatio,
+                    options.percentile, options.flatDownsample);
+            assertTrue(bitDepth + "-bit stains", calibration.getStainRuns().getPixelCount() > 0);
+            ImageProcessor inMemory = engine.correctSlice(sample.getProcessor(), calibration, null);
+
+            assertEquals(bitDepth + "-bit", inMemory.getBitDepth(), tiled.getBitDepth());
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                assertEquals(bitDepth + "-bit, pixel " + i, Float.floatToIntBits(inMemory.getf(i)),
+                        Float.floatToIntBits(tiled.getf(i)));
+            }
+        }
+    }
+
+    private Path save(ImagePlus imp, String name) {
+        Path path = folder.getRoot().toPath().resolve(name);
+        new FileSaver(imp).saveAsTiff(path.toString());
+        return path;
+    }
+
+    /** A vignetted image with noise and dark stains; the stains depend only on {@code seed}. */
+    private static ImagePlus image(int bitDepth, double stainFactor, double tilt, long seed) {
+        Random stains = new Random(seed);
+        Random noise = new Random(seed + Double.doubleToLongBits(stainFactor + tilt));
+        double max = bitDepth == 8 ? 220 : bitDepth == 16 ? 40000 : 1.0;
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double dx = (x - WIDTH / 2.0) / WIDTH;
+                double dy = (y - HEIGHT / 2.0) / HEIGHT;
+                pixels[y * WIDTH + x] = (float) (max * (1 - 0.5 * (dx * dx + dy * dy) - tilt * dx * 0.3)
+                        * (1 + 0.01 * noise.nextGaussian()));
+            }
+        }
+        for (int s = 0; s < 16; s++) {
+            int cx = stains.nextInt(WIDTH);
+            int cy = stains.nextInt(HEIGHT);
+            double r = 1.5 + stains.nextInt(8);
+            for (int y = Math.max(0, (int) (cy - r)); y <= Math.min(HEIGHT - 1, cy + r); y++) {
+                for (int x = Math.max(0, (int) (cx - r)); x <= Math.min(WIDTH - 1, cx + r); x++) {
+                    if (Math.hypot(x - cx, y - cy) <= r)
+                        pixels[y * WIDTH + x] *= (float) stainFactor;
+                }
+            }
+        }
+        FloatProcessor fp = new FloatProcessor(WIDTH, HEIGHT, pixels, null);
+        ImageProcessor ip = bitDepth == 8 ? fp.convertToByteProcessor(false)
+                : bitDepth == 16 ? fp.convertToShortProcessor(false) : fp;
+        return new ImagePlus("image" + bitDepth, ip);
+    }
+}